@@ -1,13 +1,20 @@
 package modelselection.core;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import beast.base.core.Description;
+import beast.base.core.Log;
 import beast.base.inference.Distribution;
 import beast.base.core.Input;
 import beast.base.inference.Logger;
@@ -21,14 +28,79 @@ import beast.base.evolution.likelihood.TreeLikelihood;
 @Description("Logs data for pseudo marginal likelihood estimate (see CPOAnalyser for details)")
 public class CPOLogger extends Logger {
 	public Input<CompoundDistribution> likelihoodInput = new Input<>("likelihood", "likelihood distribution, containing one or more treelikilihoods", Validate.REQUIRED);
+	public Input<Boolean> binaryInput = new Input<>("binary", "write pattern log likelihoods in compressed binary blocks instead of text. "
+			+ "CPOAnalyser recognises binary CPO logs automatically. Binary logs cannot be resumed", false);
+	public Input<String> precisionInput = new Input<>("precision", "precision of pattern log likelihoods in binary logs, "
+			+ "either float (4 bytes) or double (8 bytes)", "double", new String[]{"float", "double"});
+	public Input<Integer> subsampleInput = new Input<>("subsample", "approximate number of patterns to log, drawn as a stratified "
+			+ "subsample (see PatternSubsample) from which CPOAnalyser extrapolates LPML of the full alignment with a standard error. "
+			+ "All patterns are logged if not positive. Text logs only", 0);
+	public Input<Integer> strataInput = new Input<>("strata", "number of strata of patterns, formed by pattern log likelihood "
+			+ "at the start of logging, when subsampling patterns", 10);
 	
+	/**
+	 * Binary CPO log layout (big endian):
+	 * int MAGIC, int VERSION, int pattern count, int bytes per value (4 or 8), int weight of every pattern,
+	 * then blocks of: int number of rows, int compressed length, deflate compressed rows, 
+	 * each row being a long sample number followed by the pattern log likelihoods.
+	 */
+	public final static int BINARY_MAGIC = 0x4d534350; // "MSCP"
+	public final static int BINARY_VERSION = 1;
+	final static int BLOCK_SIZE = 64;
 	
+	
+	/**
+	 * Receives rows of pattern log likelihoods from a CPOLogger in the same JVM, instead of
+	 * the logger writing them to file.
+	 */
+	public interface Sink {
+		/** called once before the first row
+		 * @param rows number of rows expected after burn-in
+		 */
+		void start(int [] patternWeights, int rows) throws IOException;
+		/** pattern log likelihoods of the next row after burn-in, the array is reused by the logger **/
+		void add(double [] logP) throws IOException;
+		/** called once after the last row **/
+		void finish() throws IOException;
+	}
+
 	public CPOLogger() {
 		loggersInput.setRule(Validate.OPTIONAL);
 	}
 	
 	List<GenericTreeLikelihood> likelihoods;
 	
+	// binary mode
+	DataOutputStream binaryOut;
+	ByteArrayOutputStream blockBytes;
+	DataOutputStream block;
+	int blockRows;
+	boolean singlePrecision;
+	Deflater deflater;
+
+	/** patterns that are logged, or null if all patterns are logged **/
+	PatternSubsample subsample;
+	/** logged pattern log likelihoods **/
+	double [] row;
+
+	// likelihood recalculations skipped and done
+	long skipCount, recalculationCount;
+
+	// sink mode
+	Sink sink;
+	int expectedRows, burnin, sinkRows;
+	
+	/**
+	 * Push rows to sink instead of writing a log file. Burn-in is applied as rows arrive.
+	 * @param expectedRows number of rows the run will log, used to determine burn-in
+	 * @param burninPercentage percentage of the first rows that are not passed to the sink
+	 */
+	public void setSink(Sink sink, int expectedRows, int burninPercentage) {
+		this.sink = sink;
+		this.expectedRows = expectedRows;
+		this.burnin = (int) ((long) expectedRows * burninPercentage / 100);
+	}
+	
 	@Override
 	public void initAndValidate() {
 		RealParameter p = new RealParameter("1.0");
@@ -44,34 +116,46 @@ public class CPOLogger extends Logger {
 				likelihoods.add((GenericTreeLikelihood) d);
 			}
 		}
+		if (subsampleInput.get() > 0 && binaryInput.get()) {
+			throw new IllegalArgumentException("Subsampling patterns is only supported for text CPO logs, not binary ones");
+		}
 	}
 
 	@Override
     public void init() throws IOException {
+		if (sink != null) {
+			initSubsample(true);
+			int [] weights = getLoggedPatternWeights();
+			row = new double[weights.length];
+			sinkRows = 0;
+			sink.start(weights, expectedRows - burnin);
+			return;
+		}
+		if (binaryInput.get()) {
+			initBinary();
+			return;
+		}
         final boolean needsHeader = openLogFile();
+        initSubsample(needsHeader);
+        row = new double[getLoggedPatternWeights().length];
         if (needsHeader) {
             final ByteArrayOutputStream rawbaos = new ByteArrayOutputStream();
             final PrintStream out = new PrintStream(rawbaos);
 
             // list of pattern weights
             out.print("#patternweights\t");
-            for (GenericTreeLikelihood d : likelihoods) {
-            	int [] weights = d.dataInput.get().getWeights();
-            	for (int w : weights) {
-            		out.print(w + "\t");
-            	}
+            for (int w : getLoggedPatternWeights()) {
+            	out.print(w + "\t");
             }
             out.print("\n");             
+            if (subsample != null) {
+            	out.print(subsample.toHeader());
+            }
             
-            // header line
+            // header line, labelled by index of the pattern in the full alignment
             out.print("Sample\t");
-            int k = 0;
-            for (GenericTreeLikelihood d : likelihoods) {
-            	int [] weights = d.dataInput.get().getWeights();
-            	for (int w : weights) {
-            		out.print("logP" + k + "\t");
-            		k++;
-            	}
+            for (int k = 0; k < row.length; k++) {
+            	out.print("logP" + (subsample == null ? k : subsample.getSelected()[k]) + "\t");
             }
 
             // Remove trailing tab from header
@@ -84,6 +168,203 @@ public class CPOLogger extends Logger {
     } // init
 	
 	
+	/**
+	 * Draw subsample of patterns to log, or when resuming, read it from the log
+	 * @param isNew false if an existing log is resumed
+	 */
+	private void initSubsample(boolean isNew) throws IOException {
+		subsample = null;
+		int patternCount = getPatternWeights().length;
+		if (subsampleInput.get() <= 0 || subsampleInput.get() >= patternCount) {
+			return;
+		}
+		if (!isNew) {
+			subsample = PatternSubsample.read(new File(fileNameInput.get()));
+			if (subsample == null || subsample.getPatternCount() != patternCount) {
+				throw new IOException("Cannot resume " + fileNameInput.get() + " since it does not contain a subsample of " + patternCount + " patterns");
+			}
+			return;
+		}
+		double [] logP = new double[patternCount];
+		int k = 0;
+		for (GenericTreeLikelihood d : likelihoods) {
+			for (double f : getPatternLogLikelihoods(d)) {
+				logP[k++] = f;
+			}
+		}
+		subsample = PatternSubsample.draw(logP, subsampleInput.get(), strataInput.get());
+	}
+
+	/** @return weights of logged patterns **/
+	private int [] getLoggedPatternWeights() {
+		int [] weights = getPatternWeights();
+		if (subsample == null) {
+			return weights;
+		}
+		int [] selected = subsample.getSelected();
+		int [] logged = new int[selected.length];
+		for (int j = 0; j < selected.length; j++) {
+			logged[j] = weights[selected[j]];
+		}
+		return logged;
+	}
+
+	/** fill row with log likelihoods of logged patterns **/
+	private void fillRow() {
+		int k = 0;
+		if (subsample == null) {
+			for (GenericTreeLikelihood d : likelihoods) {
+				for (double f : getPatternLogLikelihoods(d)) {
+					row[k++] = f;
+				}
+			}
+			return;
+		}
+		// selected patterns are in increasing order
+		int [] selected = subsample.getSelected();
+		int offset = 0;
+		for (GenericTreeLikelihood d : likelihoods) {
+			double [] logPs = getPatternLogLikelihoods(d);
+			while (k < selected.length && selected[k] < offset + logPs.length) {
+				row[k] = logPs[selected[k] - offset];
+				k++;
+			}
+			offset += logPs.length;
+		}
+	}
+
+	private int [] getPatternWeights() {
+		int patternCount = 0;
+		for (GenericTreeLikelihood d : likelihoods) {
+			patternCount += d.dataInput.get().getWeights().length;
+		}
+		int [] weights = new int[patternCount];
+		int k = 0;
+		for (GenericTreeLikelihood d : likelihoods) {
+			for (int w : d.dataInput.get().getWeights()) {
+				weights[k++] = w;
+			}
+		}
+		return weights;
+	}
+
+	private void logSink() throws IOException {
+		sinkRows++;
+		if (sinkRows <= burnin) {
+			return;
+		}
+		fillRow();
+		sink.add(row);
+	}
+
+	private void initBinary() throws IOException {
+		File file = new File(fileNameInput.get());
+		if (file.exists() && Logger.FILE_MODE != LogFileMode.overwrite) {
+			throw new IOException("Binary CPO log " + file.getPath() + " already exists. Use -overwrite to overwrite, resuming binary CPO logs is not supported.");
+		}
+		singlePrecision = precisionInput.get().equals("float");
+		binaryOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		int [] weights = getPatternWeights();
+		binaryOut.writeInt(BINARY_MAGIC);
+		binaryOut.writeInt(BINARY_VERSION);
+		binaryOut.writeInt(weights.length);
+		binaryOut.writeInt(singlePrecision ? 4 : 8);
+		for (int w : weights) {
+			binaryOut.writeInt(w);
+		}
+		binaryOut.flush();
+		blockBytes = new ByteArrayOutputStream();
+		block = new DataOutputStream(blockBytes);
+		blockRows = 0;
+		deflater = new Deflater(Deflater.BEST_SPEED);
+	}
+
+	private void logBinary(long sampleNr) throws IOException {
+		block.writeLong(sampleNr);
+		for (GenericTreeLikelihood d : likelihoods) {
+			for (double f : getPatternLogLikelihoods(d)) {
+				if (singlePrecision) {
+					block.writeFloat((float) f);
+				} else {
+					block.writeDouble(f);
+				}
+			}
+		}
+		blockRows++;
+		if (blockRows == BLOCK_SIZE) {
+			flushBlock();
+		}
+	}
+
+	/** compress rows collected so far and write them as a block **/
+	private void flushBlock() throws IOException {
+		if (blockRows == 0) {
+			return;
+		}
+		block.flush();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+		blockBytes.writeTo(out);
+		out.finish();
+		deflater.reset();
+		binaryOut.writeInt(blockRows);
+		binaryOut.writeInt(compressed.size());
+		compressed.writeTo(binaryOut);
+		binaryOut.flush();
+		blockBytes.reset();
+		blockRows = 0;
+	}
+
+	private double [] getPatternLogLikelihoods(GenericTreeLikelihood d) {
+		double [] logPs = getCachedPatternLogLikelihoods(d);
+		if (logPs != null && isCurrent(d, logPs)) {
+			skipCount++;
+			return logPs;
+		}
+		recalculationCount++;
+		d.calculateLogP();
+		return getCachedPatternLogLikelihoods(d);
+	}
+
+	private double [] getCachedPatternLogLikelihoods(GenericTreeLikelihood d) {
+    	if (d instanceof TreeLikelihood) {
+    		return ((TreeLikelihood) d).getPatternLogLikelihoods();
+    	} else {
+        	return ((ThreadedTreeLikelihood) d).getPatternLogLikelihoods();
+    	}
+	}
+
+	/**
+	 * Pattern log likelihoods are not stored and restored with the likelihood, so after a
+	 * rejected proposal they belong to the proposed state. They are current if the likelihood
+	 * is clean and their weighted sum equals its current log likelihood.
+	 */
+	private boolean isCurrent(GenericTreeLikelihood d, double [] logPs) {
+		if (d.isDirtyCalculation() || d.dataInput.get().isAscertained) {
+			return false;
+		}
+		int [] weights = d.dataInput.get().getWeights();
+		if (logPs.length != weights.length) {
+			return false;
+		}
+		double sum = 0;
+		for (int i = 0; i < logPs.length; i++) {
+			sum += logPs[i] * weights[i];
+		}
+		double logP = d.getCurrentLogP();
+		return Math.abs(sum - logP) <= 1e-10 * Math.max(1.0, Math.abs(logP));
+	}
+
+	/** @return number of times cached pattern log likelihoods were logged without recalculating the likelihood **/
+	public long getSkipCount() {
+		return skipCount;
+	}
+
+	/** @return number of times the likelihood was recalculated before logging **/
+	public long getRecalculationCount() {
+		return recalculationCount;
+	}
+
 	@Override
 	public void log(long sampleNr) {
 	        if ((sampleNr < 0) || (sampleNr % every > 0)) {
@@ -96,26 +377,31 @@ public class CPOLogger extends Logger {
 	            }
 	            sampleNr += sampleOffset;
 	        }
+	        if (sink != null) {
+	        	try {
+	        		logSink();
+	        	} catch (IOException e) {
+	        		throw new RuntimeException(e);
+	        	}
+	        	return;
+	        }
+	        if (binaryOut != null) {
+	        	try {
+	        		logBinary(sampleNr);
+	        	} catch (IOException e) {
+	        		throw new RuntimeException(e);
+	        	}
+	        	return;
+	        }
 
 	        ByteArrayOutputStream baos = new ByteArrayOutputStream();
 	        PrintStream out = new PrintStream(baos);
 
 	        out.print((sampleNr) + "\t");
 
-            for (GenericTreeLikelihood d : likelihoods) {
-        		double [] logPs = null;
-            	if (d instanceof TreeLikelihood) {
-            		TreeLikelihood tl = (TreeLikelihood) d;
-            		tl.calculateLogP();
-            		logPs = tl.getPatternLogLikelihoods();
-            	} else {
-            		ThreadedTreeLikelihood tl = (ThreadedTreeLikelihood) d;
-            		tl.calculateLogP();
-                	logPs = tl.getPatternLogLikelihoods();
-            	}
-        		for (double f : logPs) {
-        			out.print(f + "\t");
-        		}
+            fillRow();
+            for (double f : row) {
+            	out.print(f + "\t");
             }
             
 	        // Acquire log string and trim excess tab
@@ -131,6 +417,28 @@ public class CPOLogger extends Logger {
 	
 	@Override
 	public void close() {
+		if (skipCount + recalculationCount > 0) {
+			Log.info.println("CPOLogger reused cached pattern log likelihoods " + skipCount + " times and recalculated them " + recalculationCount + " times");
+		}
+		if (sink != null) {
+			try {
+				sink.finish();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+		if (binaryOut != null) {
+			try {
+				flushBlock();
+				binaryOut.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			binaryOut = null;
+			deflater.end();
+			return;
+		}
 		super.close();
 
 //		CPOAnalyser analyser = new CPOAnalyser();
@@ -0,0 +1,200 @@
+package modelselection.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.util.Randomizer;
+
+/**
+ * Stratified subsample of the patterns of an alignment, so that CPOLogger only needs to log,
+ * and CPOAnalyser only needs to analyse, a fraction of the patterns. Patterns are stratified
+ * by their log likelihood at the start of logging, so that patterns with similar fit end up in
+ * the same stratum. Within a stratum, patterns are drawn without replacement.
+ *
+ * The LPML of the full alignment is estimated by the stratified expansion estimator of the
+ * total of weight * CPO over all patterns, with its usual sampling variance
+ * (Cochran, Sampling Techniques, 1977, chapter 5).
+ *
+ * The subsample is stored in comment lines of the CPO log:
+ * #subsample followed by the number of patterns in each stratum of the full alignment,
+ * #stratum followed by the stratum of each logged pattern, and
+ * #selected followed by the index in the full alignment of each logged pattern.
+ */
+public class PatternSubsample {
+	final static String SUBSAMPLE = "#subsample";
+	final static String STRATUM = "#stratum";
+	final static String SELECTED = "#selected";
+
+	/** number of patterns in each stratum of the full alignment **/
+	final int [] stratumSize;
+	/** stratum of each logged pattern **/
+	final int [] stratum;
+	/** index of each logged pattern in the full alignment, in increasing order **/
+	final int [] selected;
+
+	PatternSubsample(int [] stratumSize, int [] stratum, int [] selected) {
+		this.stratumSize = stratumSize;
+		this.stratum = stratum;
+		this.selected = selected;
+	}
+
+	/**
+	 * Draw a stratified subsample, with stratum sample sizes proportional to stratum sizes,
+	 * but at least 2 patterns per stratum so the within stratum variance can be estimated.
+	 * @param logP log likelihood of every pattern in the full alignment, used to form strata
+	 * @param sampleSize approximate number of patterns to select
+	 * @param strata number of strata
+	 */
+	public static PatternSubsample draw(double [] logP, int sampleSize, int strata) {
+		int patternCount = logP.length;
+		strata = Math.max(1, Math.min(strata, patternCount / 2));
+		Integer [] order = new Integer[patternCount];
+		for (int i = 0; i < patternCount; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i, j) -> Double.compare(logP[i], logP[j]));
+
+		int [] stratumSize = new int[strata];
+		int [] stratumOf = new int[patternCount];
+		List<Integer> selected = new ArrayList<>();
+		for (int h = 0; h < strata; h++) {
+			// strata of (nearly) equal numbers of patterns
+			int from = (int) ((long) h * patternCount / strata);
+			int to = (int) ((long) (h + 1) * patternCount / strata);
+			int size = to - from;
+			stratumSize[h] = size;
+			int n = (int) Math.round((double) sampleSize * size / patternCount);
+			n = Math.min(size, Math.max(2, n));
+			// partial Fisher-Yates shuffle of the stratum
+			int [] members = new int[size];
+			for (int j = 0; j < size; j++) {
+				members[j] = order[from + j];
+				stratumOf[members[j]] = h;
+			}
+			for (int j = 0; j < n; j++) {
+				int k = j + Randomizer.nextInt(size - j);
+				int tmp = members[j]; members[j] = members[k]; members[k] = tmp;
+				selected.add(members[j]);
+			}
+		}
+
+		int [] selection = new int[selected.size()];
+		for (int j = 0; j < selection.length; j++) {
+			selection[j] = selected.get(j);
+		}
+		Arrays.sort(selection);
+		int [] stratum = new int[selection.length];
+		for (int j = 0; j < selection.length; j++) {
+			stratum[j] = stratumOf[selection[j]];
+		}
+		return new PatternSubsample(stratumSize, stratum, selection);
+	}
+
+	/** @return indices in the full alignment of the logged patterns **/
+	public int [] getSelected() {
+		return selected;
+	}
+
+	/** @return number of patterns in the full alignment **/
+	public int getPatternCount() {
+		int count = 0;
+		for (int size : stratumSize) {
+			count += size;
+		}
+		return count;
+	}
+
+	/** @return comment lines describing the subsample, to be written to the CPO log **/
+	public String toHeader() {
+		StringBuilder b = new StringBuilder();
+		append(b, SUBSAMPLE, stratumSize);
+		append(b, STRATUM, stratum);
+		append(b, SELECTED, selected);
+		return b.toString();
+	}
+
+	private void append(StringBuilder b, String label, int [] values) {
+		b.append(label);
+		for (int v : values) {
+			b.append('\t').append(v);
+		}
+		b.append('\n');
+	}
+
+	/**
+	 * Read subsample from the comment lines at the start of a text CPO log
+	 * @return subsample, or null if all patterns were logged
+	 */
+	public static PatternSubsample read(File cpoLog) throws IOException {
+		int [] stratumSize = null, stratum = null, selected = null;
+		try (BufferedReader fin = new BufferedReader(new FileReader(cpoLog))) {
+			String str;
+			while ((str = fin.readLine()) != null && (str.startsWith("#") || str.trim().length() == 0)) {
+				if (str.startsWith(SUBSAMPLE)) {
+					stratumSize = parse(str);
+				} else if (str.startsWith(STRATUM)) {
+					stratum = parse(str);
+				} else if (str.startsWith(SELECTED)) {
+					selected = parse(str);
+				}
+			}
+		}
+		if (stratumSize == null) {
+			return null;
+		}
+		if (stratum == null || selected == null || stratum.length != selected.length) {
+			throw new IllegalArgumentException("Incomplete description of pattern subsample in " + cpoLog.getPath());
+		}
+		return new PatternSubsample(stratumSize, stratum, selected);
+	}
+
+	private static int [] parse(String str) {
+		String [] strs = str.trim().split("\\s+");
+		int [] values = new int[strs.length - 1];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Integer.parseInt(strs[i + 1]);
+		}
+		return values;
+	}
+
+	/**
+	 * Estimate LPML of the full alignment from the CPO of the logged patterns
+	 * @param cpo log CPO of every logged pattern, equation (14) in Lewis et al 2014
+	 * @param patternWeights weight of every logged pattern
+	 * @return estimate of LPML and its subsampling standard error
+	 */
+	public double [] estimate(double [] cpo, int [] patternWeights) {
+		if (cpo.length != stratum.length) {
+			throw new IllegalArgumentException("Expected " + stratum.length + " patterns in subsample, not " + cpo.length);
+		}
+		int strata = stratumSize.length;
+		int [] n = new int[strata];
+		double [] mean = new double[strata];
+		double [] m2 = new double[strata];
+		for (int j = 0; j < cpo.length; j++) {
+			int h = stratum[j];
+			double y = cpo[j] * patternWeights[j];
+			n[h]++;
+			double delta = y - mean[h];
+			mean[h] += delta / n[h];
+			m2[h] += delta * (y - mean[h]);
+		}
+		double LPML = 0, var = 0;
+		for (int h = 0; h < strata; h++) {
+			if (n[h] == 0) {
+				continue;
+			}
+			LPML += stratumSize[h] * mean[h];
+			if (n[h] > 1) {
+				double s2 = m2[h] / (n[h] - 1);
+				var += (double) stratumSize[h] * stratumSize[h] * (1.0 - (double) n[h] / stratumSize[h]) * s2 / n[h];
+			}
+		}
+		return new double[] {LPML, Math.sqrt(var)};
+	}
+}
@@ -0,0 +1,297 @@
+package modelselection.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import beast.base.core.Log;
+import beast.base.evolution.tree.Tree;
+import beastfx.app.treeannotator.TreeAnnotator;
+import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
+
+/**
+ * Byte offsets of the trees in a tree file, so trees can be counted, drawn at random
+ * or read in chunks without scanning the file. The index is stored next to the tree file
+ * in a sidecar file with extension .idx, and rebuilt when the size or modification time
+ * of the tree file changed since the index was built.
+ *
+ * Trees are parsed by BEAST's own tree set reader: the part of the file before the first
+ * tree (with the taxa and translate blocks) is combined with the requested tree lines
+ * into a small temporary tree file.
+ */
+public class TreeFileIndex {
+	public final static String EXTENSION = ".idx";
+	final static int MAGIC = 0x4d535449; // "MSTI"
+	final static int VERSION = 1;
+	/** maximum size of the pieces of a chunk copied to a temporary file at a time **/
+	final static long PIECE_BYTES = 1 << 24;
+
+	final File treeFile;
+	/** start of each tree line, and end of the tree line (excluding line terminator) **/
+	long [] start, end;
+	/** number of bytes before the first tree **/
+	long headerLength;
+
+	private TreeFileIndex(File treeFile) {
+		this.treeFile = treeFile;
+	}
+
+	/** load index from the sidecar file if it is up to date, otherwise build and save it **/
+	public static TreeFileIndex get(File treeFile) throws IOException {
+		TreeFileIndex index = new TreeFileIndex(treeFile);
+		File sidecar = new File(treeFile.getPath() + EXTENSION);
+		if (sidecar.exists() && index.load(sidecar)) {
+			return index;
+		}
+		index.build();
+		try {
+			index.save(sidecar);
+		} catch (IOException e) {
+			// index is still usable from memory
+			Log.warning.println("Could not write tree index " + sidecar.getPath() + ": " + e.getMessage());
+		}
+		return index;
+	}
+
+	/** @return total number of trees in the file **/
+	public int getTreeCount() {
+		return start.length;
+	}
+
+	/** @return number of trees after removing burninPercentage, same as a MemoryFriendlyTreeSet would produce **/
+	public int getTreeCount(int burninPercentage) {
+		return start.length - getBurnin(burninPercentage);
+	}
+
+	/** @return number of trees discarded as burn-in **/
+	public int getBurnin(int burninPercentage) {
+		return Math.max(0, burninPercentage * start.length / 100);
+	}
+
+	/** @return i-th tree of the file, counting from the start of the file including burn-in **/
+	public Tree getTree(int i) throws IOException {
+		File tmp = writeChunk(i, i + 1);
+		TreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(tmp.getAbsolutePath(), 0);
+		trees.reset();
+		Tree tree = trees.next();
+		tmp.delete();
+		return tree;
+	}
+
+	/**
+	 * @return tree set containing trees from, ..., to-1 of the file, counting from the start of
+	 * the file including burn-in. Chunks can be read independently, e.g. by different threads.
+	 * Trees are read in pieces of at most PIECE_BYTES, each copied to a temporary tree file that
+	 * is deleted as soon as its trees are read, so the chunk is never copied to disk as a whole.
+	 */
+	public TreeSet openChunk(int from, int to) throws IOException {
+		checkRange(from, to);
+		return new TreeAnnotator().new TreeSet() {
+			/** first tree of the next piece **/
+			int next = from;
+			File pieceFile;
+			TreeSet piece;
+
+			@Override
+			public boolean hasNext() {
+				// pieces are never empty
+				return piece != null || next < to;
+			}
+
+			@Override
+			public Tree next() throws IOException {
+				if (piece == null) {
+					if (next >= to) {
+						return null;
+					}
+					int pieceEnd = next + 1;
+					while (pieceEnd < to && end[pieceEnd] - start[next] < PIECE_BYTES) {
+						pieceEnd++;
+					}
+					pieceFile = writeChunk(next, pieceEnd);
+					next = pieceEnd;
+					piece = new TreeAnnotator().new MemoryFriendlyTreeSet(pieceFile.getAbsolutePath(), 0);
+					piece.reset();
+				}
+				Tree tree = piece.next();
+				if (!piece.hasNext()) {
+					closePiece();
+				}
+				return tree;
+			}
+
+			@Override
+			public void reset() throws IOException {
+				closePiece();
+				next = from;
+			}
+
+			private void closePiece() {
+				piece = null;
+				if (pieceFile != null && !pieceFile.delete()) {
+					// still open, e.g. on Windows
+					pieceFile.deleteOnExit();
+				}
+				pieceFile = null;
+			}
+		};
+	}
+
+	private void checkRange(int from, int to) {
+		if (from < 0 || to > start.length || from >= to) {
+			throw new IllegalArgumentException("Invalid range of trees " + from + "..." + to + " for tree file with " + start.length + " trees");
+		}
+	}
+
+	/** write header and trees from, ..., to-1 to a temporary tree file **/
+	private File writeChunk(int from, int to) throws IOException {
+		checkRange(from, to);
+		File tmp = File.createTempFile("trees", ".trees");
+		try (RandomAccessFile in = new RandomAccessFile(treeFile, "r");
+				FileOutputStream out = new FileOutputStream(tmp)) {
+			copy(in, out, 0, headerLength);
+			for (int i = from; i < to; i++) {
+				copy(in, out, start[i], end[i]);
+				out.write('\n');
+			}
+			if (headerLength > 0) {
+				out.write("End;\n".getBytes());
+			}
+		}
+		return tmp;
+	}
+
+	private void copy(RandomAccessFile in, FileOutputStream out, long from, long to) throws IOException {
+		byte [] buf = new byte[(int) Math.min(1 << 16, Math.max(1, to - from))];
+		in.seek(from);
+		long remaining = to - from;
+		while (remaining > 0) {
+			int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+			if (n < 0) {
+				throw new IOException("Unexpected end of " + treeFile.getPath() + ". Has it been changed while reading?");
+			}
+			out.write(buf, 0, n);
+			remaining -= n;
+		}
+	}
+
+	/** scan the tree file for lines starting with "tree", or with "(" for newick files **/
+	void build() throws IOException {
+		long [] starts = new long[1024];
+		long [] ends = new long[1024];
+		int count = 0;
+		headerLength = -1;
+		try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(treeFile), 1 << 16)) {
+			long pos = 0;
+			long lineStart = 0;
+			// first non-white space characters of the line, lower case
+			StringBuilder prefix = new StringBuilder();
+			boolean inLine = false;
+			int c;
+			while (true) {
+				c = in.read();
+				if (c == '\n' || c == '\r' || c < 0) {
+					if (inLine && isTree(prefix)) {
+						if (count == starts.length) {
+							starts = Arrays.copyOf(starts, count * 2);
+							ends = Arrays.copyOf(ends, count * 2);
+						}
+						starts[count] = lineStart;
+						ends[count] = pos;
+						if (headerLength < 0) {
+							headerLength = prefix.charAt(0) == '(' ? 0 : lineStart;
+						}
+						count++;
+					}
+					if (c < 0) {
+						break;
+					}
+					inLine = false;
+					prefix.setLength(0);
+					pos++;
+					lineStart = pos;
+					continue;
+				}
+				if (!inLine && Character.isWhitespace(c)) {
+					// leading white space is part of the line, but not of the prefix
+				} else {
+					inLine = true;
+					if (prefix.length() < 5) {
+						prefix.append(Character.toLowerCase((char) c));
+					}
+				}
+				pos++;
+			}
+		}
+		start = Arrays.copyOf(starts, count);
+		end = Arrays.copyOf(ends, count);
+		if (headerLength < 0) {
+			headerLength = 0;
+		}
+	}
+
+	private boolean isTree(StringBuilder prefix) {
+		return (prefix.length() >= 5 && prefix.substring(0, 5).equals("tree ")) ||
+				(prefix.length() > 0 && prefix.charAt(0) == '(');
+	}
+
+	private boolean load(File sidecar) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return false;
+			}
+			if (in.readLong() != treeFile.length() || in.readLong() != treeFile.lastModified()) {
+				// tree file changed since index was built
+				return false;
+			}
+			headerLength = in.readLong();
+			int count = in.readInt();
+			start = new long[count];
+			end = new long[count];
+			for (int i = 0; i < count; i++) {
+				start[i] = in.readLong();
+				end[i] = in.readLong();
+			}
+			return true;
+		} catch (IOException e) {
+			// corrupt or truncated index
+			return false;
+		}
+	}
+
+	/** write to a temporary file that replaces the sidecar atomically, so concurrent readers never see a partial index **/
+	private void save(File sidecar) throws IOException {
+		File tmp = File.createTempFile("index", ".tmp", sidecar.getAbsoluteFile().getParentFile());
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(treeFile.length());
+				out.writeLong(treeFile.lastModified());
+				out.writeLong(headerLength);
+				out.writeInt(start.length);
+				for (int i = 0; i < start.length; i++) {
+					out.writeLong(start[i]);
+					out.writeLong(end[i]);
+				}
+			}
+			try {
+				Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+}
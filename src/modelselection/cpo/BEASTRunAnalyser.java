@@ -60,10 +60,14 @@ public class BEASTRunAnalyser extends Runnable {
 		return mcmc;
 	}
 
+	/** tree file used by the tree set returned by getTreeSet **/
+	protected File treeFile;
+
 	protected TreeAnnotator.TreeSet getTreeSet(MCMC mcmc) throws IOException {
 		TreeAnnotator.TreeSet treeSet = null;
 		if (isSpecified(treeFileInput.get())) {
 			treeSet = new TreeAnnotator(). new MemoryFriendlyTreeSet(treeFileInput.get().getPath(), burninInput.get());		
+			treeFile = treeFileInput.get();
 		} else {
 			for (Logger logger : mcmc.loggersInput.get()) {
 				if (!logger.isLoggingToStdout() && logger.modeInput.get().equals(Logger.LOGMODE.tree)) {
@@ -71,6 +75,7 @@ public class BEASTRunAnalyser extends Runnable {
 						Log.warning("WARNING: multiple tree logs found in XML. Using the first one, but this will probably fail.");
 					} else {
 						treeSet = new TreeAnnotator().new MemoryFriendlyTreeSet(logger.fileNameInput.get(), burninInput.get());
+						treeFile = new File(logger.fileNameInput.get());
 					}
 				}
 			}
@@ -3,11 +3,22 @@ package modelselection.cpo;
 
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -42,9 +53,12 @@ import beast.base.util.Randomizer;
 import beast.base.parser.XMLParser;
 import beast.base.parser.XMLParserException;
 import modelselection.core.CPOLogger;
+import modelselection.core.PatternSubsample;
+import modelselection.core.TreeFileIndex;
 
 @Description("Calculate Conditional Predictive Ordinates (CPO), which is a leave one out cross validation measure of fit "
-		+ "as described in Lewis et al, Sys Bio, 2014, but adds bootstrap variance estimate as well.")	
+		+ "as described in Lewis et al, Sys Bio, 2014, but adds bootstrap variance estimate as well. "
+		+ "WAIC and Pareto smoothed importance sampling LOO (PSIS-LOO) are reported alongside.")
 // allows multiple partitions
 // limitations: assumes a single tree (so does not work with *BEAST)
 // not sure how to deal with continuous traits (e.g. geography)
@@ -54,6 +68,22 @@ public class CPOAnalyser extends BEASTRunAnalyser {
 
 	public Input<Integer> bootstrapLengthInput = new Input<>("bootstrapLength", "number of bootstrap samples used to calculate variance in CPO estimate" , 1000);
 
+	public Input<Long> seedInput = new Input<>("seed", "seed for drawing bootstrap replicates, so the variance estimate can be reproduced. "
+			+ "If not specified, a seed is drawn from the BEAST random number generator");
+	public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for bootstrapping and calculating the criteria", 1);
+	public Input<Integer> modelCopiesInput = new Input<>("modelCopies", "number of threads used for recalculating pattern log likelihoods "
+			+ "from the XML. Every thread parses its own copy of the model, alignment included, so memory grows with this number", 1);
+
+	public Input<Boolean> streamingInput = new Input<>("streaming", "read the CPO log row by row instead of loading it in memory, "
+			+ "so memory is linear in the number of patterns. Bootstrap replicates are calculated from a temporary binary copy "
+			+ "of the rows after burn-in, which is skipped if bootstrapLength < 2. Used with cpologFile, or when the XML "
+			+ "has to be run because no trace and tree logs are available", false);
+
+	public Input<String> matrixInput = new Input<>("matrix", "where to keep pattern log likelihoods from cpologFile: "
+			+ "heap keeps them in memory, mapped in a temporary memory mapped file laid out by pattern, so logs larger than "
+			+ "memory can be analysed, and auto uses mapped when the log is larger than a quarter of the maximum heap size", 
+			"auto", new String[]{"auto", "heap", "mapped"});
+
 	double EPSILON = 1e-6; // may need an input for this
 	
 	
@@ -70,73 +100,50 @@ public class CPOAnalyser extends BEASTRunAnalyser {
 			throw new IllegalArgumentException("burnin is a percentage and should not be less than 0 or larger than 100");
 		}
 		
+		if (streamingInput.get() && !isSpecified(xmlFileInput.get())) {
+			runStreaming(cpoLogFileInput.get());
+			return;
+		}
+
 		CPOTable cpoTable = null;
+		File cpoLogFile = null;
 		if (isSpecified(xmlFileInput.get())) {
 			cpoTable = getCPOTableFromXML();
 			if (cpoTable == null) {
+				if (streamingInput.get()) {
+					runStreaming(null);
+					return;
+				}
 				cpoTable = runXMLToGetCPOTable();
 			}
 		} else {
-			cpoTable = getCPOTableFromCPOLog(cpoLogFileInput.get());
+			cpoLogFile = cpoLogFileInput.get();
+			if (useMappedMatrix(cpoLogFile)) {
+				runMapped(cpoLogFile);
+				return;
+			}
+			cpoTable = getCPOTableFromCPOLog(cpoLogFile);
 		}
 		
 		double [][] patterLogProbs = cpoTable.patternLogProbs;
 		int [] weights = cpoTable.patternWeights;
-		int patternCount = patterLogProbs.length;
-		int treeCount = patterLogProbs[0].length;
-
-    	// precalc total log pseudomarginal likelihood (LPML) from siteProbs array
-  		// Part of Equation (14) in Lewis et al 2014
-    	double [] minLogP = new double[patternCount];
-		for (int i = 0; i < patternCount; i++) {
-			double min = patterLogProbs[i][0];
-			for (int k = 0; k < treeCount; k++) {
-    			min = Math.min(min, patterLogProbs[i][k]);
-    		}
-    		minLogP[i] = min;
-    	}
-    	
-		int [] order = new int[treeCount];
-		for (int i = 0; i < order.length; i++) {
-			order[i] = i;
-		}
-		double LPML = calcLPML(order, minLogP, cpoTable);
 
-  		Log.info("\nlog pseudomarginal likelihood (LPML) = " + LPML);
+    	// LPML, WAIC and PSIS-LOO from the same per pattern sums, patterns in parallel
+		PredictiveCriteria criteria = PredictiveCriteria.fromTable(patterLogProbs, weights, threadsInput.get());
+		criteria.report();
+		reportSubsample(cpoLogFile, criteria, weights);
+		double [] minLogP = criteria.minLogP;
     	
-    	Log.warning.println("Calculating variance of CPO");
-    	Log.warning.println("|---------|---------|---------|---------|---------|---------|---------|---------|");
-    	int siteCount = 0;
-    	for (int d : weights) {
-    		siteCount += d;
-    	}
-    	// maps site index to pattern index
-    	int [] siteMap = new int[siteCount];
-    	int k = 0;
-    	for (int i = 0; i < patternCount; i++) {
-    		for (int j = 0; j < weights[i]; j++) {
-    			siteMap[k++] = i;
-    		}
-    	}
-    	double reported = 0;
     	int replicates = bootstrapLengthInput.get();
-    	Log.warning.println(replicates + " replicates");
-    	k = 0;
-    	//Randomizer.setSeed(1237);
-    	double [] LPMLs = new double[replicates];
-    	while (k < replicates) {
-        	// calc CPO from subsample of siteProbs array
-			order = Randomizer.sampleIndicesWithReplacement(treeCount);
-    		LPMLs[k] = calcLPML(order, minLogP, cpoTable);
-    		
-			while (reported < k) {
-				Log.warning.print("*");
-				reported += replicates / 80;
-			}
-			k++;		
-		}
+    	Log.warning.println("Calculating variance of CPO from " + replicates + " bootstrap replicates");
+    	long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+    	double [] LPMLs = new CPOBootstrap(patterLogProbs, weights, minLogP).run(replicates, seed, threadsInput.get());
+
+    	summarise(LPMLs);
+	}
 
-    	// Summarise 
+	private void summarise(double [] LPMLs) {
+		int replicates = LPMLs.length;
     	double mean = 0;
         for (int i = 0; i < replicates; i++) {
             mean += LPMLs[i];
@@ -151,10 +158,98 @@ public class CPOAnalyser extends BEASTRunAnalyser {
         var /= (replicates - 1.0);
         double standardDeviation = Math.sqrt(var);
         Log.info("\nmean = " + mean + ", standardDeviation = " + standardDeviation);
+	}
 
+	/** LPML from a CPO log without loading the log in memory
+	 * @param cpoLogFile CPO log, or null to run the XML and accumulate rows as they are logged
+	 */
+	private void runStreaming(File cpoLogFile) throws Exception {
+		int replicates = bootstrapLengthInput.get();
+		File spillFile = null;
+		if (replicates > 1) {
+			spillFile = File.createTempFile("cpoSpill", ".bin");
+			spillFile.deleteOnExit();
+		}
+		try {
+			StreamingCPO cpo = new StreamingCPO(cpoLogFile, burninInput.get(), spillFile);
+			if (cpoLogFile != null) {
+				cpo.read();
+			} else {
+				runXML(cpo);
+			}
+			PredictiveCriteria criteria = cpo.getCriteria(threadsInput.get());
+			criteria.report();
+			reportSubsample(cpoLogFile, criteria, cpo.getPatternWeights());
+	  		if (spillFile == null) {
+	  			return;
+	  		}
+	    	Log.warning.println("Calculating variance of CPO from " + replicates + " bootstrap replicates");
+	    	long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+	    	// keep bootstrap sums within a quarter of the heap
+	    	long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+	    	summarise(cpo.bootstrap(replicates, seed, threadsInput.get(), memoryBudget));
+		} finally {
+			if (spillFile != null) {
+				spillFile.delete();
+			}
+		}
 	}
-		
+
+	/** extrapolate LPML to the full alignment if the CPO log only contains a subsample of patterns **/
+	private void reportSubsample(File cpoLogFile, PredictiveCriteria criteria, int [] weights) throws IOException {
+		if (cpoLogFile == null || isBinaryCPOLog(cpoLogFile)) {
+			return;
+		}
+		PatternSubsample subsample = PatternSubsample.read(cpoLogFile);
+		if (subsample == null) {
+			return;
+		}
+		double [] estimate = subsample.estimate(criteria.getCPO(), weights);
+		Log.info("\nCPO log contains " + weights.length + " of " + subsample.getPatternCount() + " patterns, so the above is for the subsample only");
+		Log.info("LPML of the full alignment estimated from the subsample = " + estimate[0] + " (subsampling standard error = " + estimate[1] + ")");
+	}
+
+	private boolean useMappedMatrix(File cpoLogFile) {
+		switch (matrixInput.get()) {
+		case "mapped":
+			return true;
+		case "heap":
+			return false;
+		default:
+			return cpoLogFile.length() > Runtime.getRuntime().maxMemory() / 4;
+		}
+	}
+
+	/** LPML, criteria and bootstrap from a CPO log copied to a memory mapped pattern matrix **/
+	private void runMapped(File cpoLogFile) throws Exception {
+		File matrixFile = File.createTempFile("cpoMatrix", ".bin");
+		matrixFile.deleteOnExit();
+		try {
+			// float logs are mapped as floats, so no precision is lost
+			MappedPatternMatrix matrix = new MappedPatternMatrix(matrixFile, StreamingCPO.bytesPerValue(cpoLogFile));
+			new StreamingCPO(cpoLogFile, burninInput.get(), null).read(matrix);
+			int [] weights = matrix.getPatternWeights();
+			PredictiveCriteria criteria = PredictiveCriteria.fromTable(matrix, weights, threadsInput.get());
+			criteria.report();
+			reportSubsample(cpoLogFile, criteria, weights);
+
+	    	int replicates = bootstrapLengthInput.get();
+	    	Log.warning.println("Calculating variance of CPO from " + replicates + " bootstrap replicates");
+	    	long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+	    	summarise(CPOBootstrap.runByPattern(matrix, weights, criteria.minLogP, replicates, seed, threadsInput.get()));
+		} finally {
+			matrixFile.delete();
+		}
+	}
+
 	private CPOTable runXMLToGetCPOTable() throws IOException, SAXException, ParserConfigurationException, XMLParserException {
+		CPOTable table = new CPOTable();
+		runXML(table);
+		return table;
+	}
+
+	/** run the MCMC analysis in the XML, pushing pattern log likelihoods after burn-in to sink **/
+	private void runXML(CPOLogger.Sink sink) throws IOException, SAXException, ParserConfigurationException, XMLParserException {
 		XMLParser parser = new XMLParser();
 		Runnable o = parser.parseFile(xmlFileInput.get());
 		if (!(o instanceof MCMC)) {
@@ -162,7 +257,6 @@ public class CPOAnalyser extends BEASTRunAnalyser {
 		}
 		MCMC mcmc = (MCMC) o;
 		mcmc.robustlyCalcPosterior(mcmc.posteriorInput.get());
-		File tmpFile = File.createTempFile("cpoLog","log");
 		Logger traceLog = null;
 		for (Logger logger : mcmc.loggersInput.get()) {
 			if (logger.fileNameInput.get() != null && logger.modeInput.get() != Logger.LOGMODE.tree) {
@@ -170,18 +264,16 @@ public class CPOAnalyser extends BEASTRunAnalyser {
 				break;
 			}
 		}
-		Logger cpoLogger = new CPOLogger();
-		cpoLogger.initByName("fileName", tmpFile.getAbsolutePath(), 
-				"logEvery", traceLog.everyInput.get(),
-				"mode", traceLog.modeInput.get(),
-				"sanitiseHeaders", traceLog.sanitiseHeadersInput
-				);
+		int logEvery = traceLog.everyInput.get();
+		CPOLogger cpoLogger = new CPOLogger();
+		cpoLogger.initByName("logEvery", logEvery,
+				"likelihood", getLikelihood(mcmc));
+		// samples 0, logEvery, ..., chainLength are logged
+		int rows = (int) (mcmc.chainLengthInput.get() / logEvery) + 1;
+		cpoLogger.setSink(sink, rows, burninInput.get());
 		mcmc.loggersInput.setValue(cpoLogger, mcmc);
 		mcmc.initAndValidate();
 		mcmc.run();
-		
-		CPOTable table = getCPOTableFromCPOLog(tmpFile);
-		return table;
 	}
 
 	private CPOTable getCPOTableFromCPOLog(File cpoLogFile) throws IOException {
@@ -190,7 +282,6 @@ public class CPOAnalyser extends BEASTRunAnalyser {
 		return table;
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public CPOTable getCPOTableFromXML() throws SAXException, IOException, ParserConfigurationException, XMLParserException {
 		// collect data
 		MCMC mcmc = getMCMC();
@@ -235,7 +326,6 @@ public class CPOAnalyser extends BEASTRunAnalyser {
     	List<StateNode> stateNodes = state.stateNodeInput.get();
     	List<Object> values = new ArrayList<>();
     	List<String> labels = tracelog.getLabels();
-    	Tree tree = null;
     	for (int i = 0; i < stateNodes.size(); i++) {
     		StateNode stateNode = stateNodes.get(i);
     		String id = stateNode.getID();
@@ -260,7 +350,6 @@ public class CPOAnalyser extends BEASTRunAnalyser {
     				values.add(null);
     			}
     		} else if (stateNodes.get(i) instanceof Tree) {
-    			tree = (Tree) stateNodes.get(i);
     			values.add(null);
     		} else {
     			int index = labels.indexOf(id);
@@ -277,14 +366,91 @@ public class CPOAnalyser extends BEASTRunAnalyser {
     		}
     	}
     	
-    	setUpBranchRateModel(likelihood);
-    	    	
-		Log.warning.println("Calculating total CPO");
+    	// one copy of the model per thread, so trees can be evaluated in parallel
+    	int threads = Math.max(1, Math.min(modelCopiesInput.get(), treeSetSize));
+    	BlockingQueue<CPOWorker> workers = new LinkedBlockingQueue<>();
+    	workers.add(new CPOWorker(mcmc, likelihood));
+    	for (int i = 1; i < threads; i++) {
+    		MCMC copy = getMCMC();
+    		workers.add(new CPOWorker(copy, getLikelihood(copy)));
+    	}
+    	
+		Log.warning.println("Calculating total CPO" + (threads > 1 ? " on " + threads + " threads" : ""));
     	Log.warning.println("|---------|---------|---------|---------|---------|---------|---------|---------|");
-    	k = 0;
-		int reported = 0;
-		treeSet.reset();
-    	while (treeSet.hasNext()) {
+    	ExecutorService pool = Executors.newFixedThreadPool(threads);
+    	// limits the number of trees parsed ahead of the workers
+    	Semaphore pending = new Semaphore(2 * threads);
+    	AtomicBoolean mismatch = new AtomicBoolean(false);
+    	List<Future<Void>> results = new ArrayList<>();
+    	try {
+	    	k = 0;
+			int reported = 0;
+			treeSet.reset();
+	    	while (treeSet.hasNext() && !mismatch.get()) {
+				Tree currentTree = treeSet.next();
+				final int sample = k;
+				pending.acquire();
+				results.add(pool.submit(() -> {
+					CPOWorker worker = workers.take();
+					try {
+						if (!worker.evaluate(sample, currentTree, values, likelihoods[sample], patterLogProbs)) {
+							mismatch.set(true);
+						}
+					} finally {
+						workers.put(worker);
+						pending.release();
+					}
+					return null;
+				}));
+						
+				while (reported - k < 0) {
+					Log.warning.print("*");
+					reported += 1 + treeSetSize / 86;
+				}
+				k++;		
+			}
+	    	for (Future<Void> f : results) {
+	    		// rethrows any exception of the task
+	    		f.get();
+	    	}
+    	} catch (InterruptedException | ExecutionException e) {
+    		throw new RuntimeException(e);
+    	} finally {
+    		pool.shutdown();
+    	}
+    	if (mismatch.get()) {
+			Log.warning("Giving up site probablity reconstruction from XML & log files.");
+			return null;
+    	}
+
+    	return cpoTable;
+	}
+
+	/** model from the XML, used by one thread to calculate pattern log likelihoods for trees in the tree set **/
+	class CPOWorker {
+		final MCMC mcmc;
+		final CompoundDistribution likelihood;
+		final List<StateNode> stateNodes;
+		Tree tree;
+
+		CPOWorker(MCMC mcmc, CompoundDistribution likelihood) {
+			this.mcmc = mcmc;
+			this.likelihood = likelihood;
+			stateNodes = mcmc.startStateInput.get().stateNodeInput.get();
+			for (StateNode stateNode : stateNodes) {
+				if (stateNode instanceof Tree) {
+					tree = (Tree) stateNode;
+				}
+			}
+	    	setUpBranchRateModel(likelihood);
+		}
+
+		/** 
+		 * set up state for sample k, and fill in column k of patterLogProbs
+		 * @return false if the likelihood differs from the one in the trace log
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		boolean evaluate(int k, Tree currentTree, List<Object> values, double loggedLikelihood, double [][] patterLogProbs) {
 			// set up the state
     		for (int i = 0; i < stateNodes.size(); i++) {
     			if (values.get(i) != null) {
@@ -301,13 +467,12 @@ public class CPOAnalyser extends BEASTRunAnalyser {
     				}
     			}
     		}
-			Tree currentTree = treeSet.next();
 			//TreeParser p = new TreeParser(tree.getTaxonset().asStringList(), newick, 0, false);
 			tree.assignFrom(currentTree);
 
 			// calc likelihood
 			mcmc.robustlyCalcPosterior(mcmc.posteriorInput.get());
-			// grab site probabilities from treelikelihoods
+			// grab site probabilities from treelikelihoods, workers write disjoint columns
 			int i = 0;
 	    	for (Distribution d : likelihood.pDistributions.get()) {
 	    		if (d instanceof TreeLikelihood) {
@@ -326,26 +491,21 @@ public class CPOAnalyser extends BEASTRunAnalyser {
 
 	    	}
 			double lastLikelihood  = likelihood.getCurrentLogP();
-			if (Math.abs(lastLikelihood - likelihoods[k]) > EPSILON) {
-				Log.warning("The difference between calculated likelihood and likelihood in log file is " + (lastLikelihood - likelihoods[k]) + 
-						" larger than " + EPSILON + ". This indicates that the state cannot be restored reliably from the log files." +
-						" Giving up site probablity reconstruction from XML & log files.");
-				return null;
-			}
-					
-			while (reported - k < 0) {
-				Log.warning.print("*");
-				reported += 1 + treeSetSize / 86;
+			if (Math.abs(lastLikelihood - loggedLikelihood) > EPSILON) {
+				Log.warning("The difference between calculated likelihood and likelihood in log file is " + (lastLikelihood - loggedLikelihood) + 
+						" for sample " + k + ", which is larger than " + EPSILON + ". This indicates that the state cannot be restored reliably from the log files.");
+				return false;
 			}
-			k++;		
+			return true;
 		}
-
-    	return cpoTable;
 	}
 
 
 
 	private int treeSetSize(TreeSet treeSet) throws IOException {
+		if (treeFile != null) {
+			return TreeFileIndex.get(treeFile).getTreeCount(burninInput.get());
+		}
 		int size = 0;
 		treeSet.reset();
     	while (treeSet.hasNext()) {
@@ -419,17 +579,67 @@ public class CPOAnalyser extends BEASTRunAnalyser {
 		public void setTree(Tree tree) {this.tree = tree;}
 	}
 	
+	/** true if file starts with the magic number of binary CPO logs **/
+	static boolean isBinaryCPOLog(File file) throws IOException {
+		if (file.length() < 4) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		int magic = in.readInt();
+		in.close();
+		return magic == CPOLogger.BINARY_MAGIC;
+	}
+
 	@Description("Class containing CPO read from a log file")
 	public
-	class CPOTable {
+	class CPOTable implements CPOLogger.Sink {
 		double [][] patternLogProbs;
 		int [] patternWeights;
+		/** number of rows received as sink **/
+		int rows;
+		
+		@Override
+		public void start(int [] patternWeights, int rows) {
+			this.patternWeights = patternWeights;
+			patternLogProbs = new double[patternWeights.length][Math.max(1, rows)];
+			this.rows = 0;
+		}
+		
+		@Override
+		public void add(double [] logP) {
+			if (rows == patternLogProbs[0].length) {
+				// more rows than expected
+				for (int i = 0; i < logP.length; i++) {
+					patternLogProbs[i] = Arrays.copyOf(patternLogProbs[i], rows * 2);
+				}
+			}
+			for (int i = 0; i < logP.length; i++) {
+				patternLogProbs[i][rows] = logP[i];
+			}
+			rows++;
+		}
+		
+		@Override
+		public void finish() {
+			if (rows == 0) {
+				throw new IllegalArgumentException("No samples left after burn-in");
+			}
+			if (rows < patternLogProbs[0].length) {
+				for (int i = 0; i < patternLogProbs.length; i++) {
+					patternLogProbs[i] = Arrays.copyOf(patternLogProbs[i], rows);
+				}
+			}
+		}
 		
 		
 		// expects file to be a file where the first line contain patternweights in this format:
 		// #weights 32 12 32 1 3 4 5 ...
 		// and the remainder a standard BEAST log file
 		void readFromCPOLog(File file) throws IOException {
+			if (isBinaryCPOLog(file)) {
+				readFromBinaryCPOLog(file);
+				return;
+			}
 			LogAnalyser cpoLog = new LogAnalyser(file.getAbsolutePath(), burninInput.get(), false, false);
 			patternLogProbs = new double [cpoLog.getLabels().size()][cpoLog.getTrace(0).length];
 			for (int i = 0; i < patternLogProbs.length; i++) {
@@ -452,6 +662,11 @@ public class CPOAnalyser extends BEASTRunAnalyser {
 	        }
 	    }
 		
+		/** read log written by CPOLogger in binary mode, inflating only blocks after burn-in **/
+		void readFromBinaryCPOLog(File file) throws IOException {
+			new StreamingCPO(file, burninInput.get(), null).read(this);
+		}
+		
 		@Override
 		public boolean equals(Object o) {
 			if (!(o instanceof CPOTable)) {
@@ -0,0 +1,204 @@
+package modelselection.cpo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bootstrap of the log pseudomarginal likelihood (LPML) over the trees of a CPO table.
+ * The terms exp(minLogP[i] - logP[i][k]) of equation (14) in Lewis et al 2014 are calculated
+ * once, after which a bootstrap replicate is a multinomial count for every tree, and the
+ * replicate LPML only requires a weighted sum and a log per pattern.
+ * Replicates run in parallel, each with its own random stream split off a generator seeded
+ * with the given seed, so results only depend on the seed and not on the number of threads.
+ */
+public class CPOBootstrap {
+	/** expTerms[i][k] = exp(minLogP[i] - patternLogProbs[i][k]) **/
+	final double [][] expTerms;
+	final double [] minLogP;
+	final int [] patternWeights;
+	final int treeCount;
+
+	public CPOBootstrap(double [][] patternLogProbs, int [] patternWeights, double [] minLogP) {
+		this.minLogP = minLogP;
+		this.patternWeights = patternWeights;
+		int patternCount = patternLogProbs.length;
+		treeCount = patternLogProbs[0].length;
+		expTerms = new double[patternCount][treeCount];
+		for (int i = 0; i < patternCount; i++) {
+			double [] p = patternLogProbs[i];
+			double [] e = expTerms[i];
+			for (int k = 0; k < treeCount; k++) {
+				e[k] = Math.exp(minLogP[i] - p[k]);
+			}
+		}
+	}
+
+	/** @return LPML of each of the replicates **/
+	public double [] run(int replicates, long seed, int threads) throws Exception {
+		double [] LPMLs = new double[replicates];
+		SplittableRandom [] random = new SplittableRandom[replicates];
+		SplittableRandom root = new SplittableRandom(seed);
+		for (int r = 0; r < replicates; r++) {
+			random[r] = root.split();
+		}
+
+		threads = Math.max(1, Math.min(threads, replicates));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int from = t * replicates / threads;
+				final int to = (t + 1) * replicates / threads;
+				tasks.add(() -> {
+					// per thread buffers, reused for every replicate
+					int [] counts = new int[treeCount];
+					int [] trees = new int[treeCount];
+					for (int r = from; r < to; r++) {
+						LPMLs[r] = replicate(random[r], counts, trees);
+					}
+					return null;
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				// rethrows any exception of the task
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return LPMLs;
+	}
+
+	/**
+	 * Bootstrap over a pattern matrix that may not fit in memory, such as a MappedPatternMatrix.
+	 * Instead of precalculating all terms, every row is read once and its terms are added to
+	 * all replicates. Replicates draw the same trees as run() does for the same seed, so results
+	 * are the same up to the order in which patterns are summed.
+	 * @return LPML of each of the replicates
+	 */
+	public static double [] runByPattern(PatternMatrix matrix, int [] patternWeights, double [] minLogP,
+			int replicates, long seed, int threads) throws Exception {
+		int patternCount = matrix.getPatternCount();
+		int treeCount = matrix.getTreeCount();
+		// trees drawn by each replicate, with their multiplicity
+		int [][] trees = new int[replicates][];
+		int [][] counts = new int[replicates][];
+		drawTrees(treeCount, seed, trees, counts);
+
+		// fixed chunks of patterns, summed in order, so results do not depend on the number of threads
+		int chunks = Math.min(patternCount, 64);
+		double [][] partial = new double[chunks][replicates];
+		double logTreeCount = Math.log(treeCount);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks)));
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int c = 0; c < chunks; c++) {
+				final int from = c * patternCount / chunks;
+				final int to = (c + 1) * patternCount / chunks;
+				final double [] LPML = partial[c];
+				tasks.add(() -> {
+					double [] buffer = new double[treeCount];
+					double [] e = new double[treeCount];
+					for (int i = from; i < to; i++) {
+						double [] p = matrix.getRow(i, buffer);
+						for (int k = 0; k < treeCount; k++) {
+							e[k] = Math.exp(minLogP[i] - p[k]);
+						}
+						for (int r = 0; r < replicates; r++) {
+							int [] t = trees[r];
+							int [] n = counts[r];
+							double sum = 0;
+							for (int j = 0; j < t.length; j++) {
+								sum += n[j] * e[t[j]];
+							}
+							// Equations (14) and (15) in Lewis et al 2014
+							LPML[r] += (logTreeCount + minLogP[i] - Math.log(sum)) * patternWeights[i];
+						}
+					}
+					return null;
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		double [] LPMLs = new double[replicates];
+		for (int c = 0; c < chunks; c++) {
+			for (int r = 0; r < replicates; r++) {
+				LPMLs[r] += partial[c][r];
+			}
+		}
+		return LPMLs;
+	}
+
+	/**
+	 * Draw trees with replacement for every replicate, the same way as run() does.
+	 * @param trees filled with the indices of the trees drawn by each replicate, in increasing order
+	 * @param counts filled with the number of times each of these trees was drawn
+	 */
+	static void drawTrees(int treeCount, long seed, int [][] trees, int [][] counts) {
+		SplittableRandom root = new SplittableRandom(seed);
+		int [] count = new int[treeCount];
+		for (int r = 0; r < trees.length; r++) {
+			SplittableRandom random = root.split();
+			Arrays.fill(count, 0);
+			for (int k = 0; k < treeCount; k++) {
+				count[random.nextInt(treeCount)]++;
+			}
+			int drawn = 0;
+			for (int k = 0; k < treeCount; k++) {
+				if (count[k] > 0) {
+					drawn++;
+				}
+			}
+			trees[r] = new int[drawn];
+			counts[r] = new int[drawn];
+			drawn = 0;
+			for (int k = 0; k < treeCount; k++) {
+				if (count[k] > 0) {
+					trees[r][drawn] = k;
+					counts[r][drawn++] = count[k];
+				}
+			}
+		}
+	}
+
+	/** LPML of a single replicate, trees drawn with replacement **/
+	double replicate(SplittableRandom random, int [] counts, int [] trees) {
+		for (int k = 0; k < treeCount; k++) {
+			counts[k] = 0;
+		}
+		for (int k = 0; k < treeCount; k++) {
+			counts[random.nextInt(treeCount)]++;
+		}
+		// only visit trees that were drawn
+		int drawn = 0;
+		for (int k = 0; k < treeCount; k++) {
+			if (counts[k] > 0) {
+				trees[drawn++] = k;
+			}
+		}
+
+		double logTreeCount = Math.log(treeCount);
+		double LPML = 0;
+		for (int i = 0; i < expTerms.length; i++) {
+			double [] e = expTerms[i];
+			double sum = 0;
+			for (int j = 0; j < drawn; j++) {
+				int k = trees[j];
+				sum += counts[k] * e[k];
+			}
+			// Equations (14) and (15) in Lewis et al 2014
+			LPML += (logTreeCount + minLogP[i] - Math.log(sum)) * patternWeights[i];
+		}
+		return LPML;
+	}
+}
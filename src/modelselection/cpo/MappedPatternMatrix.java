@@ -0,0 +1,151 @@
+package modelselection.cpo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import modelselection.core.CPOLogger;
+
+/**
+ * Pattern log probabilities in a memory mapped file, laid out by pattern, so the matrix
+ * can be larger than the heap and rows are read sequentially. Values are stored as floats
+ * or doubles. The matrix is filled as a CPOLogger sink: rows of the log are collected in
+ * a small block, which is written one pattern at a time.
+ */
+public class MappedPatternMatrix implements PatternMatrix, CPOLogger.Sink {
+	/** size of block of rows buffered before writing, in bytes **/
+	final static int BLOCK_BYTES = 1 << 24;
+
+	final File file;
+	final int bytesPerValue;
+
+	int [] patternWeights;
+	int patternCount;
+	/** number of trees a row has room for, and number of trees filled so far **/
+	int capacity, treeCount;
+	/** segments of at most 2GB, each containing patternsPerSegment complete rows **/
+	MappedByteBuffer [] segments;
+	int patternsPerSegment;
+
+	/** block[i][r] = log probability of pattern i for the r-th buffered tree **/
+	double [][] block;
+	int blockRows;
+
+	/**
+	 * @param file file to map, which is overwritten
+	 * @param bytesPerValue 4 for float or 8 for double precision
+	 */
+	public MappedPatternMatrix(File file, int bytesPerValue) {
+		if (bytesPerValue != 4 && bytesPerValue != 8) {
+			throw new IllegalArgumentException("bytesPerValue should be 4 or 8, not " + bytesPerValue);
+		}
+		this.file = file;
+		this.bytesPerValue = bytesPerValue;
+	}
+
+	@Override
+	public void start(int [] patternWeights, int rows) throws IOException {
+		this.patternWeights = patternWeights;
+		patternCount = patternWeights.length;
+		capacity = Math.max(1, rows);
+		treeCount = 0;
+		long rowBytes = (long) capacity * bytesPerValue;
+		if (rowBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many trees (" + rows + ") to map a pattern");
+		}
+		patternsPerSegment = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+		segments = new MappedByteBuffer[(patternCount + patternsPerSegment - 1) / patternsPerSegment];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(patternCount * rowBytes);
+			FileChannel channel = raf.getChannel();
+			for (int s = 0; s < segments.length; s++) {
+				int patterns = Math.min(patternsPerSegment, patternCount - s * patternsPerSegment);
+				segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, s * patternsPerSegment * rowBytes, patterns * rowBytes);
+				segments[s].order(ByteOrder.nativeOrder());
+			}
+		}
+		int blockSize = (int) Math.max(1, Math.min(capacity, BLOCK_BYTES / (8L * patternCount)));
+		block = new double[patternCount][blockSize];
+		blockRows = 0;
+	}
+
+	@Override
+	public void add(double [] logP) throws IOException {
+		if (treeCount + blockRows == capacity) {
+			throw new IllegalArgumentException("More rows than the " + capacity + " the pattern matrix was created for");
+		}
+		for (int i = 0; i < patternCount; i++) {
+			block[i][blockRows] = logP[i];
+		}
+		blockRows++;
+		if (blockRows == block[0].length) {
+			flushBlock();
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		flushBlock();
+		block = null;
+		if (treeCount == 0) {
+			throw new IllegalArgumentException("No samples left after burn-in");
+		}
+	}
+
+	/** write buffered rows, one pattern at a time **/
+	private void flushBlock() {
+		for (int i = 0; i < patternCount; i++) {
+			ByteBuffer segment = segments[i / patternsPerSegment];
+			int offset = offset(i) + treeCount * bytesPerValue;
+			double [] values = block[i];
+			for (int r = 0; r < blockRows; r++) {
+				if (bytesPerValue == 8) {
+					segment.putDouble(offset + r * 8, values[r]);
+				} else {
+					segment.putFloat(offset + r * 4, (float) values[r]);
+				}
+			}
+		}
+		treeCount += blockRows;
+		blockRows = 0;
+	}
+
+	/** @return byte offset of row i in its segment **/
+	private int offset(int i) {
+		return (i % patternsPerSegment) * capacity * bytesPerValue;
+	}
+
+	@Override
+	public int getPatternCount() {
+		return patternCount;
+	}
+
+	@Override
+	public int getTreeCount() {
+		return treeCount;
+	}
+
+	public int [] getPatternWeights() {
+		return patternWeights;
+	}
+
+	@Override
+	public double [] getRow(int i, double [] buffer) {
+		// duplicate, so threads do not share the buffer position
+		ByteBuffer segment = segments[i / patternsPerSegment].duplicate().order(ByteOrder.nativeOrder());
+		int offset = offset(i);
+		if (bytesPerValue == 8) {
+			segment.position(offset);
+			segment.asDoubleBuffer().get(buffer, 0, treeCount);
+		} else {
+			for (int k = 0; k < treeCount; k++) {
+				buffer[k] = segment.getFloat(offset + k * 4);
+			}
+		}
+		return buffer;
+	}
+}
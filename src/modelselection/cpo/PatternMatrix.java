@@ -0,0 +1,39 @@
+package modelselection.cpo;
+
+/**
+ * Pattern log probabilities, one row of tree samples per pattern.
+ * Rows are either kept on the heap, or in a memory mapped file (see MappedPatternMatrix).
+ */
+public interface PatternMatrix {
+
+	int getPatternCount();
+
+	int getTreeCount();
+
+	/**
+	 * @param buffer array of length getTreeCount() that may be filled with the row and returned,
+	 * so every thread should use its own buffer
+	 * @return log probabilities of pattern i for all trees, which should not be modified
+	 */
+	double [] getRow(int i, double [] buffer);
+
+	/** matrix backed by a heap array of rows, which are returned without copying **/
+	static PatternMatrix of(double [][] patternLogProbs) {
+		return new PatternMatrix() {
+			@Override
+			public int getPatternCount() {
+				return patternLogProbs.length;
+			}
+
+			@Override
+			public int getTreeCount() {
+				return patternLogProbs[0].length;
+			}
+
+			@Override
+			public double [] getRow(int i, double [] buffer) {
+				return patternLogProbs[i];
+			}
+		};
+	}
+}
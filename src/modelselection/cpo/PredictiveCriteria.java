@@ -0,0 +1,331 @@
+package modelselection.cpo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.base.core.Log;
+
+/**
+ * Leave-one-out predictive criteria from pattern log likelihoods:
+ * log pseudomarginal likelihood (LPML, Lewis et al 2014),
+ * widely applicable information criterion (WAIC, Watanabe 2010), and
+ * Pareto smoothed importance sampling LOO (PSIS-LOO, Vehtari, Gelman and Gabry 2017).
+ *
+ * All criteria are calculated from a few sums per pattern plus the smallest log likelihoods
+ * of the pattern (the largest importance ratios), which form the tail that is smoothed by PSIS.
+ * These can be collected from a CPO table or while streaming a CPO log.
+ * Per pattern criteria are then calculated in parallel.
+ */
+public class PredictiveCriteria {
+	/** sample count, and pattern weights **/
+	final int treeCount;
+	final int [] patternWeights;
+
+	// per pattern sums
+	/** minimum log likelihood, and sum of exp(minLogP - logP) **/
+	final double [] minLogP, scaledSum;
+	/** maximum log likelihood, and sum of exp(logP - maxLogP) **/
+	final double [] maxLogP, scaledSumP;
+	/** variance of the log likelihood **/
+	final double [] varLogP;
+	/** smallest tailLength + 1 log likelihoods of each pattern, in increasing order **/
+	final double [][] tail;
+
+	// per pattern results
+	double [] cpo, lppd, elpdLoo, khat;
+
+	/** number of samples in the tail smoothed by PSIS, as in the loo package **/
+	public static int tailLength(int treeCount) {
+		return (int) Math.ceil(Math.min(0.2 * treeCount, 3 * Math.sqrt(treeCount)));
+	}
+
+	PredictiveCriteria(int treeCount, int [] patternWeights, double [] minLogP, double [] scaledSum,
+			double [] maxLogP, double [] scaledSumP, double [] varLogP, double [][] tail) {
+		this.treeCount = treeCount;
+		this.patternWeights = patternWeights;
+		this.minLogP = minLogP;
+		this.scaledSum = scaledSum;
+		this.maxLogP = maxLogP;
+		this.scaledSumP = scaledSumP;
+		this.varLogP = varLogP;
+		this.tail = tail;
+	}
+
+	/** collect sums from a CPO table and calculate criteria **/
+	public static PredictiveCriteria fromTable(double [][] patternLogProbs, int [] patternWeights, int threads) throws Exception {
+		return fromTable(PatternMatrix.of(patternLogProbs), patternWeights, threads);
+	}
+
+	/** collect sums from the rows of a pattern matrix, in one pass, and calculate criteria **/
+	public static PredictiveCriteria fromTable(PatternMatrix matrix, int [] patternWeights, int threads) throws Exception {
+		int patternCount = matrix.getPatternCount();
+		int treeCount = matrix.getTreeCount();
+		ThreadLocal<double []> buffer = ThreadLocal.withInitial(() -> new double[treeCount]);
+		int tailLength = tailLength(treeCount);
+		PredictiveCriteria criteria = new PredictiveCriteria(treeCount, patternWeights,
+				new double[patternCount], new double[patternCount],
+				new double[patternCount], new double[patternCount], new double[patternCount],
+				new double[patternCount][]);
+		forAllPatterns(patternCount, threads, i -> {
+			double [] p = matrix.getRow(i, buffer.get());
+			double min = p[0], max = p[0], mean = 0, m2 = 0;
+			for (int k = 0; k < treeCount; k++) {
+				min = Math.min(min, p[k]);
+				max = Math.max(max, p[k]);
+				double delta = p[k] - mean;
+				mean += delta / (k + 1);
+				m2 += delta * (p[k] - mean);
+			}
+			double sum = 0, sumP = 0;
+			for (int k = 0; k < treeCount; k++) {
+				sum += Math.exp(min - p[k]);
+				sumP += Math.exp(p[k] - max);
+			}
+			criteria.minLogP[i] = min;
+			criteria.scaledSum[i] = sum;
+			criteria.maxLogP[i] = max;
+			criteria.scaledSumP[i] = sumP;
+			criteria.varLogP[i] = treeCount > 1 ? m2 / (treeCount - 1) : 0;
+			double [] sorted = p.clone();
+			Arrays.sort(sorted);
+			criteria.tail[i] = Arrays.copyOf(sorted, Math.min(treeCount, tailLength + 1));
+		});
+		criteria.calculate(threads);
+		return criteria;
+	}
+
+	interface PatternTask {
+		void run(int pattern);
+	}
+
+	/** run task for all patterns, each thread handling a contiguous range of patterns **/
+	static void forAllPatterns(int patternCount, int threads, PatternTask task) throws Exception {
+		threads = Math.max(1, Math.min(threads, patternCount));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int from = t * patternCount / threads;
+				final int to = (t + 1) * patternCount / threads;
+				tasks.add(() -> {
+					for (int i = from; i < to; i++) {
+						task.run(i);
+					}
+					return null;
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				// rethrows any exception of the task
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** calculate per pattern criteria from the sums **/
+	void calculate(int threads) throws Exception {
+		int patternCount = minLogP.length;
+		cpo = new double[patternCount];
+		lppd = new double[patternCount];
+		elpdLoo = new double[patternCount];
+		khat = new double[patternCount];
+		double logTreeCount = Math.log(treeCount);
+		forAllPatterns(patternCount, threads, i -> {
+			// Equation (14) in Lewis et al 2014
+			cpo[i] = logTreeCount + minLogP[i] - Math.log(scaledSum[i]);
+			lppd[i] = maxLogP[i] + Math.log(scaledSumP[i]) - logTreeCount;
+			psis(i);
+		});
+	}
+
+	/**
+	 * PSIS estimate of the leave-one-out predictive density of pattern i. Importance ratios
+	 * exp(minLogP - logP) of the tail (the smallest log likelihoods) are replaced by expected order
+	 * statistics of a generalised Pareto distribution fitted to the tail. Other ratios are
+	 * used as is, so only the sum of all ratios and the tail itself are required.
+	 */
+	void psis(int i) {
+		double [] tail = this.tail[i];
+		int tailLength = tail.length - 1;
+		double min = minLogP[i];
+		if (tailLength < 5) {
+			// too few samples to fit a tail, use raw importance ratios
+			khat[i] = Double.POSITIVE_INFINITY;
+			elpdLoo[i] = cpo[i];
+			return;
+		}
+		// tail[0] is the smallest log likelihood, so the largest ratio,
+		// tail[tailLength] is the largest ratio not in the tail
+		double cutoff = Math.exp(min - tail[tailLength]);
+		double [] x = new double[tailLength];
+		for (int j = 0; j < tailLength; j++) {
+			// exceedances in increasing order
+			x[j] = Math.exp(min - tail[tailLength - 1 - j]) - cutoff;
+		}
+		double [] fit = gpdfit(x);
+		double k = fit[0], sigma = fit[1];
+		khat[i] = k;
+		if (Double.isNaN(k) || Double.isInfinite(k) || sigma <= 0) {
+			elpdLoo[i] = cpo[i];
+			return;
+		}
+		double tailRaw = 0, tailSmoothed = 0, tailWeightedP = 0;
+		for (int j = 0; j < tailLength; j++) {
+			double logP = tail[tailLength - 1 - j];
+			double raw = Math.exp(min - logP);
+			double smoothed = cutoff + qgpd((j + 0.5) / tailLength, k, sigma);
+			// truncate at the largest raw ratio, which is 1 by definition of minLogP
+			smoothed = Math.min(smoothed, 1.0);
+			tailRaw += raw;
+			tailSmoothed += smoothed;
+			tailWeightedP += smoothed * Math.exp(logP - min);
+		}
+		// sum of w exp(logP) / sum of w, with w = raw ratio outside the tail,
+		// for which w exp(logP) = exp(minLogP)
+		double numerator = (treeCount - tailLength) + tailWeightedP;
+		double denominator = scaledSum[i] - tailRaw + tailSmoothed;
+		elpdLoo[i] = min + Math.log(numerator) - Math.log(denominator);
+	}
+
+	/** quantile function of generalised Pareto distribution with location 0 **/
+	static double qgpd(double p, double k, double sigma) {
+		if (Math.abs(k) < 1e-12) {
+			return -sigma * Math.log1p(-p);
+		}
+		return sigma * Math.expm1(-k * Math.log1p(-p)) / k;
+	}
+
+	/**
+	 * Estimate shape k and scale sigma of a generalised Pareto distribution
+	 * for exceedances x, sorted in increasing order, using the empirical Bayes method of
+	 * Zhang and Stephens (2009), with the weakly informative prior on k used by the loo package.
+	 * @return {k, sigma}
+	 */
+	static double [] gpdfit(double [] x) {
+		int n = x.length;
+		double prior = 3;
+		int m = 30 + (int) Math.sqrt(n);
+		double xstar = x[(int) (n / 4.0 + 0.5) - 1];
+		double [] theta = new double[m];
+		double [] logLik = new double[m];
+		double maxLogLik = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < m; j++) {
+			theta[j] = 1.0 / x[n - 1] + (1 - Math.sqrt(m / (j + 0.5))) / prior / xstar;
+			// profile log likelihood
+			double k = 0;
+			for (double xi : x) {
+				k += Math.log1p(-theta[j] * xi);
+			}
+			k /= n;
+			logLik[j] = n * (Math.log(-theta[j] / k) - k - 1);
+			if (Double.isNaN(logLik[j])) {
+				logLik[j] = Double.NEGATIVE_INFINITY;
+			}
+			maxLogLik = Math.max(maxLogLik, logLik[j]);
+		}
+		double sumW = 0, thetaHat = 0;
+		for (int j = 0; j < m; j++) {
+			double w = Math.exp(logLik[j] - maxLogLik);
+			sumW += w;
+			thetaHat += theta[j] * w;
+		}
+		thetaHat /= sumW;
+		double k = 0;
+		for (double xi : x) {
+			k += Math.log1p(-thetaHat * xi);
+		}
+		k /= n;
+		double sigma = -k / thetaHat;
+		// shrink towards 0.5 for small tails
+		k = (n * k + 10 * 0.5) / (n + 10);
+		return new double[] {k, sigma};
+	}
+
+	public double getLPML() {
+		double LPML = 0;
+		for (int i = 0; i < cpo.length; i++) {
+			// Equation (15) in Lewis et al 2014
+			LPML += cpo[i] * patternWeights[i];
+		}
+		return LPML;
+	}
+
+	/** expected log pointwise predictive density estimated by WAIC **/
+	public double getElpdWAIC() {
+		double elpd = 0;
+		for (int i = 0; i < lppd.length; i++) {
+			elpd += (lppd[i] - varLogP[i]) * patternWeights[i];
+		}
+		return elpd;
+	}
+
+	/** effective number of parameters of WAIC **/
+	public double getPWAIC() {
+		double p = 0;
+		for (int i = 0; i < varLogP.length; i++) {
+			p += varLogP[i] * patternWeights[i];
+		}
+		return p;
+	}
+
+	public double getWAIC() {
+		return -2 * getElpdWAIC();
+	}
+
+	/** expected log pointwise predictive density estimated by PSIS-LOO **/
+	public double getElpdLoo() {
+		double elpd = 0;
+		for (int i = 0; i < elpdLoo.length; i++) {
+			elpd += elpdLoo[i] * patternWeights[i];
+		}
+		return elpd;
+	}
+
+	/** effective number of parameters of PSIS-LOO **/
+	public double getPLoo() {
+		double lppdTotal = 0;
+		for (int i = 0; i < lppd.length; i++) {
+			lppdTotal += lppd[i] * patternWeights[i];
+		}
+		return lppdTotal - getElpdLoo();
+	}
+
+	public double getLOOIC() {
+		return -2 * getElpdLoo();
+	}
+
+	/** Pareto k estimates per pattern **/
+	public double [] getParetoK() {
+		return khat;
+	}
+
+	/** log predictive densities per pattern **/
+	public double [] getCPO() {
+		return cpo;
+	}
+
+	public void report() {
+		int bad = 0, veryBad = 0, sites = 0;
+		for (int i = 0; i < khat.length; i++) {
+			sites += patternWeights[i];
+			if (khat[i] > 1.0) {
+				veryBad += patternWeights[i];
+			} else if (khat[i] > 0.7) {
+				bad += patternWeights[i];
+			}
+		}
+		Log.info("\nlog pseudomarginal likelihood (LPML) = " + getLPML());
+		Log.info("WAIC = " + getWAIC() + " (elpd_waic = " + getElpdWAIC() + ", p_waic = " + getPWAIC() + ")");
+		Log.info("PSIS-LOO IC = " + getLOOIC() + " (elpd_loo = " + getElpdLoo() + ", p_loo = " + getPLoo() + ")");
+		if (bad + veryBad > 0) {
+			Log.warning.println("Pareto k diagnostic: " + bad + " of " + sites + " sites have 0.7 < k <= 1 and " + veryBad +
+					" have k > 1, so PSIS-LOO estimates for these sites are unreliable.");
+		}
+	}
+}
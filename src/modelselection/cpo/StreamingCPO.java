@@ -0,0 +1,472 @@
+package modelselection.cpo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.InflaterInputStream;
+
+import modelselection.core.CPOLogger;
+
+/**
+ * Calculates the log pseudomarginal likelihood (LPML) from a CPO log in a single pass
+ * without keeping the pattern log probabilities in memory. For every pattern, a running
+ * minimum of the log probability and the sum of exp(min - logP) relative to that minimum
+ * are kept, so memory is linear in the number of patterns.
+ * The sums needed for WAIC and the smallest log probabilities needed for PSIS-LOO
+ * (about 3 sqrt(n) values per pattern for n rows) are collected in the same pass.
+ * Rows are read from a CPO log, or received directly from a CPOLogger as its sink.
+ * Optionally, rows after burn-in are spilled to a binary file, from which bootstrap
+ * replicates can be calculated in passes over the file, giving the same replicates
+ * as CPOBootstrap for the same seed.
+ */
+public class StreamingCPO implements CPOLogger.Sink {
+	final File cpoLog;
+	final int burninPercentage;
+	final File spillFile;
+
+	int [] patternWeights;
+	double [] minLogP;
+	double [] scaledSum;
+	int treeCount;
+	// sums for WAIC: maximum log probability, sum of exp(logP - max), and running mean and squared deviations
+	double [] maxLogP, scaledSumP, mean, m2;
+	/** max-heap of the smallest log probabilities of each pattern, the tail smoothed by PSIS-LOO **/
+	double [][] tail;
+	int tailSize;
+	DataOutputStream spill;
+	/** 4 or 8 for binary CPO logs **/
+	int bytesPerValue;
+	/** size of the blocks of spilled rows read at a time by bootstrap **/
+	final static int BOOTSTRAP_BLOCK_BYTES = 1 << 24;
+
+	/**
+	 * @param cpoLog log produced by CPOLogger, or null if rows are pushed by a CPOLogger through the Sink interface
+	 * @param burninPercentage percentage of rows to discard
+	 * @param spillFile file to write rows after burn-in to for bootstrapping, or null if no bootstrap is required
+	 */
+	public StreamingCPO(File cpoLog, int burninPercentage, File spillFile) {
+		this.cpoLog = cpoLog;
+		this.burninPercentage = burninPercentage;
+		this.spillFile = spillFile;
+	}
+
+	public void read() throws IOException {
+		read(this);
+	}
+
+	/** read rows after burn-in from the CPO log, and pass them to sink **/
+	public void read(CPOLogger.Sink sink) throws IOException {
+		if (CPOAnalyser.isBinaryCPOLog(cpoLog)) {
+			readBinary(sink);
+			return;
+		}
+		// count rows first, so burn-in can be determined the same way as LogAnalyser does
+		int rows = -1;
+		BufferedReader fin = new BufferedReader(new FileReader(cpoLog));
+		String str;
+		while ((str = fin.readLine()) != null) {
+			if (!str.startsWith("#") && str.trim().length() > 0) {
+				rows++;
+			}
+		}
+		fin.close();
+		int burnin = (int) ((long) rows * burninPercentage / 100);
+
+		fin = new BufferedReader(new FileReader(cpoLog));
+		int row = -1;
+		double [] logP = null;
+		while ((str = fin.readLine()) != null) {
+			if (str.startsWith("#patternweights")) {
+				String [] strs = str.trim().split("\\s+");
+				patternWeights = new int[strs.length - 1];
+				for (int i = 0; i < patternWeights.length; i++) {
+					patternWeights[i] = Integer.parseInt(strs[i + 1]);
+				}
+				continue;
+			}
+			if (str.startsWith("#") || str.trim().length() == 0) {
+				continue;
+			}
+			row++;
+			if (row == 0) {
+				// header
+				if (patternWeights == null) {
+					fin.close();
+					throw new IllegalArgumentException("Could not find pattern weights in " + cpoLog.getPath() + ". Is this a CPO log?");
+				}
+				int patternCount = str.trim().split("\t").length - 1;
+				if (patternCount != patternWeights.length) {
+					fin.close();
+					throw new IllegalArgumentException("weights in file are not equal to columns in file");
+				}
+				logP = new double[patternCount];
+				sink.start(patternWeights, rows - burnin);
+				continue;
+			}
+			if (row <= burnin) {
+				continue;
+			}
+			parseRow(str, logP);
+			sink.add(logP);
+		}
+		fin.close();
+		sink.finish();
+	}
+
+	/** read log written by CPOLogger in binary mode, one block at a time **/
+	private void readBinary(CPOLogger.Sink sink) throws IOException {
+		// count rows by skipping over compressed blocks
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cpoLog)));
+		int patternCount = readBinaryHeader(in);
+		long remaining = cpoLog.length() - 16 - 4L * patternCount;
+		int rows = 0;
+		while (remaining >= 8) {
+			int n = in.readInt();
+			int length = in.readInt();
+			if (remaining < 8 + length) {
+				// last block is incomplete
+				break;
+			}
+			in.skipBytes(length);
+			remaining -= 8 + length;
+			rows += n;
+		}
+		in.close();
+		int burnin = (int) ((long) rows * burninPercentage / 100);
+
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(cpoLog)));
+		readBinaryHeader(in);
+		double [] logP = new double[patternCount];
+		sink.start(patternWeights, rows - burnin);
+		int row = 0;
+		while (row < rows) {
+			int n = in.readInt();
+			int length = in.readInt();
+			if (row + n <= burnin) {
+				in.skipBytes(length);
+				row += n;
+				continue;
+			}
+			byte [] compressed = new byte[length];
+			in.readFully(compressed);
+			DataInputStream block = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+			for (int j = 0; j < n; j++) {
+				block.readLong(); // sample number
+				for (int i = 0; i < patternCount; i++) {
+					logP[i] = bytesPerValue == 4 ? block.readFloat() : block.readDouble();
+				}
+				if (row >= burnin) {
+					sink.add(logP);
+				}
+				row++;
+			}
+			block.close();
+		}
+		in.close();
+		sink.finish();
+	}
+
+	/** @return bytes per value of a binary CPO log, or 8 for text logs, which are parsed as doubles **/
+	public static int bytesPerValue(File cpoLog) throws IOException {
+		if (!CPOAnalyser.isBinaryCPOLog(cpoLog)) {
+			return 8;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(cpoLog))) {
+			in.readInt(); // magic
+			in.readInt(); // version
+			in.readInt(); // pattern count
+			return in.readInt();
+		}
+	}
+
+	/** reads header of binary CPO log, setting pattern weights and bytes per value
+	 * @return number of patterns
+	 */
+	private int readBinaryHeader(DataInputStream in) throws IOException {
+		in.readInt(); // magic
+		int version = in.readInt();
+		if (version != CPOLogger.BINARY_VERSION) {
+			throw new IOException(cpoLog.getPath() + " has binary CPO log version " + version + " but only version " + CPOLogger.BINARY_VERSION + " is supported");
+		}
+		int patternCount = in.readInt();
+		bytesPerValue = in.readInt();
+		patternWeights = new int[patternCount];
+		for (int i = 0; i < patternCount; i++) {
+			patternWeights[i] = in.readInt();
+		}
+		return patternCount;
+	}
+
+	/** parse tab separated values after the sample number into logP **/
+	private void parseRow(String str, double [] logP) {
+		int start = str.indexOf('\t') + 1;
+		for (int i = 0; i < logP.length; i++) {
+			int end = str.indexOf('\t', start);
+			if (end < 0) {
+				end = str.length();
+			}
+			logP[i] = Double.parseDouble(str.substring(start, end));
+			start = end + 1;
+		}
+	}
+
+	/** allocate per pattern sums for the given number of rows after burn-in **/
+	private void allocate(int patternCount, int rows) {
+		minLogP = new double[patternCount];
+		scaledSum = new double[patternCount];
+		maxLogP = new double[patternCount];
+		scaledSumP = new double[patternCount];
+		mean = new double[patternCount];
+		m2 = new double[patternCount];
+		tail = new double[patternCount][Math.max(1, Math.min(rows, PredictiveCriteria.tailLength(rows) + 1))];
+		tailSize = 0;
+	}
+
+	@Override
+	public void start(int [] patternWeights, int rows) throws IOException {
+		this.patternWeights = patternWeights;
+		allocate(patternWeights.length, rows);
+		treeCount = 0;
+		spill = spillFile == null ? null :
+			new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16));
+	}
+
+	@Override
+	public void add(double [] logP) throws IOException {
+		accumulate(logP);
+		if (spill != null) {
+			for (double d : logP) {
+				spill.writeDouble(d);
+			}
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (spill != null) {
+			spill.close();
+			spill = null;
+		}
+		if (treeCount == 0) {
+			throw new IllegalArgumentException("No samples left in " + (cpoLog != null ? cpoLog.getPath() : "CPO log") + " after burn-in");
+		}
+	}
+
+	private void accumulate(double [] logP) {
+		if (treeCount == 0) {
+			for (int i = 0; i < logP.length; i++) {
+				minLogP[i] = logP[i];
+				scaledSum[i] = 1.0;
+				maxLogP[i] = logP[i];
+				scaledSumP[i] = 1.0;
+			}
+		} else {
+			for (int i = 0; i < logP.length; i++) {
+				if (logP[i] < minLogP[i]) {
+					// rescale sum to new minimum
+					scaledSum[i] = scaledSum[i] * Math.exp(logP[i] - minLogP[i]) + 1.0;
+					minLogP[i] = logP[i];
+				} else {
+					scaledSum[i] += Math.exp(minLogP[i] - logP[i]);
+				}
+				if (logP[i] > maxLogP[i]) {
+					scaledSumP[i] = scaledSumP[i] * Math.exp(maxLogP[i] - logP[i]) + 1.0;
+					maxLogP[i] = logP[i];
+				} else {
+					scaledSumP[i] += Math.exp(logP[i] - maxLogP[i]);
+				}
+			}
+		}
+		treeCount++;
+		for (int i = 0; i < logP.length; i++) {
+			double delta = logP[i] - mean[i];
+			mean[i] += delta / treeCount;
+			m2[i] += delta * (logP[i] - mean[i]);
+		}
+		addToTail(logP);
+	}
+
+	/** keep the smallest log probabilities of every pattern in a max-heap **/
+	private void addToTail(double [] logP) {
+		int capacity = tail[0].length;
+		if (tailSize < capacity) {
+			for (int i = 0; i < logP.length; i++) {
+				double [] heap = tail[i];
+				// sift up
+				int j = tailSize;
+				while (j > 0 && heap[(j - 1) / 2] < logP[i]) {
+					heap[j] = heap[(j - 1) / 2];
+					j = (j - 1) / 2;
+				}
+				heap[j] = logP[i];
+			}
+			tailSize++;
+			return;
+		}
+		for (int i = 0; i < logP.length; i++) {
+			double [] heap = tail[i];
+			if (logP[i] >= heap[0]) {
+				continue;
+			}
+			// replace root and sift down
+			int j = 0;
+			while (true) {
+				int child = 2 * j + 1;
+				if (child >= capacity) {
+					break;
+				}
+				if (child + 1 < capacity && heap[child + 1] > heap[child]) {
+					child++;
+				}
+				if (heap[child] <= logP[i]) {
+					break;
+				}
+				heap[j] = heap[child];
+				j = child;
+			}
+			heap[j] = logP[i];
+		}
+	}
+
+	/** LPML, WAIC and PSIS-LOO from the sums collected while reading **/
+	public PredictiveCriteria getCriteria(int threads) throws Exception {
+		int patternCount = minLogP.length;
+		double [] variance = new double[patternCount];
+		double [][] sortedTail = new double[patternCount][];
+		for (int i = 0; i < patternCount; i++) {
+			variance[i] = treeCount > 1 ? m2[i] / (treeCount - 1) : 0;
+			sortedTail[i] = Arrays.copyOf(tail[i], tailSize);
+			Arrays.sort(sortedTail[i]);
+			// heap size was based on the expected number of rows
+			sortedTail[i] = Arrays.copyOf(sortedTail[i], Math.min(tailSize, PredictiveCriteria.tailLength(treeCount) + 1));
+		}
+		PredictiveCriteria criteria = new PredictiveCriteria(treeCount, patternWeights, minLogP, scaledSum,
+				maxLogP, scaledSumP, variance, sortedTail);
+		criteria.calculate(threads);
+		return criteria;
+	}
+
+	/** Equations (14) and (15) in Lewis et al 2014 **/
+	public double getLPML() {
+		double logTreeCount = Math.log(treeCount);
+		double LPML = 0;
+		for (int i = 0; i < minLogP.length; i++) {
+			LPML += (logTreeCount + minLogP[i] - Math.log(scaledSum[i])) * patternWeights[i];
+		}
+		return LPML;
+	}
+
+	public int getTreeCount() {
+		return treeCount;
+	}
+
+	public int [] getPatternWeights() {
+		return patternWeights;
+	}
+
+	public double [] getMinLogP() {
+		return minLogP;
+	}
+
+	/**
+	 * Bootstrap LPML from the spilled rows. Replicates are processed in batches that fit in
+	 * memoryBudget bytes, each batch taking one pass over the spill file. Rows are read in blocks
+	 * of at most memoryBudget bytes, and every thread adds the terms of a block to its own range of replicates, visiting only the
+	 * trees these replicates drew.
+	 * @return LPML of each of the replicates
+	 */
+	public double [] bootstrap(int replicates, long seed, int threads, long memoryBudget) throws Exception {
+		if (spillFile == null) {
+			throw new IllegalArgumentException("Bootstrapping requires rows to be spilled to file");
+		}
+		int patternCount = minLogP.length;
+		// trees drawn by each replicate, drawn the same way as CPOBootstrap does
+		int [][] trees = new int[replicates][];
+		int [][] counts = new int[replicates][];
+		CPOBootstrap.drawTrees(treeCount, seed, trees, counts);
+
+		int batchSize = (int) Math.max(1, Math.min(replicates, memoryBudget / (8L * patternCount)));
+		int blockSize = (int) Math.max(1, Math.min(treeCount, Math.min(BOOTSTRAP_BLOCK_BYTES, memoryBudget) / (8L * patternCount)));
+		// exp(minLogP - logP) of the rows of a block
+		double [][] e = new double[blockSize][patternCount];
+		// position in the tree list of each replicate of the first tree not yet added
+		int [] next = new int[replicates];
+		double [] LPMLs = new double[replicates];
+		double logTreeCount = Math.log(treeCount);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, batchSize)));
+		try {
+			for (int from = 0; from < replicates; from += batchSize) {
+				final int batchFrom = from;
+				final int batchTo = Math.min(replicates, from + batchSize);
+				final int batchThreads = Math.max(1, Math.min(threads, batchTo - batchFrom));
+				final double [][] sums = new double[batchTo - batchFrom][patternCount];
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 1 << 16));
+				for (int blockFrom = 0; blockFrom < treeCount; blockFrom += blockSize) {
+					final int first = blockFrom;
+					final int end = Math.min(treeCount, blockFrom + blockSize);
+					for (int k = first; k < end; k++) {
+						double [] row = e[k - first];
+						for (int i = 0; i < patternCount; i++) {
+							row[i] = Math.exp(minLogP[i] - in.readDouble());
+						}
+					}
+					// threads handle disjoint ranges of replicates, and add trees in increasing order,
+					// so sums do not depend on the number of threads
+					List<Callable<Void>> tasks = new ArrayList<>();
+					for (int t = 0; t < batchThreads; t++) {
+						final int lo = batchFrom + t * (batchTo - batchFrom) / batchThreads;
+						final int hi = batchFrom + (t + 1) * (batchTo - batchFrom) / batchThreads;
+						tasks.add(() -> {
+							for (int r = lo; r < hi; r++) {
+								int [] tree = trees[r];
+								int [] count = counts[r];
+								double [] sum = sums[r - batchFrom];
+								int j = next[r];
+								while (j < tree.length && tree[j] < end) {
+									double [] row = e[tree[j] - first];
+									int c = count[j];
+									for (int i = 0; i < patternCount; i++) {
+										sum[i] += c * row[i];
+									}
+									j++;
+								}
+								next[r] = j;
+							}
+							return null;
+						});
+					}
+					for (Future<Void> f : pool.invokeAll(tasks)) {
+						f.get();
+					}
+				}
+				in.close();
+				for (int r = batchFrom; r < batchTo; r++) {
+					double LPML = 0;
+					double [] sum = sums[r - batchFrom];
+					for (int i = 0; i < patternCount; i++) {
+						LPML += (logTreeCount + minLogP[i] - Math.log(sum[i])) * patternWeights[i];
+					}
+					LPMLs[r] = LPML;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return LPMLs;
+	}
+}
@@ -12,7 +12,6 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 
 import org.apache.commons.math.distribution.BetaDistribution;
 import org.apache.commons.math.distribution.BetaDistributionImpl;
@@ -31,13 +30,15 @@ import beast.base.core.ProgramStatus;
 import beast.base.util.Randomizer;
 import beast.base.parser.XMLProducer;
 import modelselection.inference.PathSampleAnalyser;
+import modelselection.inference.PathSamplingStep;
+import modelselection.inference.StepScheduler;
 
 
 
 @Description("Calculate marginal likelihood through path/stepping stone sampling. " +
 		"Perform multiple steps and calculate estimate." +
 		"Uses multiple threads if specified as command line option to BEAST.")
-public class GeneralisedSteppingStone extends beast.base.inference.Runnable {
+public class GeneralisedSteppingStone extends beast.base.inference.Runnable implements StepScheduler.StepRunner {
 	public static String LIKELIHOOD_LOG_FILE = "likelihood.log";
 
 	public Input<Double> alphaInput = new Input<Double>("alpha", "alpha parameter of Beta(alpha,1) distribution used to space out steps, default 0.3" +
@@ -63,6 +64,10 @@ public class GeneralisedSteppingStone extends beast.base.inference.Runnable {
 	
 	public Input<Boolean> deleteOldLogsInput = new Input<>("deleteOldLogs", "delete existing log files from root dir", false);
 
+	public Input<Double> targetESSInput = new Input<>("targetESS", "stop a step as soon as the ESS of its GSSLikelihood (after burnInPercentage) reaches this value. "
+			+ "Stop reasons are written to " + PathSamplingStep.SUMMARY_FILE + " in the step directory "
+			+ "(default 0, all steps run for chainLength samples)", 0.0);
+
 	public Input<Distribution> samplingDistributionInput = new Input<>("samplingDistribution",
 			"probability distribution to sample from (e.g. a prior). "
 					+ "If not specified, everything but the likelihood will be used as sampling distribution.");
@@ -78,8 +83,6 @@ public class GeneralisedSteppingStone extends beast.base.inference.Runnable {
 	String m_sScript;
 	int burnInPercentage;
 
-	CountDownLatch m_nCountDown;
-
     final static String fileSep = System.getProperty("file.separator");
 
 	DecimalFormat formatter;
@@ -177,6 +180,10 @@ public class GeneralisedSteppingStone extends beast.base.inference.Runnable {
 		logger.initByName("fileName", LIKELIHOOD_LOG_FILE, "log", likelihood, "logEvery", (int)(chainLength/1000));
 		logger.setID("GSSLikelihoodLogger");
 		mcmc.loggersInput.setValue(logger, mcmc);
+		if (targetESSInput.get() > 0) {
+			step.setInputValue("targetESS", targetESSInput.get());
+			step.setInputValue("burnInPercentage", burnInPercentage);
+		}
 
 		// set up directories with beast.xml files in each of them
 		String sFormat = "";
@@ -361,45 +368,42 @@ public class GeneralisedSteppingStone extends beast.base.inference.Runnable {
 	}
 
 
-	class StepThread extends Thread {
-		int stepNr;
-		
-		StepThread(int stepNr) {
-			this.stepNr = stepNr;
+	@Override
+	public void prepareStep(int stepNr, int predecessor) throws Exception {
+		if (predecessor >= 0) {
+			copyStateFile(predecessor, stepNr);
+		}
+		checkLogFiles(stepNr);
+	}
+
+	@Override
+	public void runStep(int stepNr) throws Exception {
+		File stepDir = new File(getStepDir(stepNr));
+		if (!stepDir.exists()) {
+			throw new Exception("Failed to find directory " + stepDir.getName());
 		}
+    	String cmd = 
+    			(Utils.isWindows()?
+    					stepDir.getAbsoluteFile() + "\\run.bat":
+    					stepDir.getAbsoluteFile() + "/run.sh");
+    	// only show output when steps are not run in parallel
+    	boolean showOutput = ProgramStatus.m_nThreads <= 1;
+    	if (showOutput) {
+    		System.out.println(cmd);
+    	}
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true); // merge stdout and stderr
+		Process p = pb.start();
 		
-		@Override
-		public void run() {
-			try {
-				System.err.println("Starting step " + stepNr);
-				File stepDir = new File(getStepDir(stepNr));
-				if (!stepDir.exists()) {
-					throw new Exception("Failed to find directory " + stepDir.getName());
-				}
-	        	String cmd = 
-        			(Utils.isWindows()?
-        					stepDir.getAbsoluteFile() + "/run.bat":
-        					stepDir.getAbsoluteFile() + "/run.sh");
-	        	
-				ProcessBuilder pb = new ProcessBuilder(cmd);
-				pb.redirectErrorStream(true); // merge stdout and stderr
-				Process p = pb.start();
-//	        	
-//				Process p = Runtime.getRuntime().exec(cmd);
-				BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
-				String line;
-				while ((line = pout.readLine()) != null) {
-					//System.out.println(line);
-				}
-				pout.close();
-				
-				p.waitFor();
-			} catch (Exception e) {
-				e.printStackTrace();
+		BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
+		String line;
+		while ((line = pout.readLine()) != null) {
+			if (showOutput) {
+				System.out.println(line);
 			}
-			System.err.println("Finished step " + stepNr);
-			m_nCountDown.countDown();
 		}
+		pout.close();
+		p.waitFor();
 	}
 	
     public void doRuns() throws Exception {
@@ -409,55 +413,12 @@ public class GeneralisedSteppingStone extends beast.base.inference.Runnable {
     	}
     	long startTime = System.currentTimeMillis();
 
+    	// step i continues from the state of step i - #threads, as in the runK scripts
+    	StepScheduler scheduler = new StepScheduler(ProgramStatus.m_nThreads, this);
 		for (int i = 0; i < m_nSteps; i++) {
-	    	if (ProgramStatus.m_nThreads > 1) {
-	    		int nSteps = Math.min(ProgramStatus.m_nThreads, m_nSteps - i);
-	    		m_nCountDown = new CountDownLatch(nSteps);
-	    		for (int j = 0; j < nSteps; j++) {
-	    			new StepThread(i).start();
-	    			i++;
-	    		}
-	    		m_nCountDown.await();	    		
-    			for (int j = 0; j < ProgramStatus.m_nThreads && i+j < m_nSteps; j++) {
-    				copyStateFile(i-1, i + j);	    			
-    				checkLogFiles(i + j);
-    			}
-	    		i--;
-	    	} else {
-				File stepDir = new File(getStepDir(i));
-				if (!stepDir.exists()) {
-					throw new Exception("Failed to find directory " + stepDir.getName());
-				}
-	        	String cmd = 
-	        			(Utils.isWindows()?
-	        					stepDir.getAbsoluteFile() + "\\run.bat":
-	        					stepDir.getAbsoluteFile() + "/run.sh");
-	        	
-	        	
-//				try {
-	    		if (i > 0) {
-	    			copyStateFile(i-1, i);
-	    		}
-				checkLogFiles(i);
-					
-					System.out.println(cmd);
-					
-					ProcessBuilder pb = new ProcessBuilder(cmd);
-					pb.redirectErrorStream(true); // merge stdout and stderr
-					Process p = pb.start();
-					
-					BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
-					String line;
-					while ((line = pout.readLine()) != null) {
-						System.out.println(line);
-					}
-					pout.close();
-					p.waitFor();
-//				} catch (Exception e) {
-//					e.printStackTrace();
-//				}
-	    	}
+			scheduler.addStep(i, i >= ProgramStatus.m_nThreads ? i - ProgramStatus.m_nThreads : -1);
 		}
+		scheduler.run();
     	long endTime = System.currentTimeMillis();
 
     	analyse();
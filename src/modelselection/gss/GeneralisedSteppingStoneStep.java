@@ -1,14 +1,24 @@
 package modelselection.gss;
 
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
 import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.core.Log;
 import beast.base.inference.CompoundDistribution;
 import beast.base.inference.Distribution;
 import beast.base.inference.Evaluator;
+import beast.base.inference.Logger;
 import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
 import beast.base.util.Randomizer;
+import modelselection.gss.distribution.ExactSampler;
 import modelselection.inference.PathSamplingStep;
 
 @Citation(value= "Xie, W., Lewis, P. O., Fan, Y., Kuo, L., & Chen, M. H. (2011).\n" +
@@ -26,7 +36,12 @@ public class GeneralisedSteppingStoneStep extends PathSamplingStep {
 			"probability distribution to sample from (e.g. a prior). "
 					+ "If not specified, everything but the likelihood will be used as sampling distribution.");
 	
+	final public Input<Boolean> directSamplingInput = new Input<>("directSampling", "at beta=0, draw independent samples from the sampling "
+			+ "distribution instead of running MCMC, if every state node is sampled exactly by one of its distributions", true);
+	
 	Distribution samplingDistribution;
+	/** distributions that draw all state nodes exactly, or null if the sampling distribution cannot be sampled directly **/
+	List<Distribution> exactSamplers;
 
 	@Override
 	public void initAndValidate() {
@@ -46,6 +61,10 @@ public class GeneralisedSteppingStoneStep extends PathSamplingStep {
      */
 	@Override
     protected void doLoop() {
+		if (beta == 0 && directSamplingInput.get() && canSampleDirectly()) {
+			doDirectSampling();
+			return;
+		}
 		robustlyCalcPosterior(posterior);
         oldLogLikelihood = pDists[pDists.length - 1].getArrayValue() * (1.0 - beta); // GSS prior
         for (int i = 0; i < pDists.length - 1; i++) { // posterior
@@ -143,6 +162,76 @@ public class GeneralisedSteppingStoneStep extends PathSamplingStep {
             	operator.optimize(logAlpha);
             }
             callUserFunction(iSample);
+            if (stopEarly(iSample)) {
+            	break;
+            }
         }
     }
+
+    /** @return whether every state node is drawn exactly by one of the distributions of the sampling distribution **/
+    private boolean canSampleDirectly() {
+    	List<Distribution> distrs = samplingDistribution instanceof CompoundDistribution ?
+    			((CompoundDistribution) samplingDistribution).pDistributions.get() : Collections.singletonList(samplingDistribution);
+    	Set<StateNode> sampled = new HashSet<>();
+    	for (Distribution d : distrs) {
+    		List<StateNode> nodes = d instanceof ExactSampler ? ((ExactSampler) d).getSampledStateNodes() : null;
+    		if (nodes == null) {
+    			Log.info("Running MCMC at beta=0 since " + d.getID() + " cannot be sampled directly");
+    			return false;
+    		}
+    		sampled.addAll(nodes);
+    	}
+    	for (StateNode node : state.stateNodeInput.get()) {
+    		if (!sampled.contains(node)) {
+    			Log.info("Running MCMC at beta=0 since " + node.getID() + " is not sampled by the sampling distribution");
+    			return false;
+    		}
+    	}
+    	exactSamplers = distrs;
+    	return true;
+    }
+
+    /**
+     * At beta=0 the target is the sampling distribution, so independent samples are drawn
+     * from it directly, without burn-in or autocorrelation. Since samples are independent,
+     * only those that are logged or collected for the ESS estimate are drawn.
+     */
+    protected void doDirectSampling() {
+    	Log.info("Drawing independent samples from the sampling distribution");
+    	Random random = new Random(Randomizer.nextLong());
+    	for (int iSample = 0; iSample <= chainLength; iSample = nextUsedSample(iSample)) {
+    		for (Distribution d : exactSamplers) {
+    			d.sample(state, random);
+    		}
+    		robustlyCalcPosterior(posterior);
+    		log(iSample);
+    		callUserFunction(iSample);
+    		if (stopEarly(iSample)) {
+    			break;
+    		}
+    	}
+    }
+
+    /** @return first sample after iSample that is logged, collected for the ESS estimate or ends the chain **/
+    private int nextUsedSample(int iSample) {
+    	long next = iSample < chainLength ? chainLength : iSample + 1;
+    	for (Logger logger : loggers) {
+    		long every = logger.everyInput.get();
+    		next = Math.min(next, (iSample / every + 1) * every);
+    	}
+    	if (essMonitor != null) {
+    		next = Math.min(next, (iSample / essSampleEvery + 1) * essSampleEvery);
+    	}
+    	return (int) next;
+    }
+
+    /** value whose ESS is monitored: the GSSLikelihood column, likelihood + prior - GSSPrior **/
+	@Override
+    protected double getMonitoredValue() {
+    	double logP = -pDists[pDists.length - 1].getArrayValue();
+        for (int i = 0; i < pDists.length - 1; i++) {
+        	logP += pDists[i].getArrayValue();
+		}
+    	return logP;
+    }
 }
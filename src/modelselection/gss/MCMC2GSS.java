@@ -1,5 +1,7 @@
 package modelselection.gss;
 
+import java.io.File;
+
 import beastfx.app.tools.Application;
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -9,6 +11,7 @@ import beast.base.inference.MCMC;
 
 @Description("Convert MCMC analysis to GSS analysis and optionally run the analysis")
 public class MCMC2GSS extends MCMC2IS {
+	final static String CACHE_FILE = "workingdistributions.cache";
 	
 	public Input<Double> alphaInput = new Input<>("alpha", "alpha parameter of Beta(alpha,1) distribution used to space out steps, default 0.3" +
 			"If alpha <= 0, uniform intervals are used.", 0.3);
@@ -26,6 +29,16 @@ public class MCMC2GSS extends MCMC2IS {
 			"Note that whitespace is removed");
 	public Input<Integer> burnInPercentageInput = new Input<>("burnInPercentage", "burn-In Percentage used for analysing log files", 50);
 	public Input<Boolean> deleteOldLogsInput = new Input<Boolean>("deleteOldLogs", "delete existing log files from root dir", false);
+	public Input<Boolean> cacheInput = new Input<>("cache", "build working distributions once and store them in a binary cache in the root dir, "
+			+ "which is memory mapped by the steps instead of reading tree and trace logs again", true);
+
+	@Override
+	protected String getWorkingDistributionCache() {
+		if (!cacheInput.get()) {
+			return null;
+		}
+		return new File(rootDirInput.get(), CACHE_FILE).getAbsolutePath();
+	}
 
 	@Override
 	protected Runnable newInstance(MCMC mcmc) {		
@@ -3,6 +3,7 @@ package modelselection.gss;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -44,6 +45,7 @@ import modelselection.gss.distribution.GSSTreeDistribution;
 import modelselection.gss.distribution.KernelDensityEstimatorDistribution;
 import modelselection.gss.distribution.MultivariateKDEDistribution;
 import modelselection.gss.distribution.NormalKDEDistribution;
+import modelselection.gss.distribution.WorkingDistributionCache;
 import modelselection.gss.distribution.GSSTreeDistribution.BranchLengthDistribution;
 
 @Description("Convert MCMC analysis to importance sampling analysis like GSS and optionally run the analysis")
@@ -65,6 +67,8 @@ abstract public class MCMC2IS extends Runnable {
 
 		
 	java.util.Map<String, TraceLog> traceLogs = new LinkedHashMap<>();
+	/** working distributions to be stored in the working distribution cache **/
+	List<WorkingDistributionCache.Cacheable> cacheables = new ArrayList<>();
 
 	@Override
 	public void initAndValidate() {
@@ -92,6 +96,7 @@ abstract public class MCMC2IS extends Runnable {
 		CompoundDistribution prior = getPrior(mcmc);
 		Distribution samplingDistribution = getAltPrior(prior, mcmc.startStateInput.get());
 		gss.setInputValue("samplingDistribution",samplingDistribution);
+		saveWorkingDistributions();
 		setUpInitialisers((List<StateNodeInitialiser>) gss.getInput("init").get());
 		//setUpInitialisers(mcmc.initialisersInput.get());
 
@@ -119,6 +124,23 @@ abstract public class MCMC2IS extends Runnable {
 
 	abstract protected Runnable newInstance(MCMC mcmc);		
 
+	/** @return file name of binary cache of working distributions to be used by all steps, or null if none **/
+	protected String getWorkingDistributionCache() {
+		return null;
+	}
+
+	private void saveWorkingDistributions() throws IOException {
+		String fileName = getWorkingDistributionCache();
+		if (fileName == null || cacheables.size() == 0) {
+			return;
+		}
+		WorkingDistributionCache cache = WorkingDistributionCache.get(fileName);
+		for (WorkingDistributionCache.Cacheable d : cacheables) {
+			cache.put(d);
+		}
+		cache.save();
+	}
+
 	private void setUpInitialisers(List<StateNodeInitialiser> initialiser) {
 		for (int i = 0; i < initialiser.size(); i++) {
 			StateNodeInitialiser init = initialiser.get(i);
@@ -285,10 +307,17 @@ abstract public class MCMC2IS extends Runnable {
 
 		// create GSS tree distribution
 		GSSTreeDistribution ccDistr = new GSSTreeDistribution();
+		if (getWorkingDistributionCache() != null) {
+			ccDistr.cacheInput.setValue(getWorkingDistributionCache(), ccDistr);
+			cacheables.add(ccDistr);
+		}
 		ccDistr.initByName("treefile", file, 
 				"tree", getTree(d),
 				"burnin", traceBurninInput.get(), 
-				"useGammaForBranchLengths", BranchLengthDistribution.useGamma);
+				"useGammaForBranchLengths", BranchLengthDistribution.useGamma,
+				"threads", Runtime.getRuntime().availableProcessors());
+		// steps may run concurrently, so they read the tree set with a single thread if it is not cached
+		ccDistr.threadsInput.setValue(1, ccDistr);
 		ccDistr.setID(d.getID()+ ".gss");
 		return ccDistr;
 	}
@@ -345,6 +374,7 @@ abstract public class MCMC2IS extends Runnable {
 		int dim = f.getDimension();
 		if (dim == 1) {
 			altDist = new NormalKDEDistribution(tracelog, label, f);
+			setCache((NormalKDEDistribution) altDist);
 			if (f instanceof RealParameter) {
 				RealParameter p = (RealParameter) f;
 				Double mean = tracelog.getMean(label);
@@ -355,6 +385,7 @@ abstract public class MCMC2IS extends Runnable {
 			KernelDensityEstimatorDistribution[] multivariateKDE = new KernelDensityEstimatorDistribution[dim];
 			for (int i = 0; i < dim; i++) {
 				multivariateKDE[i] = new NormalKDEDistribution(tracelog, label + (i+1), null);
+				setCache((NormalKDEDistribution) multivariateKDE[i]);
 				if (f instanceof RealParameter) {
 					RealParameter p = (RealParameter) f;
 					Double mean = tracelog.getMean(label + (i+1));
@@ -374,6 +405,13 @@ abstract public class MCMC2IS extends Runnable {
 		return altDist;
 	}
 
+	private void setCache(NormalKDEDistribution distr) {
+		if (getWorkingDistributionCache() != null) {
+			distr.cacheInput.setValue(getWorkingDistributionCache(), distr);
+			cacheables.add(distr);
+		}
+	}
+
 	private CompoundDistribution getPrior(MCMC mcmc) {
 		if (!(mcmc.posteriorInput.get() instanceof CompoundDistribution)) {
 			throw new IllegalArgumentException(
@@ -22,14 +22,17 @@ public class TraceLog extends BEASTObject implements BEASTInterface {
 	
 	@Override
 	public void initAndValidate() {
-		if (tracelog != null) {
-			return;
-		}
 		int burnInPercentage = burnInPercentageInput.get();
 		if (burnInPercentage < 0 || burnInPercentage >= 100) {
 			throw new IllegalArgumentException("burnInPercentage should be between 0 and 100");
 		}
+	}
 
+	/** the log is only read when a trace is requested, so distributions restored from a
+	 * WorkingDistributionCache do not need to read it **/
+	private void load() {
+		initAndValidate();
+		int burnInPercentage = burnInPercentageInput.get();
 		try {
 			tracelog = BEASTRunAnalyser.getTraceLog(null, traceFileInput.get(), burnInPercentage);
 		} catch (IOException e) {
@@ -41,7 +44,7 @@ public class TraceLog extends BEASTObject implements BEASTInterface {
 	
 	public Double [] getTrace(String label) {
 		if (tracelog == null) {
-			initAndValidate();
+			load();
 		}
 		return tracelog.getTrace(label);
 	}
@@ -49,14 +52,14 @@ public class TraceLog extends BEASTObject implements BEASTInterface {
 
 	public List<String> getLabels() {
 		if (tracelog == null) {
-			initAndValidate();
+			load();
 		}
 		return tracelog.getLabels();
 	}
 	
 	public Double getMean(String label) {
 		double sum = 0;
-		Double [] data = tracelog.getTrace(label);
+		Double [] data = getTrace(label);
 		for (Double d : data) {
 			sum += d;
 		}
@@ -0,0 +1,430 @@
+package modelselection.gss.distribution;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact index of clades and splits of a tree set, for conditional clade distributions.
+ *
+ * A clade is a set of taxa, stored as a fixed width key of words = ceil(taxa / 64) longs.
+ * Clades get integer ids in order of first appearance, and keys are stored by id in a single
+ * long array, with an open addressing table of ids for lookup.
+ * A split is a pair (parent clade, child clade), stored for both children of a node in an
+ * open addressing table keyed by parent id and child id. Once all trees are added, the log
+ * conditional clade probability log(split count) - log(parent count) is precomputed per split.
+ */
+public class CladeIndex {
+	final static long EMPTY = -1;
+
+	final int taxonCount;
+	final int words;
+
+	/** key of clade i at keys[i * words ... (i + 1) * words - 1] **/
+	long [] keys;
+	/** number of times each clade was the parent of a split **/
+	int [] parentCount;
+	int cladeCount;
+	/** open addressing table of clade ids + 1, 0 if empty **/
+	int [] cladeTable;
+
+	/** open addressing table of splits, key = parent << 32 | child, EMPTY if empty **/
+	long [] splitKeys;
+	int [] splitCount;
+	int splitSize;
+	/** log conditional clade probability of each split slot, calculated by finish() **/
+	double [] splitLogP;
+
+	/** splits by parent for drawing trees, calculated by prepareDraws(): entries drawStart[parent] ... drawStart[parent + 1] - 1
+	 * have children drawChild and drawComplement, drawn with cumulative probability drawCumP **/
+	int [] drawStart, drawChild, drawComplement;
+	double [] drawCumP;
+
+	public CladeIndex(int taxonCount) {
+		this.taxonCount = taxonCount;
+		words = (taxonCount + 63) / 64;
+		keys = new long[64 * words];
+		parentCount = new int[64];
+		cladeTable = new int[128];
+		splitKeys = new long[256];
+		Arrays.fill(splitKeys, EMPTY);
+		splitCount = new int[256];
+	}
+
+	public int getTaxonCount() {
+		return taxonCount;
+	}
+
+	/** @return number of longs in a clade key **/
+	public int getWords() {
+		return words;
+	}
+
+	public int getCladeCount() {
+		return cladeCount;
+	}
+
+	public int getSplitCount() {
+		return splitSize;
+	}
+
+	/** @return number of times clade was the parent of a split **/
+	public int getParentCount(int clade) {
+		return parentCount[clade];
+	}
+
+	private static int hash(long [] bits, int offset, int words) {
+		long h = 0;
+		for (int i = 0; i < words; i++) {
+			h = (h + bits[offset + i]) * 0x9E3779B97F4A7C15L;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32));
+	}
+
+	private boolean equalKey(int clade, long [] bits, int offset) {
+		int start = clade * words;
+		for (int i = 0; i < words; i++) {
+			if (keys[start + i] != bits[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return id of clade with key bits[offset ... offset + words - 1], or -1 if it is not in the index **/
+	public int find(long [] bits, int offset) {
+		int mask = cladeTable.length - 1;
+		int slot = hash(bits, offset, words) & mask;
+		while (cladeTable[slot] != 0) {
+			int clade = cladeTable[slot] - 1;
+			if (equalKey(clade, bits, offset)) {
+				return clade;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/** @return id of clade with key bits[offset ... offset + words - 1], which is added if it is not in the index yet **/
+	public int add(long [] bits, int offset) {
+		int clade = find(bits, offset);
+		if (clade >= 0) {
+			return clade;
+		}
+		if (cladeCount * words == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+			parentCount = Arrays.copyOf(parentCount, parentCount.length * 2);
+		}
+		clade = cladeCount++;
+		System.arraycopy(bits, offset, keys, clade * words, words);
+		if (2 * cladeCount > cladeTable.length) {
+			cladeTable = new int[cladeTable.length * 2];
+			for (int i = 0; i < cladeCount; i++) {
+				insertClade(i);
+			}
+		} else {
+			insertClade(clade);
+		}
+		return clade;
+	}
+
+	private void insertClade(int clade) {
+		int mask = cladeTable.length - 1;
+		int slot = hash(keys, clade * words, words) & mask;
+		while (cladeTable[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		cladeTable[slot] = clade + 1;
+	}
+
+	/** copy key of clade to bits[offset ... offset + words - 1] **/
+	public void getKey(int clade, long [] bits, int offset) {
+		System.arraycopy(keys, clade * words, bits, offset, words);
+	}
+
+	/** @return whether taxon is in clade **/
+	public boolean contains(int clade, int taxon) {
+		return (keys[clade * words + (taxon >>> 6)] & (1L << taxon)) != 0;
+	}
+
+	/** record a node with clade parent and children left and right **/
+	public void addSplit(int parent, int left, int right) {
+		addSplit(parent, left, right, 1);
+	}
+
+	/** record count nodes with clade parent and children left and right **/
+	public void addSplit(int parent, int left, int right, int count) {
+		parentCount[parent] += count;
+		incrementSplit(parent, left, count);
+		incrementSplit(parent, right, count);
+		splitLogP = null;
+		drawStart = null;
+	}
+
+	private void incrementSplit(int parent, int child, int count) {
+		long key = ((long) parent << 32) | child;
+		int slot = findSplitSlot(key);
+		if (splitKeys[slot] == EMPTY) {
+			if (2 * (splitSize + 1) > splitKeys.length) {
+				growSplits();
+				slot = findSplitSlot(key);
+			}
+			splitKeys[slot] = key;
+			splitSize++;
+		}
+		splitCount[slot] += count;
+	}
+
+	/** @return slot containing key, or the empty slot where it should be inserted **/
+	private int findSplitSlot(long key) {
+		int mask = splitKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (splitKeys[slot] != EMPTY && splitKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void growSplits() {
+		long [] oldKeys = splitKeys;
+		int [] oldCount = splitCount;
+		splitKeys = new long[oldKeys.length * 2];
+		Arrays.fill(splitKeys, EMPTY);
+		splitCount = new int[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = findSplitSlot(oldKeys[i]);
+				splitKeys[slot] = oldKeys[i];
+				splitCount[slot] = oldCount[i];
+			}
+		}
+	}
+
+	/** add clades and splits of another index, so counts become those of both tree sets together **/
+	public void merge(CladeIndex other) {
+		if (other.words != words) {
+			throw new IllegalArgumentException("Cannot merge clade indices for different numbers of taxa");
+		}
+		int [] map = new int[other.cladeCount];
+		for (int i = 0; i < other.cladeCount; i++) {
+			map[i] = add(other.keys, i * words);
+			parentCount[map[i]] += other.parentCount[i];
+		}
+		other.forEachSplit((parent, child, count) -> incrementSplit(map[parent], map[child], count));
+		splitLogP = null;
+		drawStart = null;
+	}
+
+	/** precompute log conditional clade probabilities, after all trees are added **/
+	public void finish() {
+		splitLogP = new double[splitKeys.length];
+		for (int i = 0; i < splitKeys.length; i++) {
+			if (splitKeys[i] != EMPTY) {
+				int parent = (int) (splitKeys[i] >>> 32);
+				splitLogP[i] = Math.log(splitCount[i]) - Math.log(parentCount[parent]);
+			}
+		}
+	}
+
+	/** @return number of times child was a child of parent, 0 if never **/
+	public int getSplitCount(int parent, int child) {
+		int slot = findSplitSlot(((long) parent << 32) | child);
+		return splitKeys[slot] == EMPTY ? 0 : splitCount[slot];
+	}
+
+	/**
+	 * @return log conditional clade probability of child given parent,
+	 * or NaN if child was never a child of parent
+	 */
+	public double getLogConditional(int parent, int child) {
+		if (splitLogP == null) {
+			finish();
+		}
+		int slot = findSplitSlot(((long) parent << 32) | child);
+		return splitKeys[slot] == EMPTY ? Double.NaN : splitLogP[slot];
+	}
+
+	/** @return number of taxa in clade **/
+	public int getCladeSize(int clade) {
+		int size = 0;
+		for (int i = 0; i < words; i++) {
+			size += Long.bitCount(keys[clade * words + i]);
+		}
+		return size;
+	}
+
+	/** @return lowest numbered taxon in clade, the only one for a leaf clade **/
+	public int getFirstTaxon(int clade) {
+		for (int i = 0; i < words; i++) {
+			long key = keys[clade * words + i];
+			if (key != 0) {
+				return i * 64 + Long.numberOfTrailingZeros(key);
+			}
+		}
+		return -1;
+	}
+
+	/** @return id of the clade containing all taxa, or -1 if the index is empty **/
+	public int getRootClade() {
+		long [] key = new long[words];
+		for (int taxon = 0; taxon < taxonCount; taxon++) {
+			key[taxon >>> 6] |= 1L << taxon;
+		}
+		return find(key, 0);
+	}
+
+	/**
+	 * Prepare tables for drawing trees top down from the conditional clade distribution,
+	 * using splits seen in the tree set only.
+	 * If ranked, the probability of a tree is also proportional to its number of rankings, that is,
+	 * orders of internal nodes consistent with the tree, (n - 1)! / prod_v (|v| - 1) over internal
+	 * clades v. This factorises over clades, so a split of clade c into a and b is drawn with
+	 * probability p(a,b | c) Z(a) Z(b) / (|c| - 1) / Z(c), where Z(c) is the total weight of the
+	 * subtrees of c, calculated bottom up over clades in order of size.
+	 */
+	public void prepareDraws(boolean ranked) {
+		// group splits by parent
+		int [] start = new int[cladeCount + 1];
+		forEachSplit((parent, child, count) -> start[parent + 1]++);
+		for (int i = 0; i < cladeCount; i++) {
+			start[i + 1] += start[i];
+		}
+		int [] next = Arrays.copyOf(start, cladeCount);
+		drawChild = new int[splitSize];
+		drawComplement = new int[splitSize];
+		drawCumP = new double[splitSize];
+		long [] key = new long[words];
+		for (int i = 0; i < splitKeys.length; i++) {
+			if (splitKeys[i] != EMPTY) {
+				int parent = (int) (splitKeys[i] >>> 32);
+				int child = (int) splitKeys[i];
+				int j = next[parent]++;
+				for (int k = 0; k < words; k++) {
+					key[k] = keys[parent * words + k] & ~keys[child * words + k];
+				}
+				drawChild[j] = child;
+				drawComplement[j] = find(key, 0);
+				drawCumP[j] = splitCount[i];
+			}
+		}
+
+		// clades in order of size
+		int [] size = new int[cladeCount];
+		int [] sizeStart = new int[taxonCount + 2];
+		for (int i = 0; i < cladeCount; i++) {
+			size[i] = getCladeSize(i);
+			sizeStart[size[i] + 1]++;
+		}
+		for (int k = 0; k <= taxonCount; k++) {
+			sizeStart[k + 1] += sizeStart[k];
+		}
+		int [] order = new int[cladeCount];
+		for (int i = 0; i < cladeCount; i++) {
+			order[sizeStart[size[i]]++] = i;
+		}
+
+		double [] logZ = new double[cladeCount];
+		double [] logW = new double[splitSize];
+		for (int clade : order) {
+			if (size[clade] == 1) {
+				continue;
+			}
+			// each split is stored for both children, so counts sum to 2 * parentCount
+			double max = Double.NEGATIVE_INFINITY;
+			for (int j = start[clade]; j < start[clade + 1]; j++) {
+				logW[j] = drawComplement[j] < 0 ? Double.NEGATIVE_INFINITY :
+					Math.log(drawCumP[j]) + logZ[drawChild[j]] + logZ[drawComplement[j]];
+				max = Math.max(max, logW[j]);
+			}
+			if (max == Double.NEGATIVE_INFINITY) {
+				logZ[clade] = max;
+				continue;
+			}
+			double sum = 0;
+			for (int j = start[clade]; j < start[clade + 1]; j++) {
+				sum += Math.exp(logW[j] - max);
+			}
+			double cum = 0;
+			for (int j = start[clade]; j < start[clade + 1]; j++) {
+				cum += Math.exp(logW[j] - max) / sum;
+				drawCumP[j] = cum;
+			}
+			logZ[clade] = max + Math.log(sum) - Math.log(2.0 * parentCount[clade]) - (ranked ? Math.log(size[clade] - 1) : 0);
+		}
+		drawStart = start;
+	}
+
+	/**
+	 * Draw a split of clade parent, after prepareDraws()
+	 * @param u uniform random number in [0,1)
+	 * @param children array that is filled with the clades of the two children
+	 */
+	public void drawSplit(int parent, double u, int [] children) {
+		int from = drawStart[parent], to = drawStart[parent + 1];
+		if (from == to) {
+			throw new IllegalArgumentException("Cannot draw split of a clade that was never split in the tree set");
+		}
+		// first entry with cumulative probability above u
+		int lo = from, hi = to - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (drawCumP[mid] > u) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		children[0] = drawChild[lo];
+		children[1] = drawComplement[lo];
+	}
+
+	/** write index including its hash tables, so it can be restored by read() without rehashing **/
+	public void write(DataOutputStream out) throws IOException {
+		if (splitLogP == null) {
+			finish();
+		}
+		out.writeInt(taxonCount);
+		out.writeInt(cladeCount);
+		WorkingDistributionCache.writeLongs(out, keys, cladeCount * words);
+		WorkingDistributionCache.writeInts(out, parentCount, cladeCount);
+		WorkingDistributionCache.writeInts(out, cladeTable, cladeTable.length);
+		out.writeInt(splitSize);
+		WorkingDistributionCache.writeLongs(out, splitKeys, splitKeys.length);
+		WorkingDistributionCache.writeInts(out, splitCount, splitCount.length);
+		WorkingDistributionCache.writeDoubles(out, splitLogP, splitLogP.length);
+	}
+
+	/** @return index written by write() **/
+	public static CladeIndex read(ByteBuffer in) {
+		CladeIndex index = new CladeIndex(in.getInt());
+		index.cladeCount = in.getInt();
+		int capacity = Math.max(64, index.cladeCount);
+		index.keys = WorkingDistributionCache.getLongs(in, capacity * index.words);
+		index.parentCount = WorkingDistributionCache.getInts(in, capacity);
+		index.cladeTable = WorkingDistributionCache.getInts(in, 0);
+		index.splitSize = in.getInt();
+		index.splitKeys = WorkingDistributionCache.getLongs(in, 0);
+		index.splitCount = WorkingDistributionCache.getInts(in, 0);
+		index.splitLogP = WorkingDistributionCache.getDoubles(in, 0);
+		return index;
+	}
+
+	/** calls visitor for every split (parent, child) with its count, in no particular order **/
+	public void forEachSplit(SplitVisitor visitor) {
+		for (int i = 0; i < splitKeys.length; i++) {
+			if (splitKeys[i] != EMPTY) {
+				visitor.visit((int) (splitKeys[i] >>> 32), (int) splitKeys[i], splitCount[i]);
+			}
+		}
+	}
+
+	public interface SplitVisitor {
+		void visit(int parent, int child, int count);
+	}
+}
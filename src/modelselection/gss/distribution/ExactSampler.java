@@ -0,0 +1,16 @@
+package modelselection.gss.distribution;
+
+import java.util.List;
+
+import beast.base.inference.StateNode;
+
+/**
+ * Working distribution that draws independent samples of its arguments exactly with
+ * Distribution.sample(State, Random), so a GSS step at beta=0 can sample the working
+ * distribution directly instead of running MCMC.
+ */
+public interface ExactSampler {
+
+	/** @return state nodes set by sample(), or null if the distribution cannot be sampled exactly as configured **/
+	List<StateNode> getSampledStateNodes();
+}
@@ -1,8 +1,15 @@
 package modelselection.gss.distribution;
 
 
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math.distribution.ContinuousDistribution;
 import org.apache.commons.math.distribution.ExponentialDistribution;
@@ -17,13 +24,16 @@ import beast.base.core.Description;
 import beast.base.inference.Distribution;
 import beast.base.core.Input;
 import beast.base.inference.State;
+import beast.base.inference.StateNode;
 import beast.base.core.Log;
+import beast.base.evolution.tree.IntervalType;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.evolution.tree.TreeIntervals;
 import beast.base.inference.distribution.ParametricDistribution;
 import beast.base.util.Randomizer;
+import modelselection.core.TreeFileIndex;
 
 @Description("Tree Distribution consisting of a "
 		+ "Conditional Clade Distribution for a tree set (as defined in "
@@ -31,7 +41,7 @@ import beast.base.util.Randomizer;
 		+ "using conditional clade probability distributions. Systematic Biology "
 		+ "62(4): 501-511. https://doi.org/10.1093/sysbio/syt014) and "
 		+ "tree interval distribution.")
-public class GSSTreeDistribution extends Distribution {
+public class GSSTreeDistribution extends Distribution implements WorkingDistributionCache.Cacheable, ExactSampler {
 	public enum BranchLengthDistribution {useGamma, useExp, useUniform, useIntervals, none};
 	
 	public Input<TreeFile> treeFileInput = new Input<>("treefile", "file containing tree set");
@@ -40,6 +50,12 @@ public class GSSTreeDistribution extends Distribution {
 	public Input<BranchLengthDistribution> useGammaForBranchLengthsInput = new Input<>("useGammaForBranchLengths", "use an empirical gamma distribution for branch length distribution", BranchLengthDistribution.none, BranchLengthDistribution.values());
 
 	public Input<Boolean> useCCDInput = new Input<>("useCCD", "include conditional clade distribution", true);
+	public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to read the tree set, each counting clades "
+			+ "and branch length statistics of a contiguous chunk of trees (default 1)", 1);
+	public Input<Boolean> incrementalInput = new Input<>("incremental", "cache clade keys and log clade credibilities per node, "
+			+ "and only recalculate nodes on the path from a changed node to the root", true);
+	public Input<String> cacheInput = new Input<>("cache", "binary cache of working distributions (see MCMC2GSS). "
+			+ "If it contains this distribution, the tree file is not read");
 	
 	
 
@@ -52,18 +68,32 @@ public class GSSTreeDistribution extends Distribution {
 
 	private Tree lastTree;
 	private int treeCount;
-	public Tree getLastTree() {return lastTree;}
+	/** offsets of trees in the tree file for drawing random trees **/
+	private TreeFileIndex treeFileIndex;
+	/** @return first tree after burn-in **/
+	public Tree getLastTree() {
+		if (lastTree == null) {
+			// restored from cache
+			try {
+				if (treeFileIndex == null) {
+					treeFileIndex = TreeFileIndex.get(treeFile);
+				}
+				lastTree = treeFileIndex.getTree(treeFileIndex.getBurnin(burninPercentage));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e.getMessage());
+			}
+		}
+		return lastTree;
+	}
 
 	public Tree getRandomTree() {
 		try {
-			TreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(treeFile.getAbsolutePath(), burninPercentage);
-			trees.reset();
+			if (treeFileIndex == null) {
+				treeFileIndex = TreeFileIndex.get(treeFile);
+			}
 			int n = Randomizer.nextInt(treeCount);
 			Log.warning("Drawing tree " + n + " from " + treeFileInput.getName());
-			for (int i = 0; i < n; i++) {
-				trees.next();
-			}
-			Tree tree = trees.next();
+			Tree tree = treeFileIndex.getTree(treeFileIndex.getBurnin(burninPercentage) + n);
 			return tree;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -74,7 +104,7 @@ public class GSSTreeDistribution extends Distribution {
 	public TreeFile getTreefile() {return treeFile;}
 	public void setTreefile(TreeFile treeFile) {this.treeFile = treeFile;}
 	public TreeInterface getTree() {return tree;}
-	public void setTree(TreeInterface tree) {this.tree = tree;}
+	public void setTree(TreeInterface tree) {this.tree = tree; cacheValid = false;}
 	
     public Integer getBurnin() {
 		return burninPercentage;
@@ -83,8 +113,10 @@ public class GSSTreeDistribution extends Distribution {
 		this.burninPercentage = burninPercentage;
 	}
 
-	protected Map<BitSet, Map<BitSet, Clade>> conditionalCladeMap = new HashMap<>();
-    protected Map<BitSet, Clade> cladeMap = new LinkedHashMap<>();
+	/** clades and splits of the tree set, with precomputed log conditional clade probabilities **/
+	protected CladeIndex cladeIndex;
+	/** clade keys of the nodes of a tree, by node number **/
+	private long [] cladeBits;
     
     private Map<String, Integer> mapTaxonIDToNr = new LinkedHashMap<>();
     
@@ -127,7 +159,9 @@ public class GSSTreeDistribution extends Distribution {
 			throw new IllegalArgumentException("burnin must be a positive number not larger than 100");
 		}
 		this.useGammaForBranchLengths = useGammaForBranchLengthsInput.get();
-		processTreeFile();
+		if (cacheInput.get() == null || !WorkingDistributionCache.get(cacheInput.get()).load(this)) {
+			processTreeFile();
+		}
 		
 //		x
 //		epsilon = new double[tree.getLeafNodeCount()];
@@ -138,76 +172,170 @@ public class GSSTreeDistribution extends Distribution {
 	
 	private void processTreeFile() {		
 		try {
-			TreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(treeFile.getAbsolutePath(), burninPercentage);
-			trees.reset();
+			TreeSetStatistics stats;
+			int threads = Math.max(1, threadsInput.get());
+			if (threads == 1) {
+				TreeSet trees = new TreeAnnotator().new MemoryFriendlyTreeSet(treeFile.getAbsolutePath(), burninPercentage);
+				trees.reset();
+				Tree tree = trees.next();
+	    		lastTree = tree;
+				stats = new TreeSetStatistics(tree.getNodeCount());
+				stats.add(trees);
+			} else {
+				stats = processTreeFileInParallel(threads);
+			}
 
-			List<List<Double>> intervalLog = new ArrayList<>();
-			Tree tree = trees.next();
-			trees.reset();
-    		for (int i = 0; i < tree.getNodeCount() + 1; i++) {
+			cladeIndex = stats.index;
+			cladeIndex.finish();
+			cladeBits = new long[stats.bits.length];
+			treeCount = stats.treeCount;
+			meanLength = stats.meanLength;
+			logLength = stats.logLength;
+			lengthCount = stats.lengthCount;
+			lower = stats.lower;
+			upper = stats.upper;
+			
+			if (this.tree == null) {
+				this.tree = stats.lastTree;
+			}			
+			
+			if (useGammaForBranchLengths == BranchLengthDistribution.useIntervals) {
+				createIntervalDistr(stats.intervalLog);
+			} else {
+				createBranchLengthDistr();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Split trees after burn-in into contiguous chunks, one per thread, that are parsed and
+	 * counted independently, then merge the statistics of the chunks in order.
+	 */
+	private TreeSetStatistics processTreeFileInParallel(int threads) throws IOException {
+		if (treeFileIndex == null) {
+			treeFileIndex = TreeFileIndex.get(treeFile);
+		}
+		int burnin = treeFileIndex.getBurnin(burninPercentage);
+		int count = treeFileIndex.getTreeCount(burninPercentage);
+		if (count == 0) {
+			throw new IllegalArgumentException("No trees left in " + treeFile.getPath() + " after burn-in");
+		}
+		Tree first = treeFileIndex.getTree(burnin);
+		lastTree = first;
+		int nodeCount = first.getNodeCount();
+		int chunks = Math.min(threads, count);
+		ExecutorService pool = Executors.newFixedThreadPool(chunks);
+		try {
+			List<Future<TreeSetStatistics>> futures = new ArrayList<>();
+			for (int c = 0; c < chunks; c++) {
+				final int from = burnin + (int) ((long) c * count / chunks);
+				final int to = burnin + (int) ((long) (c + 1) * count / chunks);
+				futures.add(pool.submit(() -> {
+					TreeSetStatistics stats = new TreeSetStatistics(nodeCount);
+					stats.add(treeFileIndex.openChunk(from, to));
+					return stats;
+				}));
+			}
+			TreeSetStatistics stats = futures.get(0).get();
+			for (int c = 1; c < chunks; c++) {
+				stats.merge(futures.get(c).get());
+			}
+			return stats;
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("Could not process " + treeFile.getPath() + ": " + e.getMessage(), e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** clade counts and branch length statistics of a range of trees of the tree set **/
+	private class TreeSetStatistics {
+		final CladeIndex index = new CladeIndex(mapTaxonIDToNr.size());
+		final long [] bits;
+		final List<List<Double>> intervalLog = new ArrayList<>();
+		double meanLength = 0, logLength = 0;
+		int lengthCount = 0;
+		double lower = Double.POSITIVE_INFINITY, upper = Double.NEGATIVE_INFINITY;
+		int treeCount = 0;
+		Tree lastTree;
+
+		TreeSetStatistics(int nodeCount) {
+			bits = new long[nodeCount * index.getWords()];
+    		for (int i = 0; i < nodeCount + 1; i++) {
     			intervalLog.add(new ArrayList<>());
     		}
-    		lastTree = tree;
-    		
-    		lower = Double.POSITIVE_INFINITY;
-    		upper = Double.NEGATIVE_INFINITY;
+		}
 
-			treeCount = 0;
+		void add(TreeSet trees) throws IOException {
+			trees.reset();
 			while (trees.hasNext()) {
-				tree = trees.next();
-				treeCount++;
-				addClades(tree.getRoot());
-				
-				switch (useGammaForBranchLengths) {
-				case useGamma:
-				case useExp:
-					updateGammaEstimates(tree);
-					break;
-				case useUniform:
-					double len = getTreeLength(tree);
-					lower = Math.min(len, lower);
-					upper = Math.max(len, upper);
-					break;
-				case useIntervals:
-					addToIntervalLog(tree, intervalLog);
-					intervalLog.get(intervalLog.size() - 1).add(tree.getRoot().getHeight());
-					break;
-				case none:
-				}
+				add(trees.next());
 			}
+		}
 
-//			for(BitSet b : cladeMap.keySet()) {
-//				System.out.println(b + " " + cladeMap.get(b).count);
-//			}
-			
-			if (this.tree == null) {
-				this.tree = tree;
-			}			
+		void add(Tree tree) {
+			treeCount++;
+			lastTree = tree;
+			addClades(tree.getRoot(), bits, index);
 			
 			switch (useGammaForBranchLengths) {
-			case useUniform:
-				break;
+			case useGamma:
 			case useExp:
-				branchLengthDistr = createExpDistr();
+		    	double len = getTreeLength(tree);
+				meanLength += len;
+				logLength += Math.log(len);
+				lengthCount++;
 				break;
-			case useGamma:
-				branchLengthDistr = createGammaDistr();
+			case useUniform:
+				len = getTreeLength(tree);
+				lower = Math.min(len, lower);
+				upper = Math.max(len, upper);
 				break;
 			case useIntervals:
-				createIntervalDistr(intervalLog);
+				addToIntervalLog(tree, intervalLog);
+				intervalLog.get(intervalLog.size() - 1).add(tree.getRoot().getHeight());
 				break;
 			case none:
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalArgumentException(e.getMessage());
+		}
+
+		/** add statistics of trees following the ones in this object **/
+		void merge(TreeSetStatistics other) {
+			index.merge(other.index);
+			meanLength += other.meanLength;
+			logLength += other.logLength;
+			lengthCount += other.lengthCount;
+			lower = Math.min(lower, other.lower);
+			upper = Math.max(upper, other.upper);
+			for (int i = 0; i < intervalLog.size(); i++) {
+				intervalLog.get(i).addAll(other.intervalLog.get(i));
+			}
+			treeCount += other.treeCount;
+			if (other.lastTree != null) {
+				lastTree = other.lastTree;
+			}
 		}
 	}
 	
 	
+	private void createBranchLengthDistr() {
+		switch (useGammaForBranchLengths) {
+		case useExp:
+			branchLengthDistr = createExpDistr();
+			break;
+		case useGamma:
+			branchLengthDistr = createGammaDistr();
+			break;
+		default:
+		}
+	}
+
 	private GammaDistribution createGammaDistr() {
 		// ML estimate per https://en.wikipedia.org/wiki/Gamma_distribution#Maximum_likelihood_estimation
-		meanLength = meanLength / lengthCount;
+		double meanLength = this.meanLength / lengthCount;
 		double s = Math.log(meanLength) - logLength / lengthCount;
 		double alpha = 3 - s + Math.sqrt((s-3)*(s-3)+24*s)/(12*s); 
 		double beta = meanLength / alpha;
@@ -217,8 +345,7 @@ public class GSSTreeDistribution extends Distribution {
 	}
 
 	private ExponentialDistribution createExpDistr() {
-		meanLength = meanLength / lengthCount;
-		ExponentialDistribution distr = new ExponentialDistributionImpl(meanLength);
+		ExponentialDistribution distr = new ExponentialDistributionImpl(meanLength / lengthCount);
 		return distr;
 	}
 
@@ -228,17 +355,78 @@ public class GSSTreeDistribution extends Distribution {
 	public int getBranchLenCount() {return lengthCount;}
 	public void setBranchLenCount(int branchLenCount) {this.lengthCount = branchLenCount;}
 
+	/** sums of tree lengths and log tree lengths over the tree set **/
 	double meanLength = 0;
 	int lengthCount = 0;
 	double logLength = 0;
 	
-    private void updateGammaEstimates(Tree tree) {
-    	double len = getTreeLength(tree);
-		meanLength += len;
-		logLength += Math.log(len);
-		lengthCount++;
+	@Override
+	public File getCacheFile() {
+		return treeFile;
 	}
-    
+
+	@Override
+	public String getCacheKey() {
+		return "GSSTreeDistribution\tburnin=" + burninPercentage + "\tbranchLengths=" + useGammaForBranchLengths;
+	}
+
+	@Override
+	public void writeCache(DataOutputStream out) throws IOException {
+		out.writeInt(mapTaxonIDToNr.size());
+		for (Map.Entry<String, Integer> entry : mapTaxonIDToNr.entrySet()) {
+			WorkingDistributionCache.writeString(out, entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+		out.writeInt(treeCount);
+		out.writeDouble(meanLength);
+		out.writeDouble(logLength);
+		out.writeInt(lengthCount);
+		out.writeDouble(lower);
+		out.writeDouble(upper);
+		cladeIndex.write(out);
+		out.writeInt(cladeBits.length);
+		if (useGammaForBranchLengths == BranchLengthDistribution.useIntervals) {
+			out.writeInt(distrs.length);
+			for (NormalKDEDistribution distr : distrs) {
+				distr.writeCache(out);
+			}
+		}
+	}
+
+	@Override
+	public boolean readCache(ByteBuffer in) {
+		// taxa should be numbered as in the tree the cache was built for
+		int taxonCount = in.getInt();
+		if (taxonCount != mapTaxonIDToNr.size()) {
+			return false;
+		}
+		for (int i = 0; i < taxonCount; i++) {
+			String id = WorkingDistributionCache.getString(in);
+			if (!Integer.valueOf(in.getInt()).equals(mapTaxonIDToNr.get(id))) {
+				Log.warning("Taxa of " + getID() + " are numbered differently from its cached distribution, which is ignored");
+				return false;
+			}
+		}
+		treeCount = in.getInt();
+		meanLength = in.getDouble();
+		logLength = in.getDouble();
+		lengthCount = in.getInt();
+		lower = in.getDouble();
+		upper = in.getDouble();
+		cladeIndex = CladeIndex.read(in);
+		cladeBits = new long[in.getInt()];
+		if (useGammaForBranchLengths == BranchLengthDistribution.useIntervals) {
+			distrs = new NormalKDEDistribution[in.getInt()];
+			for (int i = 0; i < distrs.length; i++) {
+				distrs[i] = new NormalKDEDistribution();
+				distrs[i].readCache(in);
+			}
+		} else {
+			createBranchLengthDistr();
+		}
+		return true;
+	}
+	
 	private void createIntervalDistr(List<List<Double>> intervalLog) {
 		NormalKDEDistribution [] distrs = new NormalKDEDistribution[intervalLog.size()];
 		for (int i = 0; i < distrs.length; i++) {
@@ -261,59 +449,30 @@ public class GSSTreeDistribution extends Distribution {
     	}
 	}
 
-    private BitSet addClades(Node node) {
-
-        BitSet bits = new BitSet();
-
+    /** add clades below node to the index, using bits as buffer of clade keys by node number
+     * @return id of the clade of node
+     */
+    private int addClades(Node node, long [] bits, CladeIndex cladeIndex) {
+    	int words = cladeIndex.getWords();
+    	int offset = node.getNr() * words;
         if (node.isLeaf()) {
-
             int index = mapTaxonIDToNr.get(node.getID());
-            bits.set(index);
-
-        } else {
-
-        	BitSet left = addClades(node.getLeft());
-        	BitSet right = addClades(node.getRight());
-            bits.or(left);
-            bits.or(right);
-
-//            for (int i=1; i<bits.length(); i=i+2) {
-//                bits.set(i, false);
-//            }
-            addClade(bits, left, right);
+            Arrays.fill(bits, offset, offset + words, 0);
+            bits[offset + (index >>> 6)] = 1L << index;
+            return cladeIndex.add(bits, offset);
         }
-
-        return bits;
+    	int left = addClades(node.getLeft(), bits, cladeIndex);
+    	int right = addClades(node.getRight(), bits, cladeIndex);
+    	or(bits, offset, node.getLeft().getNr() * words, node.getRight().getNr() * words, words);
+    	int clade = cladeIndex.add(bits, offset);
+    	cladeIndex.addSplit(clade, left, right);
+        return clade;
     }
 
-    private void addClade(BitSet bits, BitSet left, BitSet right) {
-    	Clade clade = cladeMap.get(bits);
-
-        if (clade == null) {
-            clade = new Clade(bits);
-            cladeMap.put(bits, clade);
-        }
-        clade.setCount(clade.getCount() + 1);
-        	
-        Map<BitSet, Clade> clades = conditionalCladeMap.get(bits);
-        if (clades == null) {
-        	clades = new HashMap<>();
-            conditionalCladeMap.put(bits, clades);
-        }
-        
-        clade = clades.get(left);
-        if (clade == null) {
-        	clade = new Clade(left);
-        	clades.put(left, clade);
-        }
-        clade.setCount(clade.getCount() + 1);
-        
-        clade = clades.get(right);
-        if (clade == null) {
-        	clade = new Clade(right);
-        	clades.put(right, clade);
-        }
-        clade.setCount(clade.getCount() + 1);
+    private static void or(long [] bits, int offset, int left, int right, int words) {
+    	for (int i = 0; i < words; i++) {
+    		bits[offset + i] = bits[left + i] | bits[right + i];
+    	}
     }
     
     @Override
@@ -326,7 +485,7 @@ public class GSSTreeDistribution extends Distribution {
 	public double calculateLogP() {
 		logP = 0;
 		if (useCCDInput.get()) {
-			logP = getLogCladeCredibility(tree.getRoot(), new BitSet());
+			logP = incrementalInput.get() ? getIncrementalLogCladeCredibility() : getLogCladeCredibility(tree.getRoot());
 		}
 		
 		//System.err.print("GSST logp = " + logP);
@@ -475,62 +634,221 @@ public class GSSTreeDistribution extends Distribution {
 //		}
 //	}
 	
-	public double getLogCladeCredibility(Node node, BitSet bits) {
+	// incremental mode: per node clade key, numbers of child nodes (-1 for leaves),
+	// log clade credibility of the split at the node and of the subtree below it
+	private long [] nodeKeys;
+	private int [] childNrs;
+	private double [] splitLogP;
+	private double [] subtreeLogP;
+	private boolean cacheValid, storedCacheValid;
+	/** nodes whose topology changed and their ancestors, which are recalculated **/
+	private boolean [] changed;
+	// journal of the values of nodes overwritten since store(), undone by restore(), with
+	// journalEpoch[nr] == epoch if node nr is in the journal
+	private int [] journalNrs, journalChildNrs, journalEpoch;
+	private long [] journalKeys;
+	private double [] journalSplitLogP, journalSubtreeLogP;
+	private int journalSize, epoch;
+
+	/**
+	 * Log clade credibility of the current tree, recalculating only nodes on the paths from nodes
+	 * that got a new parent to the root. Summation is the same as for getLogCladeCredibility(Node),
+	 * so results are identical.
+	 */
+	private double getIncrementalLogCladeCredibility() {
+		int nodeCount = tree.getNodeCount();
+		if (subtreeLogP == null || subtreeLogP.length != nodeCount) {
+			int words = cladeIndex.getWords();
+			nodeKeys = new long[nodeCount * words];
+			childNrs = new int[nodeCount * 2];
+			splitLogP = new double[nodeCount];
+			subtreeLogP = new double[nodeCount];
+			changed = new boolean[nodeCount];
+			journalNrs = new int[nodeCount];
+			journalKeys = new long[nodeCount * words];
+			journalChildNrs = new int[nodeCount * 2];
+			journalSplitLogP = new double[nodeCount];
+			journalSubtreeLogP = new double[nodeCount];
+			journalEpoch = new int[nodeCount];
+			journalSize = 0;
+			epoch++;
+			cacheValid = false;
+			storedCacheValid = false;
+		}
+		Node root = tree.getRoot();
+		if (!cacheValid) {
+			updateNode(root, true);
+			cacheValid = true;
+		} else if (tree.somethingIsDirty()) {
+			// only topology changes affect clades, and these mark the nodes that got a new parent filthy
+			boolean topologyChanged = false;
+			for (Node node : tree.getNodesAsArray()) {
+				if (node.isDirty() == Tree.IS_FILTHY) {
+					for (Node n = node; n != null && !changed[n.getNr()]; n = n.getParent()) {
+						changed[n.getNr()] = true;
+					}
+					topologyChanged = true;
+				}
+			}
+			if (topologyChanged) {
+				updateNode(root, false);
+			}
+		}
+		return subtreeLogP[root.getNr()];
+	}
+
+	/** save values of node nr to the journal, if they were not saved since the last store() **/
+	private void journal(int nr) {
+		if (journalEpoch[nr] == epoch) {
+			return;
+		}
+		journalEpoch[nr] = epoch;
+		int j = journalSize++;
+		int words = cladeIndex.getWords();
+		journalNrs[j] = nr;
+		System.arraycopy(nodeKeys, nr * words, journalKeys, j * words, words);
+		journalChildNrs[2 * j] = childNrs[2 * nr];
+		journalChildNrs[2 * j + 1] = childNrs[2 * nr + 1];
+		journalSplitLogP[j] = splitLogP[nr];
+		journalSubtreeLogP[j] = subtreeLogP[nr];
+	}
+
+	final static int SUBTREE_CHANGED = 1, KEY_CHANGED = 2;
 
-        double logCladeCredibility = 0.0;
+	/**
+	 * Update cached values below node
+	 * @param force recalculate all nodes, otherwise only nodes marked as changed
+	 * @return SUBTREE_CHANGED and/or KEY_CHANGED flags
+	 */
+	private int updateNode(Node node, boolean force) {
+		int words = cladeIndex.getWords();
+		int nr = node.getNr();
+		if (!force && !changed[nr]) {
+			return 0;
+		}
+		changed[nr] = false;
+		int offset = nr * words;
+		if (node.isLeaf()) {
+			if (force) {
+				journal(nr);
+				Arrays.fill(nodeKeys, offset, offset + words, 0);
+				nodeKeys[offset + (nr >>> 6)] = 1L << nr;
+				childNrs[2 * nr] = -1;
+				childNrs[2 * nr + 1] = -1;
+				subtreeLogP[nr] = 0.0;
+				return SUBTREE_CHANGED | KEY_CHANGED;
+			}
+			return 0;
+		}
+		Node leftNode = node.getLeft();
+		Node rightNode = node.getRight();
+		int childFlags = updateNode(leftNode, force) | updateNode(rightNode, force);
+		boolean childrenChanged = childNrs[2 * nr] != leftNode.getNr() || childNrs[2 * nr + 1] != rightNode.getNr();
+		if (!force && !childrenChanged && childFlags == 0) {
+			return 0;
+		}
+		journal(nr);
+		int left = leftNode.getNr() * words;
+		int right = rightNode.getNr() * words;
+		int result = SUBTREE_CHANGED;
+		if (force || childrenChanged || (childFlags & KEY_CHANGED) != 0) {
+			boolean keyChanged = false;
+			for (int i = 0; i < words; i++) {
+				long bits = nodeKeys[left + i] | nodeKeys[right + i];
+				if (bits != nodeKeys[offset + i]) {
+					nodeKeys[offset + i] = bits;
+					keyChanged = true;
+				}
+			}
+			if (keyChanged) {
+				result |= KEY_CHANGED;
+			}
+			childNrs[2 * nr] = leftNode.getNr();
+			childNrs[2 * nr + 1] = rightNode.getNr();
+			splitLogP[nr] = getLogCladeCredibility(nodeKeys, offset, left, right);
+		}
+		double logCladeCredibility = subtreeLogP[leftNode.getNr()];
+		logCladeCredibility += subtreeLogP[rightNode.getNr()];
+		logCladeCredibility += splitLogP[nr];
+		subtreeLogP[nr] = logCladeCredibility;
+		return result;
+	}
 
+	@Override
+	public void store() {
+		super.store();
+		journalSize = 0;
+		epoch++;
+		storedCacheValid = cacheValid;
+	}
+
+	@Override
+	public void restore() {
+		super.restore();
+		if (subtreeLogP != null) {
+			int words = cladeIndex.getWords();
+			for (int j = 0; j < journalSize; j++) {
+				int nr = journalNrs[j];
+				System.arraycopy(journalKeys, j * words, nodeKeys, nr * words, words);
+				childNrs[2 * nr] = journalChildNrs[2 * j];
+				childNrs[2 * nr + 1] = journalChildNrs[2 * j + 1];
+				splitLogP[nr] = journalSplitLogP[j];
+				subtreeLogP[nr] = journalSubtreeLogP[j];
+			}
+		}
+		journalSize = 0;
+		epoch++;
+		cacheValid = storedCacheValid;
+	}
+
+	@Override
+	public void accept() {
+		super.accept();
+		journalSize = 0;
+		epoch++;
+	}
+
+	public double getLogCladeCredibility(Node node) {
+		if (cladeBits.length < tree.getNodeCount() * cladeIndex.getWords()) {
+			cladeBits = new long[tree.getNodeCount() * cladeIndex.getWords()];
+		}
+		return getLogCladeCredibility(node, cladeBits);
+	}
+
+	/** log clade credibility of subtree below node, leaving clade key of node in bits at its node number **/
+	private double getLogCladeCredibility(Node node, long [] bits) {
+		int words = cladeIndex.getWords();
+		int offset = node.getNr() * words;
         if (node.isLeaf()) {
             int index = node.getNr();
-            bits.set(index);
-        } else {
-
-            BitSet bits2 = new BitSet();
-            
-        	BitSet left = new BitSet(); 
-        	logCladeCredibility += getLogCladeCredibility(node.getLeft(), left);
-        	BitSet right = new BitSet(); 
-        	logCladeCredibility += getLogCladeCredibility(node.getRight(), right);
-            bits2.or(left);
-            bits2.or(right);
-
-//            for (int i=1; i<bits2.length(); i=i+2) {
-//                bits2.set(i, false);
-//            }
-
-            logCladeCredibility += getLogCladeCredibility(bits2, left, right);
-
-            if (bits != null) {
-                bits.or(bits2);
-            }
+            Arrays.fill(bits, offset, offset + words, 0);
+            bits[offset + (index >>> 6)] = 1L << index;
+            return 0.0;
         }
-
-        //System.err.println(node.getNr() + " " + logCladeCredibility);
+        double logCladeCredibility = getLogCladeCredibility(node.getLeft(), bits);
+        logCladeCredibility += getLogCladeCredibility(node.getRight(), bits);
+        int left = node.getLeft().getNr() * words;
+        int right = node.getRight().getNr() * words;
+        or(bits, offset, left, right, words);
+        logCladeCredibility += getLogCladeCredibility(bits, offset, left, right);
         return logCladeCredibility;
     }
 	
-    private double getLogCladeCredibility(BitSet bits, BitSet left, BitSet right) {
-    	Clade clade = cladeMap.get(bits);
-    	if (clade == null) {
+    private double getLogCladeCredibility(long [] bits, int offset, int left, int right) {
+    	int clade = cladeIndex.find(bits, offset);
+    	if (clade < 0) {
     		return EPSILON;
     	}
-        int cladeCount = clade.getCount();
-	
-    	Map<BitSet, Clade> clades = conditionalCladeMap.get(bits);
-        if (clades == null) {
-        	return EPSILON;
-        }
-        
-        Clade leftClade = clades.get(left);
-        int leftCount = (leftClade != null ? leftClade.getCount() : 0);
-
-        Clade rightClade = clades.get(right);
-        int rightCount = (rightClade != null ? rightClade.getCount() : 0);
-        
-        int subCladCount = Math.max(leftCount, rightCount);
-        if (subCladCount == 0) {
+    	// both children of a split have the same count, so either gives the conditional clade probability
+    	int child = cladeIndex.find(bits, left);
+    	double logP = child < 0 ? Double.NaN : cladeIndex.getLogConditional(clade, child);
+    	if (Double.isNaN(logP)) {
+    		child = cladeIndex.find(bits, right);
+    		logP = child < 0 ? Double.NaN : cladeIndex.getLogConditional(clade, child);
+    	}
+        if (Double.isNaN(logP)) {
         	return EPSILON;
         }
-        double logP = Math.log(subCladCount) - Math.log(cladeCount);
         return logP;
     }
 
@@ -541,105 +859,167 @@ public class GSSTreeDistribution extends Distribution {
 	public List<String> getConditions() {return null;}
 
 	@Override
-	public void sample(State state, Random random) {}
-
-    public class Clade {
-        public Clade(BitSet bits) {
-            this.bits = bits;
-            count = 0;
-            credibility = 0.0;
-        }
-
-        public int getCount() {
-            return count;
-        }
-
-        public void setCount(int count) {
-            this.count = count;
-        }
-
-        public double getCredibility() {
-            return credibility;
-        }
-
-        public void setCredibility(double credibility) {
-            this.credibility = credibility;
-        }
+	public List<StateNode> getSampledStateNodes() {
+		if (!canDraw() || !(tree instanceof Tree)) {
+			return null;
+		}
+		return Collections.singletonList((StateNode) tree);
+	}
 
-        public List<Object[]> getAttributeValues() {
-            return attributeValues;
-        }
+	@Override
+	public void sample(State state, Random random) {
+		((Tree) tree).assignFromWithoutID(drawTree(random));
+	}
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+	/**
+	 * Trees can be drawn exactly when the topology follows the conditional clade distribution and
+	 * node heights the interval distributions, and tips are contemporaneous. The working density is
+	 * then prod_v p(split at v | clade v) prod_i f_i(interval i) f_root(root height), which
+	 * is the same for every ranking of the internal nodes.
+	 */
+	private boolean canDraw() {
+		if (!useCCDInput.get() || useGammaForBranchLengths != BranchLengthDistribution.useIntervals) {
+			return false;
+		}
+		for (Node node : tree.getNodesAsArray()) {
+			if (node.isLeaf() && node.getHeight() > 1e-9) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-            final Clade clade = (Clade) o;
+	/** for drawing trees: interval distributions of the coalescent intervals, from the tips to the root **/
+	private NormalKDEDistribution [] coalescentDistrs;
+	private double maxRootDensity;
 
-            return !(bits != null ? !bits.equals(clade.bits) : clade.bits != null);
+	private void prepareDraws() {
+		cladeIndex.prepareDraws(true);
+		TreeIntervals intervals = new TreeIntervals();
+		intervals.treeInput.setValue(tree, intervals);
+		intervals.initAndValidate();
+		List<NormalKDEDistribution> coalescent = new ArrayList<>();
+		for (int i = 0; i < intervals.getIntervalCount(); i++) {
+			if (intervals.getIntervalType(i) == IntervalType.COALESCENT) {
+				coalescent.add(distrs[i]);
+			}
+		}
+		if (coalescent.size() != tree.getInternalNodeCount()) {
+			throw new IllegalArgumentException("Expected " + tree.getInternalNodeCount() + " coalescent intervals, not " + coalescent.size());
+		}
+		coalescentDistrs = coalescent.toArray(new NormalKDEDistribution[] {});
+		maxRootDensity = distrs[distrs.length - 1].getMaxDensity();
+	}
 
-        }
+	/**
+	 * Draw a tree exactly from the working distribution: the topology is drawn top down from
+	 * the conditional clade distribution, weighted by its number of rankings, a ranking of the
+	 * internal nodes is drawn uniformly, and intervals are drawn from the interval distributions,
+	 * accepting them with probability proportional to the root height density. Only splits seen in
+	 * the tree set are drawn, and densities outside the interval distributions, which are replaced by
+	 * EPSILON in calculateLogP, are treated as zero.
+	 */
+	public Tree drawTree(Random random) {
+		if (!canDraw()) {
+			throw new IllegalArgumentException("Trees can only be drawn from " + getID() + 
+					" for useCCD=true, useGammaForBranchLengths=useIntervals and contemporaneous tips");
+		}
+		if (coalescentDistrs == null) {
+			prepareDraws();
+		}
+		int taxonCount = tree.getLeafNodeCount();
+		// internal nodes in post order, so they are numbered after the leaves with the root last
+		List<Node> internal = new ArrayList<>();
+		int [] internalCount = new int[tree.getNodeCount()];
+		Node root = drawSubtree(cladeIndex.getRootClade(), random, new int[2], internal, internalCount);
 
-        @Override
-        public int hashCode() {
-            return (bits != null ? bits.hashCode() : 0);
-        }
+		// uniform ranking: top down, the next node is drawn with probability proportional to
+		// the number of internal nodes below and including it
+		Node [] ranked = new Node[internal.size()];
+		List<Node> available = new ArrayList<>();
+		available.add(root);
+		for (int k = ranked.length - 1; k >= 0; k--) {
+			int total = 0;
+			for (Node node : available) {
+				total += internalCount[node.getNr()];
+			}
+			int u = random.nextInt(total);
+			int j = 0;
+			while (u >= internalCount[available.get(j).getNr()]) {
+				u -= internalCount[available.get(j).getNr()];
+				j++;
+			}
+			Node node = available.remove(j);
+			ranked[k] = node;
+			for (Node child : node.getChildren()) {
+				if (!child.isLeaf()) {
+					available.add(child);
+				}
+			}
+		}
 
-        @Override
-        public String toString() {
-        	if (tree != null) {
-        		List<String> taxa = tree.getTaxonset().asStringList();
-        		StringBuilder b = new StringBuilder();
-        		b.append("{");
-        		for (int i = 0; i < taxa.size(); i++) {
-        			if (bits.get(i * 2)) {
-        				b.append(taxa.get((int)i)).append(",");
-        			}
-        		}
-        		b.deleteCharAt(b.length() - 1);
-        		b.append('}');
-        		return b.toString();
-        	}
-            return "clade " + bits.toString();
-        }
+		// intervals, with rejection on the root height
+		double [] heights = new double[ranked.length];
+		for (int attempt = 0; ; attempt++) {
+			if (attempt == KernelDensityEstimatorDistribution.MAX_REJECTIONS) {
+				throw new IllegalArgumentException("Could not draw root height from " + getID());
+			}
+			double height = 0;
+			for (int i = 0; i < heights.length; i++) {
+				height += coalescentDistrs[i].nextValue(random, 1e-9, Double.POSITIVE_INFINITY);
+				heights[i] = height;
+			}
+			if (random.nextDouble() * maxRootDensity < distrs[distrs.length - 1].pdf(height)) {
+				break;
+			}
+		}
+		for (int i = 0; i < ranked.length; i++) {
+			ranked[i].setHeight(heights[i]);
+		}
+		return new Tree(root);
+	}
 
-        int count;
-        double credibility;
-        BitSet bits;
-        List<Object[]> attributeValues = null;
-    }
+	/** draw subtree of clade, numbering internal nodes in post order and recording their numbers of internal nodes **/
+	private Node drawSubtree(int clade, Random random, int [] children, List<Node> internal, int [] internalCount) {
+		Node node = new Node();
+		if (cladeIndex.getCladeSize(clade) == 1) {
+			int taxon = cladeIndex.getFirstTaxon(clade);
+			node.setNr(taxon);
+			node.setID(tree.getNode(taxon).getID());
+			node.setHeight(0);
+			return node;
+		}
+		cladeIndex.drawSplit(clade, random.nextDouble(), children);
+		int right = children[1];
+		node.addChild(drawSubtree(children[0], random, children, internal, internalCount));
+		node.addChild(drawSubtree(right, random, children, internal, internalCount));
+		node.setNr(tree.getLeafNodeCount() + internal.size());
+		internal.add(node);
+		internalCount[node.getNr()] = cladeIndex.getCladeSize(clade) - 1;
+		return node;
+	}
 
 	public void listConditionalCladeProbabilities() {
-		for (BitSet bitset : conditionalCladeMap.keySet()) {
-			Map<BitSet, Clade> clades = conditionalCladeMap.get(bitset);
-	    	Clade clade = cladeMap.get(bitset);
-	        int cladeCount = clade.getCount();
-
-			
-			for (BitSet left : clades.keySet()) {
-				BitSet right = new BitSet();
-				right.or(bitset);
-				right.xor(left);
-				
-		        Clade leftClade = clades.get(left);
-		        int leftCount = (leftClade != null ? leftClade.getCount() : 0);
+		cladeIndex.forEachSplit((parent, child, count) -> {
+			System.out.print(cladeToString(child) + " in " + cladeToString(parent) + " :");
+			System.out.println((double) count / cladeIndex.getParentCount(parent));
+		});
+	}
 
-		        Clade rightClade = clades.get(right);
-		        int rightCount = (rightClade != null ? rightClade.getCount() : 0);
-		        
-		        int subCladCount = Math.max(leftCount, rightCount);
-		        System.out.print(leftClade + " " + rightClade + " :");
-		        if (subCladCount == 0) {
-		        	System.out.println(EPSILON);
-		        } else {
-		        	System.out.println((double)subCladCount/cladeCount);
-		        }
+	private String cladeToString(int clade) {
+		StringBuilder b = new StringBuilder();
+		b.append("{");
+		for (Map.Entry<String, Integer> taxon : mapTaxonIDToNr.entrySet()) {
+			if (cladeIndex.contains(clade, taxon.getValue())) {
+				b.append(taxon.getKey()).append(",");
 			}
-		}		
+		}
+		b.setCharAt(b.length() - 1, '}');
+		return b.toString();
 	}
 
 	public void setTree(Tree tree) {
 		((Tree) this.tree).assignFrom(tree);
+		cacheValid = false;
 	}
 }
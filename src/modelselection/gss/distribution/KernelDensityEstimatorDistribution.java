@@ -25,6 +25,8 @@
 
 package modelselection.gss.distribution;
 
+import java.util.Random;
+
 import beast.base.core.Description;
 import beast.base.inference.Distribution;
 import beast.base.core.Function;
@@ -126,6 +128,32 @@ public abstract class KernelDensityEstimatorDistribution extends Distribution {
         throw new RuntimeException("Not Implemented.");
     }
 
+    /**
+     * draw from the distribution
+     *
+     * @param random source of random numbers
+     * @return sample
+     */
+    public double nextValue(Random random) {
+        throw new RuntimeException("Not Implemented.");
+    }
+
+    /**
+     * draw from the distribution truncated to [lower, upper], by rejection
+     *
+     * @param random source of random numbers
+     * @return sample
+     */
+    public double nextValue(Random random, double lower, double upper) {
+        for (int i = 0; i < MAX_REJECTIONS; i++) {
+            double x = nextValue(random);
+            if (x >= lower && x <= upper) {
+                return x;
+            }
+        }
+        throw new IllegalArgumentException("Could not draw from " + getID() + " within [" + lower + "," + upper + "]");
+    }
+
     /**
      * mean of the distribution
      *
@@ -180,6 +208,8 @@ public abstract class KernelDensityEstimatorDistribution extends Distribution {
         private final String text;
     }
 
+    final static int MAX_REJECTIONS = 10000;
+
     protected int N;
     protected double lowerBound;
     protected double upperBound;
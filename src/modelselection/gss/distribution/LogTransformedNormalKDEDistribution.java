@@ -395,7 +395,10 @@ public class LogTransformedNormalKDEDistribution extends KernelDensityEstimatorD
         	computeDensity();
         }
         //xPoints and densityPoints are now back in normal space
-        return linearApproximate(xPoints, finalDensityPoints, x, 0.0, 0.0);
+        if (grid == null || grid.y != finalDensityPoints) {
+            grid = new UniformGrid(xPoints, finalDensityPoints);
+        }
+        return grid.evaluate(x);
     }
 
     @Override
@@ -431,6 +434,7 @@ public class LogTransformedNormalKDEDistribution extends KernelDensityEstimatorD
     private ComplexArray kOrdinates;
     private double[] xPoints, backupXPoints;
     private double[] densityPoints, finalDensityPoints;
+    private UniformGrid grid;
     private double[] backupSample, logSample;
 
     private int gridSize;
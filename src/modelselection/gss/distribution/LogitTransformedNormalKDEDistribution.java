@@ -402,7 +402,10 @@ public class LogitTransformedNormalKDEDistribution extends KernelDensityEstimato
         	computeDensity();
         }
         //xPoints and densityPoints are now back in normal space
-        return linearApproximate(finalXPoints, finalDensityPoints, x, 0.0, 0.0);
+        if (grid == null || grid.y != finalDensityPoints) {
+            grid = new UniformGrid(finalXPoints, finalDensityPoints);
+        }
+        return grid.evaluate(x);
     }
 
     @Override
@@ -438,6 +441,7 @@ public class LogitTransformedNormalKDEDistribution extends KernelDensityEstimato
     private ComplexArray kOrdinates;
     private double[] xPoints, finalXPoints, backupXPoints;
     private double[] densityPoints, finalDensityPoints;
+    private UniformGrid grid;
     private double[] backupSample, logitSample;
 
     private int gridSize;
@@ -27,6 +27,7 @@ package modelselection.gss.distribution;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
@@ -36,12 +37,14 @@ import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Param;
 import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.RealParameter;
 
 /**
  * @author Guy Baele
  */
 @Description("Multivariate kernel density esitmators that assumes input variable has independent components")
-public class MultivariateKDEDistribution extends Distribution {
+public class MultivariateKDEDistribution extends Distribution implements ExactSampler {
 	public Input<List<KernelDensityEstimatorDistribution>> distInput = new Input<>("dist","distributions, one for each of the dimensions of the parameter", new ArrayList<>());
 	public Input<Function> xInput = new Input<>("x", "parameter to which this distribution applies");
 	
@@ -160,10 +163,28 @@ public class MultivariateKDEDistribution extends Distribution {
 		return null;
 	}
 
+	@Override
+	public List<StateNode> getSampledStateNodes() {
+		if (!(p instanceof RealParameter) || p.getDimension() != dimension) {
+			return null;
+		}
+		for (KernelDensityEstimatorDistribution k : multivariateKDE) {
+			if (!(k instanceof ExactSampler)) {
+				return null;
+			}
+		}
+		return Collections.singletonList((StateNode) p);
+	}
+
 	@Override
 	public void sample(State state, Random random) {
-		// TODO Auto-generated method stub
-		
+		if (!(p instanceof RealParameter)) {
+			throw new IllegalArgumentException("Cannot sample " + getID() + " since x is not a RealParameter");
+		}
+		RealParameter param = (RealParameter) p;
+		for (int i = 0; i < dimension; i++) {
+			param.setValue(i, multivariateKDE[i].nextValue(random, param.getLower(), param.getUpper()));
+		}
 	}
 	
 }
@@ -32,12 +32,20 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Param;
 import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.RealParameter;
 import beast.base.util.DiscreteStatistics;
 import beast.base.util.HeapSort;
 //import dr.stats.DiscreteStatistics;
 //import dr.util.HeapSort;
 import modelselection.gss.TraceLog;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
@@ -45,10 +53,12 @@ import java.util.Random;
  * @author Marc A. Suchard
  */
 @Description("Distribution based on normal kernel density esitmators (and no transform on the input)")
-public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
+public class NormalKDEDistribution extends KernelDensityEstimatorDistribution implements WorkingDistributionCache.Cacheable, ExactSampler {
 	public Input<TraceLog> traceLogInput = new Input<>("traceLog", "file containing trace log", Validate.REQUIRED);
 	public Input<String> labelInput = new Input<>("label", "label of the column containing data in the trace file", Validate.REQUIRED);
 	public Input<Function> xInput = new Input<>("x", "function/statistic to take distribution over");
+	public Input<String> cacheInput = new Input<>("cache", "binary cache of working distributions (see MCMC2GSS). "
+			+ "If it contains this distribution, the trace log is not read");
 
     public static final int MINIMUM_GRID_SIZE = 512;
 
@@ -57,6 +67,10 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
     	this.p = xInput.get();
 		this.traceLog = traceLogInput.get();
 		this.label = labelInput.get();
+		if (cacheInput.get() != null && WorkingDistributionCache.get(cacheInput.get()).load(this)) {
+			super.initAndValidate();
+			return;
+		}
 
 		Double [] sample = traceLog.getTrace(label); 
         this.sample = new double[sample.length];
@@ -130,52 +144,58 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
         densityKnown = false;
     }
 
-    public double getFromPoint() {
-        return from;
+    @Override
+    public File getCacheFile() {
+    	return traceLog == null ? null : traceLog.traceFileInput.get();
     }
 
-    public double getToPoint() {
-        return to;
+    @Override
+    public String getCacheKey() {
+    	return "NormalKDEDistribution\tburnin=" + traceLog.burnInPercentageInput.get() + "\tlabel=" + label;
     }
 
-    /**
-     * Returns a linear approximation evaluated at pt
-     * @param x data (assumed sorted increasingly
-     * @param y data
-     * @param pt evaluation point
-     * @param low return value if pt < x
-     * @param high return value if pt > x
-     * @return  evaluated coordinate
-     */
-    private double linearApproximate(double[] x, double[] y, double pt, double low, double high) {
-
-        int i = 0;
-        int j = x.length - 1;
-
-        if (pt < x[i]) {
-            return low;
-        }
-        if (pt > x[j]) {
-            return high;
+    /** write the density grid, from which the density is interpolated **/
+    @Override
+    public void writeCache(DataOutputStream out) throws IOException {
+        if (!densityKnown) {
+            computeDensity();
         }
+        out.writeInt(N);
+        out.writeDouble(bandWidth);
+        out.writeInt(gridSize);
+        out.writeDouble(cut);
+        out.writeDouble(from);
+        out.writeDouble(to);
+        out.writeDouble(lo);
+        out.writeDouble(up);
+        WorkingDistributionCache.writeDoubles(out, xPoints, gridSize);
+        WorkingDistributionCache.writeDoubles(out, densityPoints, gridSize);
+    }
 
-        // Bisection search
-        while (i < j - 1) {
-            int ij = (i + j) / 2;
-            if (pt < x[ij]) {
-                j = ij;
-            } else {
-                i = ij;
-            }
-        }
+    /** restore density grid, without the sample it was estimated from **/
+    @Override
+    public boolean readCache(ByteBuffer in) {
+        N = in.getInt();
+        bandWidth = in.getDouble();
+        gridSize = in.getInt();
+        cut = in.getDouble();
+        from = in.getDouble();
+        to = in.getDouble();
+        lo = in.getDouble();
+        up = in.getDouble();
+        lowerBound = Double.NEGATIVE_INFINITY; upperBound = Double.POSITIVE_INFINITY;
+        xPoints = WorkingDistributionCache.getDoubles(in, 0);
+        densityPoints = WorkingDistributionCache.getDoubles(in, 0);
+        densityKnown = true;
+        return true;
+    }
 
-        if (pt == x[j]) {
-            return y[j];
-        }
-        if (pt == x[i]) {
-            return y[i];
-        }
-        return y[i] + (y[j] - y[i]) * ((pt - x[i]) / (x[j] - x[i]));
+    public double getFromPoint() {
+        return from;
+    }
+
+    public double getToPoint() {
+        return to;
     }
 
     private double[] rescaleAndTrim(double[] x) {
@@ -289,12 +309,71 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
         }
     }
 
+    /** cumulative probability at the grid points, for drawing by inverse CDF **/
+    private void makeCDF() {
+        if (!densityKnown) {
+            computeDensity();
+        }
+        double [] cdf = new double[gridSize];
+        for (int i = 1; i < gridSize; i++) {
+            cdf[i] = cdf[i - 1] + (xPoints[i] - xPoints[i - 1]) * (densityPoints[i] + densityPoints[i - 1]) / 2.0;
+        }
+        cdfPoints = cdf;
+        cdfXPoints = xPoints;
+        cdfDensityPoints = densityPoints;
+    }
+
+    /**
+     * Draw by inverse CDF from the piecewise linear density interpolated between grid points,
+     * which is the density evaluated by pdf(), normalised
+     */
+    @Override
+    public double nextValue(Random random) {
+        // the density grid is recomputed when the band width changes, or replaced when read from the cache
+        if (!densityKnown || cdfPoints == null || cdfXPoints != xPoints || cdfDensityPoints != densityPoints) {
+            makeCDF();
+        }
+        double u = random.nextDouble() * cdfPoints[gridSize - 1];
+        int i = Arrays.binarySearch(cdfPoints, u);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        i = Math.max(0, Math.min(gridSize - 2, i));
+        while (i < gridSize - 2 && cdfPoints[i + 1] <= u) {
+            // skip segments without mass
+            i++;
+        }
+        // solve y0 s + (y1 - y0) s^2 / 2h = r for the offset s in segment i
+        double h = xPoints[i + 1] - xPoints[i];
+        double y0 = densityPoints[i];
+        double a = (densityPoints[i + 1] - y0) / (2.0 * h);
+        double r = u - cdfPoints[i];
+        double denominator = y0 + Math.sqrt(Math.max(0.0, y0 * y0 + 4.0 * a * r));
+        double s = denominator > 0 ? 2.0 * r / denominator : 0.0;
+        return xPoints[i] + Math.min(h, s);
+    }
+
+    /** @return maximum of the density over the grid **/
+    public double getMaxDensity() {
+        if (!densityKnown) {
+            computeDensity();
+        }
+        double max = 0;
+        for (double d : densityPoints) {
+            max = Math.max(max, d);
+        }
+        return max;
+    }
+
     @Override
     protected double evaluateKernel(double x) {        
         if (!densityKnown) {
            computeDensity();
         }
-        return linearApproximate(xPoints, densityPoints, x, 0.0, 0.0);
+        if (grid == null || grid.y != densityPoints) {
+            grid = new UniformGrid(xPoints, densityPoints);
+        }
+        return grid.evaluate(x);
     }
 
     @Override
@@ -338,6 +417,10 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
     private ComplexArray kOrdinates;
     private double[] xPoints;
     private double[] densityPoints;
+    private double[] cdfPoints;
+    /** grid that cdfPoints was calculated from **/
+    private double[] cdfXPoints, cdfDensityPoints;
+    private UniformGrid grid;
 
     private int gridSize;
     private double cut;
@@ -383,10 +466,23 @@ public class NormalKDEDistribution extends KernelDensityEstimatorDistribution {
 		return null;
 	}
 
+	@Override
+	public List<StateNode> getSampledStateNodes() {
+		if (p instanceof RealParameter) {
+			return Collections.singletonList((StateNode) p);
+		}
+		return null;
+	}
+
 	@Override
 	public void sample(State state, Random random) {
-		// TODO Auto-generated method stub
-		
+		if (!(p instanceof RealParameter)) {
+			throw new IllegalArgumentException("Cannot sample " + getID() + " since x is not a RealParameter");
+		}
+		RealParameter param = (RealParameter) p;
+		for (int i = 0; i < param.getDimension(); i++) {
+			param.setValue(i, nextValue(random, param.getLower(), param.getUpper()));
+		}
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+package modelselection.gss.distribution;
+
+import java.util.Random;
+
+/**
+ * Piecewise linear function on the uniform grids built by the kernel density estimators.
+ * The cell containing a point is computed from its offset to the start of the grid, and
+ * corrected by at most a step for rounding in the grid points, instead of found by bisection.
+ * Values are identical to those of linear interpolation with bisection over the same points.
+ */
+public class UniformGrid {
+	final double [] x, y;
+	final double lo, scale;
+
+	/**
+	 * @param x equally spaced grid points, increasing
+	 * @param y function values at the grid points
+	 */
+	public UniformGrid(double [] x, double [] y) {
+		this.x = x;
+		this.y = y;
+		lo = x[0];
+		scale = x.length > 1 ? (x.length - 1) / (x[x.length - 1] - x[0]) : 0;
+	}
+
+	/** @return linear interpolation at pt, 0 outside the grid **/
+	public double evaluate(double pt) {
+		int last = x.length - 1;
+		if (pt < x[0] || pt > x[last]) {
+			return 0.0;
+		}
+		if (last == 0) {
+			return linearApproximate(x, y, pt, 0.0, 0.0);
+		}
+		int i = (int) ((pt - lo) * scale);
+		i = Math.max(0, Math.min(last - 1, i));
+		while (i > 0 && x[i] > pt) {
+			i--;
+		}
+		while (i < last - 1 && x[i + 1] <= pt) {
+			i++;
+		}
+		int j = i + 1;
+		if (pt == x[j]) {
+			return y[j];
+		}
+		if (pt == x[i]) {
+			return y[i];
+		}
+		return y[i] + (y[j] - y[i]) * ((pt - x[i]) / (x[j] - x[i]));
+	}
+
+	/** linear interpolation with bisection, as used by the kernel density estimators before **/
+	public static double linearApproximate(double[] x, double[] y, double pt, double low, double high) {
+		int i = 0;
+		int j = x.length - 1;
+		if (pt < x[i]) {
+			return low;
+		}
+		if (pt > x[j]) {
+			return high;
+		}
+		while (i < j - 1) {
+			int ij = (i + j) / 2;
+			if (pt < x[ij]) {
+				j = ij;
+			} else {
+				i = ij;
+			}
+		}
+		if (pt == x[j]) {
+			return y[j];
+		}
+		if (pt == x[i]) {
+			return y[i];
+		}
+		return y[i] + (y[j] - y[i]) * ((pt - x[i]) / (x[j] - x[i]));
+	}
+
+	/** compare cost per call of grid lookup and bisection **/
+	public static void main(String[] args) {
+		int gridSize = args.length > 0 ? Integer.parseInt(args[0]) : NormalKDEDistribution.MINIMUM_GRID_SIZE;
+		int calls = 10000000;
+		double [] x = new double[gridSize];
+		double [] y = new double[gridSize];
+		double lo = -5, delta = 10.0 / (gridSize - 1), v = lo;
+		for (int i = 0; i < gridSize; i++) {
+			// accumulated like the grids of the density estimators
+			x[i] = v;
+			y[i] = Math.exp(-v * v / 2) / Math.sqrt(2 * Math.PI);
+			v += delta;
+		}
+		UniformGrid grid = new UniformGrid(x, y);
+		Random random = new Random(1234);
+		double [] points = new double[calls];
+		for (int i = 0; i < calls; i++) {
+			points[i] = random.nextGaussian() * 2;
+		}
+		for (int round = 0; round < 5; round++) {
+			double sum = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				sum += linearApproximate(x, y, points[i], 0, 0);
+			}
+			long bisection = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < calls; i++) {
+				sum -= grid.evaluate(points[i]);
+			}
+			long lookup = System.nanoTime() - start;
+			System.out.println(String.format("grid size %d: bisection %.1f ns/call, grid lookup %.1f ns/call (check %g)",
+					gridSize, (double) bisection / calls, (double) lookup / calls, sum));
+		}
+	}
+}
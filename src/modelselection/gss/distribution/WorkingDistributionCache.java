@@ -0,0 +1,324 @@
+package modelselection.gss.distribution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import beast.base.core.Log;
+
+/**
+ * Binary cache of working distributions of a GSS analysis, so that the conditional clade
+ * distribution and kernel density estimates are built once by MCMC2GSS instead of once per step.
+ * Entries are keyed by the settings of a distribution and the content hash of the log it is built from.
+ * The cache records path, length, modification time and hash of every log, so step processes memory
+ * map the cache and look up the hash of a log whose length and modification time are unchanged instead
+ * of hashing it again. Otherwise, the distribution is built from the log as usual.
+ *
+ * The file contains MAGIC, VERSION, the number of logs, followed by path, length, modification time and
+ * hash of every log, then the number of entries, followed by the key, payload length and payload of every
+ * entry. The file is replaced atomically when saved, so step processes never see a partly written cache.
+ */
+public class WorkingDistributionCache {
+	final static int MAGIC = 0x4d535744; // "MSWD"
+	final static int VERSION = 2;
+
+	/** distribution that can be stored in the cache **/
+	public interface Cacheable {
+		/** @return log the distribution is built from, or null if it cannot be cached **/
+		File getCacheFile();
+
+		/** @return key identifying the settings the distribution is built with from its log **/
+		String getCacheKey();
+
+		void writeCache(DataOutputStream out) throws IOException;
+
+		/** restore distribution from payload written by writeCache
+		 * @return false if the payload does not fit this distribution, which should then be built from its log
+		 **/
+		boolean readCache(ByteBuffer in);
+	}
+
+	/** caches by path, so every process maps a cache file only once **/
+	private static Map<String, WorkingDistributionCache> caches = new HashMap<>();
+	/** content hashes by path, length and modification time, so a log is hashed only once **/
+	private static Map<String, String> hashes = new HashMap<>();
+
+	/** length, modification time and content hash of a log when the cache was saved **/
+	static class LogFile {
+		final long length, lastModified;
+		final String hash;
+
+		LogFile(long length, long lastModified, String hash) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	final File file;
+	/** logs that entries are built from, by absolute path **/
+	final Map<String, LogFile> logs = new LinkedHashMap<>();
+	/** payloads of entries in the file, as slices of the mapped file **/
+	final Map<String, ByteBuffer> entries = new LinkedHashMap<>();
+	/** payloads of entries added since the file was loaded **/
+	final Map<String, byte []> pending = new LinkedHashMap<>();
+
+	private WorkingDistributionCache(File file) {
+		this.file = file;
+	}
+
+	/** @return cache for file name, which is loaded the first time it is requested **/
+	public static synchronized WorkingDistributionCache get(String fileName) {
+		File file = new File(fileName).getAbsoluteFile();
+		WorkingDistributionCache cache = caches.get(file.getPath());
+		if (cache == null) {
+			cache = new WorkingDistributionCache(file);
+			if (file.exists()) {
+				cache.load();
+			}
+			caches.put(file.getPath(), cache);
+		}
+		return cache;
+	}
+
+	private void load() {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (raf.length() > Integer.MAX_VALUE) {
+				Log.warning("Working distribution cache " + file.getPath() + " is too large to map and is ignored");
+				return;
+			}
+			ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				Log.warning("Working distribution cache " + file.getPath() + " has an unknown format and is ignored");
+				return;
+			}
+			int logCount = buf.getInt();
+			for (int i = 0; i < logCount; i++) {
+				String path = getString(buf);
+				long length = buf.getLong();
+				long lastModified = buf.getLong();
+				logs.put(path, new LogFile(length, lastModified, getString(buf)));
+			}
+			int count = buf.getInt();
+			for (int i = 0; i < count; i++) {
+				String key = getString(buf);
+				int length = (int) buf.getLong();
+				ByteBuffer payload = buf.slice();
+				payload.limit(length);
+				entries.put(key, payload);
+				buf.position(buf.position() + length);
+			}
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			// corrupt or truncated cache
+			Log.warning("Could not read working distribution cache " + file.getPath() + ": " + e.getMessage());
+			logs.clear();
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Restore distribution from the cache, if its log has the length and modification time 
+	 * recorded in the cache. The log is not hashed.
+	 * @return whether the cache contained the distribution
+	 */
+	public boolean load(Cacheable distribution) {
+		File log = distribution.getCacheFile();
+		if (log == null) {
+			return false;
+		}
+		LogFile recorded = logs.get(log.getAbsolutePath());
+		if (recorded == null || recorded.length != log.length() || recorded.lastModified != log.lastModified()) {
+			return false;
+		}
+		ByteBuffer payload = entries.get(key(distribution, recorded.hash));
+		if (payload == null) {
+			return false;
+		}
+		try {
+			return distribution.readCache(payload.duplicate());
+		} catch (BufferUnderflowException e) {
+			Log.warning("Could not restore distribution from working distribution cache: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/** add distribution to the cache, which is written to file by save() **/
+	public void put(Cacheable distribution) throws IOException {
+		File log = distribution.getCacheFile();
+		if (log == null) {
+			return;
+		}
+		String hash = hash(log);
+		logs.put(log.getAbsolutePath(), new LogFile(log.length(), log.lastModified(), hash));
+		String key = key(distribution, hash);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			distribution.writeCache(out);
+		}
+		pending.put(key, bytes.toByteArray());
+	}
+
+	/** write entries added by put, and entries of the cache file that were not replaced, to the cache file **/
+	public synchronized void save() throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		File tmp = File.createTempFile("cache", ".tmp", parent);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(logs.size());
+			for (Map.Entry<String, LogFile> log : logs.entrySet()) {
+				writeString(out, log.getKey());
+				out.writeLong(log.getValue().length);
+				out.writeLong(log.getValue().lastModified);
+				writeString(out, log.getValue().hash);
+			}
+			int count = pending.size();
+			for (String key : entries.keySet()) {
+				if (!pending.containsKey(key)) {
+					count++;
+				}
+			}
+			out.writeInt(count);
+			for (Map.Entry<String, ByteBuffer> entry : entries.entrySet()) {
+				if (!pending.containsKey(entry.getKey())) {
+					ByteBuffer payload = entry.getValue().duplicate();
+					byte [] bytes = new byte[payload.remaining()];
+					payload.get(bytes);
+					writeEntry(out, entry.getKey(), bytes);
+				}
+			}
+			for (Map.Entry<String, byte []> entry : pending.entrySet()) {
+				writeEntry(out, entry.getKey(), entry.getValue());
+			}
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		for (Map.Entry<String, byte []> entry : pending.entrySet()) {
+			entries.put(entry.getKey(), ByteBuffer.wrap(entry.getValue()));
+		}
+		pending.clear();
+		Log.info("Saved " + entries.size() + " working distributions to " + file.getPath());
+	}
+
+	private static String key(Cacheable distribution, String hash) {
+		return distribution.getCacheKey() + "\tsha1=" + hash;
+	}
+
+	private void writeEntry(DataOutputStream out, String key, byte [] payload) throws IOException {
+		writeString(out, key);
+		out.writeLong(payload.length);
+		out.write(payload);
+	}
+
+	/** @return SHA-1 hash of the content of file, as hex string **/
+	public static synchronized String hash(File file) throws IOException {
+		String id = file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified();
+		String hash = hashes.get(id);
+		if (hash != null) {
+			return hash;
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			byte [] buf = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				digest.update(buf, 0, n);
+			}
+		}
+		StringBuilder b = new StringBuilder();
+		for (byte x : digest.digest()) {
+			b.append(String.format("%02x", x));
+		}
+		hash = b.toString();
+		hashes.put(id, hash);
+		return hash;
+	}
+
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		byte [] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String getString(ByteBuffer in) {
+		byte [] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void writeInts(DataOutputStream out, int [] values, int n) throws IOException {
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			out.writeInt(values[i]);
+		}
+	}
+
+	static void writeLongs(DataOutputStream out, long [] values, int n) throws IOException {
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			out.writeLong(values[i]);
+		}
+	}
+
+	static void writeDoubles(DataOutputStream out, double [] values, int n) throws IOException {
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			out.writeDouble(values[i]);
+		}
+	}
+
+	/** read array written by writeInts into an array of at least capacity elements **/
+	static int [] getInts(ByteBuffer in, int capacity) {
+		int n = in.getInt();
+		int [] values = new int[Math.max(n, capacity)];
+		in.asIntBuffer().get(values, 0, n);
+		in.position(in.position() + 4 * n);
+		return values;
+	}
+
+	static long [] getLongs(ByteBuffer in, int capacity) {
+		int n = in.getInt();
+		long [] values = new long[Math.max(n, capacity)];
+		in.asLongBuffer().get(values, 0, n);
+		in.position(in.position() + 8 * n);
+		return values;
+	}
+
+	static double [] getDoubles(ByteBuffer in, int capacity) {
+		int n = in.getInt();
+		double [] values = new double[Math.max(n, capacity)];
+		in.asDoubleBuffer().get(values, 0, n);
+		in.position(in.position() + 8 * n);
+		return values;
+	}
+}
@@ -0,0 +1,308 @@
+package modelselection.inference;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Compact binary trace log, as written by BinaryLogger.
+ *
+ * Layout (big endian, as written by DataOutputStream):
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * int     number of columns
+ * UTF     column label, for every column
+ * then any number of blocks, each consisting of
+ * int     number of rows in the block
+ * long[]  sample numbers of the rows
+ * double[] values of the first column, followed by those of the second column, etc.
+ * </pre>
+ * Blocks are written completely or not at all, so a log that is still being
+ * written can be read up to its last complete block.
+ */
+public class BinaryLog {
+	public final static int MAGIC = 0x4d53424c; // "MSBL"
+	public final static int VERSION = 1;
+
+	String [] labels;
+	long [] samples;
+	/** columns[i][j] is the value of column i in row j **/
+	double [][] columns;
+	/** file position just after the last complete block **/
+	long endOfData;
+
+	public String [] getLabels() {
+		return labels;
+	}
+
+	public int getRowCount() {
+		return samples.length;
+	}
+
+	public long [] getSamples() {
+		return samples;
+	}
+
+	public int getColumnIndex(String label) {
+		for (int i = 0; i < labels.length; i++) {
+			if (labels[i].equals(label)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Could not find column " + label + " in log. Available columns: " + Arrays.toString(labels));
+	}
+
+	/** all values of a column **/
+	public double [] getTrace(String label) {
+		return columns[getColumnIndex(label)];
+	}
+
+	/** values of a column after discarding burnInPercentage of the rows **/
+	public double [] getTrace(String label, int burnInPercentage) {
+		double [] trace = getTrace(label);
+		int burnIn = burnIn(trace.length, burnInPercentage);
+		return Arrays.copyOfRange(trace, burnIn, trace.length);
+	}
+
+	/** number of rows discarded as burn-in, rounding the same way as LogAnalyser **/
+	public static int burnIn(int rows, int burnInPercentage) {
+		return (int) ((long) rows * burnInPercentage / 100);
+	}
+
+	/** true if the file starts with the binary log magic number **/
+	public static boolean isBinaryLog(File file) throws IOException {
+		if (file.length() < 4) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(4);
+			channel.read(buf, 0);
+			buf.flip();
+			return buf.getInt() == MAGIC;
+		}
+	}
+
+	/** read a binary log through a memory mapped buffer **/
+	public static BinaryLog read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file.getPath() + " is too large to be mapped in one go");
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			BinaryLog log = new BinaryLog();
+			log.readHeader(buf, file);
+			int columnCount = log.labels.length;
+			long rowSize = 8L * (1 + columnCount);
+
+			// count rows in complete blocks
+			int dataStart = buf.position();
+			int rows = 0;
+			long pos = dataStart;
+			while (pos + 4 <= buf.limit()) {
+				int blockRows = buf.getInt((int) pos);
+				if (blockRows < 0 || pos + 4 + blockRows * rowSize > buf.limit()) {
+					break;
+				}
+				rows += blockRows;
+				pos += 4 + blockRows * rowSize;
+			}
+			log.endOfData = pos;
+
+			// bulk copy columns out of the blocks
+			log.samples = new long[rows];
+			log.columns = new double[columnCount][rows];
+			int row = 0;
+			pos = dataStart;
+			while (row < rows) {
+				int blockRows = buf.getInt((int) pos);
+				pos += 4;
+				buf.position((int) pos);
+				buf.asLongBuffer().get(log.samples, row, blockRows);
+				pos += 8L * blockRows;
+				for (int i = 0; i < columnCount; i++) {
+					buf.position((int) pos);
+					buf.asDoubleBuffer().get(log.columns[i], row, blockRows);
+					pos += 8L * blockRows;
+				}
+				row += blockRows;
+			}
+			return log;
+		}
+	}
+
+	public interface RowHandler {
+		void row(long sample, double [] values);
+	}
+
+	/** 
+	 * Reads rows that were appended to a binary log since the previous call to poll, 
+	 * for following a log that is still being written. 
+	 */
+	public static class Tail {
+		final File file;
+		BinaryLog header;
+		long position = 0;
+		double [] values;
+
+		public Tail(File file) {
+			this.file = file;
+		}
+
+		/** @return column labels, or null if the header has not been written yet **/
+		public String [] getLabels() {
+			return header == null ? null : header.labels;
+		}
+
+		/** read the header if it has not been read yet 
+		 * @return false if the header is not completely written yet
+		 */
+		public boolean readHeader() throws IOException {
+			if (header != null) {
+				return true;
+			}
+			if (!file.exists() || file.length() < 12) {
+				return false;
+			}
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+				BinaryLog log = new BinaryLog();
+				try {
+					log.readHeader(buf, file);
+				} catch (BufferUnderflowException e) {
+					// header is still being written
+					return false;
+				}
+				header = log;
+				position = buf.position();
+				values = new double[log.labels.length];
+				return true;
+			}
+		}
+
+		/** pass all rows in complete blocks written since the previous poll to handler
+		 * @return number of new rows
+		 */
+		public int poll(RowHandler handler) throws IOException {
+			if (!readHeader()) {
+				return 0;
+			}
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long size = channel.size();
+				int columnCount = values.length;
+				long rowSize = 8L * (1 + columnCount);
+				int rows = 0;
+				ByteBuffer count = ByteBuffer.allocate(4);
+				while (position + 4 <= size) {
+					count.clear();
+					channel.read(count, position);
+					count.flip();
+					int blockRows = count.getInt();
+					long blockSize = blockRows * rowSize;
+					if (blockRows < 0 || position + 4 + blockSize > size) {
+						break;
+					}
+					ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, position + 4, blockSize);
+					for (int j = 0; j < blockRows; j++) {
+						long sample = block.getLong(8 * j);
+						for (int i = 0; i < columnCount; i++) {
+							values[i] = block.getDouble((int) (8L * blockRows * (1 + i) + 8 * j));
+						}
+						handler.row(sample, values);
+					}
+					rows += blockRows;
+					position += 4 + blockSize;
+				}
+				return rows;
+			}
+		}
+	}
+
+	private void readHeader(ByteBuffer buf, File file) throws IOException {
+		if (buf.limit() < 12 || buf.getInt() != MAGIC) {
+			throw new IOException(file.getPath() + " is not a binary log file");
+		}
+		int version = buf.getInt();
+		if (version != VERSION) {
+			throw new IOException(file.getPath() + " has binary log version " + version + " but only version " + VERSION + " is supported");
+		}
+		int columnCount = buf.getInt();
+		labels = new String[columnCount];
+		for (int i = 0; i < columnCount; i++) {
+			int length = buf.getShort() & 0xffff;
+			byte [] bytes = new byte[length];
+			buf.get(bytes);
+			labels[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	/** writes a binary log one row at a time, flushing complete blocks **/
+	public static class Writer {
+		final static int BLOCK_SIZE = 256;
+
+		final DataOutputStream out;
+		final long [] sampleBuffer = new long[BLOCK_SIZE];
+		final double [][] columnBuffer;
+		int rows = 0;
+
+		public Writer(File file, String [] labels) throws IOException {
+			this(new FileOutputStream(file), labels);
+		}
+
+		public Writer(OutputStream stream, String [] labels) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(labels.length);
+			for (String label : labels) {
+				out.writeUTF(label);
+			}
+			out.flush();
+			columnBuffer = new double[labels.length][BLOCK_SIZE];
+		}
+
+		public void addRow(long sample, double [] values) throws IOException {
+			sampleBuffer[rows] = sample;
+			for (int i = 0; i < columnBuffer.length; i++) {
+				columnBuffer[i][rows] = values[i];
+			}
+			rows++;
+			if (rows == BLOCK_SIZE) {
+				flush();
+			}
+		}
+
+		/** write rows collected so far as a block **/
+		public void flush() throws IOException {
+			if (rows == 0) {
+				return;
+			}
+			out.writeInt(rows);
+			for (int j = 0; j < rows; j++) {
+				out.writeLong(sampleBuffer[j]);
+			}
+			for (double [] column : columnBuffer) {
+				for (int j = 0; j < rows; j++) {
+					out.writeDouble(column[j]);
+				}
+			}
+			out.flush();
+			rows = 0;
+		}
+
+		public void close() throws IOException {
+			flush();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package modelselection.inference;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beastfx.app.tools.Application;
+import beastfx.app.util.LogFile;
+import beastfx.app.util.OutFile;
+
+@Description("Converts a trace log from the binary format of BinaryLogger to tab separated text, or the other way around. "
+		+ "The direction is determined by the format of the input file.")
+public class BinaryLogConverter extends beast.base.inference.Runnable {
+	final public Input<LogFile> inFileInput = new Input<>("in", "log file to convert, either binary or text", Validate.REQUIRED);
+	final public Input<OutFile> outFileInput = new Input<>("out", "file to write converted log to", Validate.REQUIRED);
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		File in = inFileInput.get();
+		File out = outFileInput.get();
+		if (BinaryLog.isBinaryLog(in)) {
+			binaryToText(in, out);
+			Log.warning.println("Converted binary log " + in.getPath() + " to text log " + out.getPath());
+		} else {
+			textToBinary(in, out);
+			Log.warning.println("Converted text log " + in.getPath() + " to binary log " + out.getPath());
+		}
+	}
+
+	public static void binaryToText(File in, File out) throws Exception {
+		BinaryLog log = BinaryLog.read(in);
+		PrintStream text = new PrintStream(out);
+		text.print("Sample");
+		for (String label : log.getLabels()) {
+			text.print("\t" + label);
+		}
+		text.println();
+		long [] samples = log.getSamples();
+		for (int j = 0; j < samples.length; j++) {
+			text.print(samples[j]);
+			for (double [] column : log.columns) {
+				text.print("\t" + column[j]);
+			}
+			text.println();
+		}
+		text.close();
+	}
+
+	/** convert tab separated log with sample numbers in the first column and only numeric values **/
+	public static void textToBinary(File in, File out) throws Exception {
+		BufferedReader fin = new BufferedReader(new FileReader(in));
+		String line;
+		BinaryLog.Writer writer = null;
+		double [] values = null;
+		int lineNr = 0;
+		while ((line = fin.readLine()) != null) {
+			lineNr++;
+			if (line.startsWith("#") || line.trim().length() == 0) {
+				continue;
+			}
+			String [] strs = line.trim().split("\t");
+			if (writer == null) {
+				// header: first column contains sample numbers
+				String [] labels = Arrays.copyOfRange(strs, 1, strs.length);
+				writer = new BinaryLog.Writer(out, labels);
+				values = new double[labels.length];
+				continue;
+			}
+			if (strs.length != values.length + 1) {
+				fin.close();
+				writer.close();
+				throw new IllegalArgumentException("Expected " + (values.length + 1) + " columns but found " + strs.length + " on line " + lineNr + " of " + in.getPath());
+			}
+			for (int i = 0; i < values.length; i++) {
+				try {
+					values[i] = Double.parseDouble(strs[i + 1]);
+				} catch (NumberFormatException e) {
+					fin.close();
+					writer.close();
+					throw new IllegalArgumentException("Binary logs only support numbers, but found '" + strs[i + 1] + "' on line " + lineNr + " of " + in.getPath());
+				}
+			}
+			writer.addRow(Long.parseLong(strs[0]), values);
+		}
+		fin.close();
+		if (writer == null) {
+			throw new IllegalArgumentException("No header found in " + in.getPath());
+		}
+		writer.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new BinaryLogConverter(), "Binary Log Converter", args);
+	}
+}
@@ -0,0 +1,84 @@
+package modelselection.inference;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.inference.Logger;
+
+@Description("Logger that writes values of functions (e.g. likelihoods or parameters) in the compact binary format of BinaryLog "
+		+ "instead of text. Use BinaryLogConverter to convert to and from tab separated text logs.")
+public class BinaryLogger extends Logger {
+
+	List<Function> functions;
+	String [] labels;
+	double [] values;
+	BinaryLog.Writer writer;
+	long logEvery;
+
+	@Override
+	public void initAndValidate() {
+		if (fileNameInput.get() == null) {
+			throw new IllegalArgumentException("fileName must be specified for a binary logger");
+		}
+		logEvery = everyInput.get();
+		functions = new ArrayList<>();
+		List<String> labelList = new ArrayList<>();
+		for (BEASTObject o : loggersInput.get()) {
+			if (!(o instanceof Function)) {
+				throw new IllegalArgumentException("Binary logger can only log functions, such as distributions and parameters, "
+						+ "but " + o.getID() + " is not a function");
+			}
+			Function f = (Function) o;
+			functions.add(f);
+			if (f.getDimension() == 1) {
+				labelList.add(o.getID());
+			} else {
+				for (int i = 0; i < f.getDimension(); i++) {
+					labelList.add(o.getID() + (i + 1));
+				}
+			}
+		}
+		labels = labelList.toArray(new String[]{});
+		values = new double[labels.length];
+	}
+
+	@Override
+	public void init() throws IOException {
+		writer = new BinaryLog.Writer(new File(fileNameInput.get()), labels);
+	}
+
+	@Override
+	public void log(long sample) {
+		if (sample < 0 || sample % logEvery > 0) {
+			return;
+		}
+		int k = 0;
+		for (Function f : functions) {
+			for (int i = 0; i < f.getDimension(); i++) {
+				values[k++] = f.getArrayValue(i);
+			}
+		}
+		try {
+			writer.addRow(sample, values);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			writer = null;
+		}
+	}
+}
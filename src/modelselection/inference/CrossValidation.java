@@ -0,0 +1,165 @@
+package modelselection.inference;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Cross validation of a path sampling estimate, for estimating its variance.
+ * For every repeat, the traces of all steps are shuffled and split into n folds.
+ * Leaving out one fold at a time gives n sub-estimates per repeat.
+ * Repeats run in parallel on a fork-join pool. Every repeat gets its own random
+ * stream split off a generator seeded with the given seed, and shuffles a fresh copy
+ * of the traces, so results only depend on the seed and not on the number of threads.
+ * Sub-estimates are calculated on ranges of the shuffled traces without creating sub-arrays.
+ */
+public class CrossValidation {
+	/** traces of the likelihood per step, sorted by beta **/
+	final double [][] traces;
+	final double [] betas;
+	final double alpha;
+	final int folds;
+
+	/**
+	 * @param traces likelihood samples of each step, steps sorted by beta
+	 * @param betas sorted betas of the steps
+	 * @param alpha if <= 0 thermodynamic integration over uniform intervals is used, otherwise stepping stone
+	 * @param folds number of cross validation intervals
+	 */
+	public CrossValidation(double [][] traces, double [] betas, double alpha, int folds) {
+		if (folds < 2) {
+			throw new IllegalArgumentException("number of cross validation intervals should be at least 2");
+		}
+		for (double [] trace : traces) {
+			if (trace.length < folds) {
+				throw new IllegalArgumentException("traces need at least " + folds + " samples for cross validation");
+			}
+		}
+		this.traces = traces;
+		this.betas = betas;
+		this.alpha = alpha;
+		this.folds = folds;
+	}
+
+	/**
+	 * @return estimates[i][r] is the estimate leaving out fold i in repeat r
+	 */
+	public double [][] run(int repeats, long seed, int threads) {
+		double [][] estimates = new double[folds][repeats];
+		SplittableRandom [] random = new SplittableRandom[repeats];
+		SplittableRandom root = new SplittableRandom(seed);
+		for (int r = 0; r < repeats; r++) {
+			random[r] = root.split();
+		}
+		int threshold = Math.max(1, repeats / (4 * Math.max(1, threads)));
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.invoke(new Repeats(0, repeats, threshold, random, estimates));
+		} finally {
+			pool.shutdown();
+		}
+		return estimates;
+	}
+
+	/** performs repeats from, ..., to-1, splitting the range till it is below threshold **/
+	class Repeats extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int from, to, threshold;
+		final SplittableRandom [] random;
+		final double [][] estimates;
+
+		Repeats(int from, int to, int threshold, SplittableRandom [] random, double [][] estimates) {
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+			this.random = random;
+			this.estimates = estimates;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > threshold) {
+				int mid = (from + to) / 2;
+				invokeAll(new Repeats(from, mid, threshold, random, estimates),
+						new Repeats(mid, to, threshold, random, estimates));
+				return;
+			}
+			// one set of buffers for all repeats in this range
+			double [][] shuffled = new double[traces.length][];
+			for (int j = 0; j < traces.length; j++) {
+				shuffled[j] = new double[traces[j].length];
+			}
+			for (int r = from; r < to; r++) {
+				for (int j = 0; j < traces.length; j++) {
+					System.arraycopy(traces[j], 0, shuffled[j], 0, traces[j].length);
+					shuffle(shuffled[j], random[r]);
+				}
+				for (int i = 0; i < folds; i++) {
+					estimates[i][r] = estimate(shuffled, i);
+				}
+			}
+		}
+	}
+
+	/** Fisher-Yates shuffle **/
+	static void shuffle(double [] x, SplittableRandom random) {
+		for (int i = x.length - 1; i > 0; i--) {
+			int k = random.nextInt(i + 1);
+			double tmp = x[i];
+			x[i] = x[k];
+			x[k] = tmp;
+		}
+	}
+
+	/** estimate from the traces with fold i left out, same as PathSampleAnalyser does on complete traces **/
+	double estimate(double [][] shuffled, int fold) {
+		int nSteps = shuffled.length;
+		double logMarginalL = 0;
+		if (alpha <= 0) {
+			// uniform intervals
+			for (int j = 0; j < nSteps - 1; j++) {
+				logMarginalL += mean(shuffled[j], fold) + mean(shuffled[j + 1], fold);
+			}
+			return logMarginalL / (2.0 * (nSteps - 1));
+		}
+		for (int j = 0; j < nSteps - 1; j++) {
+			double [] trace = shuffled[j];
+			int len = trace.length;
+			int lo = fold * len / folds;
+			int hi = (fold + 1) * len / folds;
+			double weight = betas[j + 1] - betas[j];
+
+			double logLmax = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < lo; k++) {
+				logLmax = Math.max(logLmax, trace[k]);
+			}
+			for (int k = hi; k < len; k++) {
+				logLmax = Math.max(logLmax, trace[k]);
+			}
+			double x = 0;
+			for (int k = 0; k < lo; k++) {
+				x += Math.exp(weight * (trace[k] - logLmax));
+			}
+			for (int k = hi; k < len; k++) {
+				x += Math.exp(weight * (trace[k] - logLmax));
+			}
+			logMarginalL += weight * logLmax + Math.log(x / (len - hi + lo));
+		}
+		return logMarginalL;
+	}
+
+	/** mean of trace with fold left out **/
+	double mean(double [] trace, int fold) {
+		int len = trace.length;
+		int lo = fold * len / folds;
+		int hi = (fold + 1) * len / folds;
+		double sum = 0;
+		for (int k = 0; k < lo; k++) {
+			sum += trace[k];
+		}
+		for (int k = hi; k < len; k++) {
+			sum += trace[k];
+		}
+		return sum / (len - hi + lo);
+	}
+}
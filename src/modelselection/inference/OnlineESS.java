@@ -0,0 +1,76 @@
+package modelselection.inference;
+
+import java.util.Arrays;
+
+/**
+ * Trace of a chain that grows while the chain runs, with an effective sample size
+ * estimate that can be requested at any time. The ESS is calculated the same way
+ * as in Tracer and LogAnalyser: the autocorrelation function is summed until the
+ * sum of two consecutive autocorrelations becomes negative.
+ */
+public class OnlineESS {
+	final static int MAX_LAG = 2000;
+
+	double [] trace = new double[1024];
+	int size = 0;
+
+	public void add(double value) {
+		if (size == trace.length) {
+			trace = Arrays.copyOf(trace, trace.length * 2);
+		}
+		trace[size++] = value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/** ESS of the trace after discarding burnInPercentage of the samples collected so far **/
+	public double getESS(int burnInPercentage) {
+		int from = (int) ((long) size * burnInPercentage / 100);
+		return calcESS(trace, from, size);
+	}
+
+	/** ESS of trace[from],...,trace[to-1] **/
+	public static double calcESS(double [] trace, int from, int to) {
+		int n = to - from;
+		if (n < 2) {
+			return n;
+		}
+		double mean = 0;
+		for (int i = from; i < to; i++) {
+			mean += trace[i];
+		}
+		mean /= n;
+
+		int maxLag = Math.min(n - 1, MAX_LAG);
+		double [] gamma = new double[maxLag];
+		double var = 0;
+		for (int lag = 0; lag < maxLag; lag++) {
+			double sum = 0;
+			for (int i = from; i < to - lag; i++) {
+				sum += (trace[i] - mean) * (trace[i + lag] - mean);
+			}
+			gamma[lag] = sum / (n - lag);
+			if (lag == 0) {
+				var = gamma[0];
+			} else if (lag % 2 == 0) {
+				// sum autocorrelations of pairs of lags while they are positive
+				if (gamma[lag - 1] + gamma[lag] > 0) {
+					var += 2.0 * (gamma[lag - 1] + gamma[lag]);
+				} else {
+					break;
+				}
+			}
+		}
+		if (gamma[0] <= 0 || var <= 0) {
+			// constant trace, e.g. a chain that is stuck, carries no information
+			return 0;
+		}
+		return n * gamma[0] / var;
+	}
+}
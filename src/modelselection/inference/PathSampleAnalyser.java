@@ -4,6 +4,7 @@ package modelselection.inference;
 import beastfx.app.tools.Application;
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.core.ProgramStatus;
 import beast.base.util.HeapSort;
 import beastfx.app.tools.LogAnalyser;
 import beast.base.util.Randomizer;
@@ -13,7 +14,9 @@ import org.apache.commons.math.distribution.BetaDistribution;
 import org.apache.commons.math.distribution.BetaDistributionImpl;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -32,9 +35,23 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 	public Input<Integer> crossValInput = new Input<>("cross", "the number of cross validation intervals to use for estimating the variance, default 0, no variance estimate is provided", 0);
 	public Input<Integer> crossVaRepeatslInput = new Input<>("repeats", "the number of times cross validation is repeated, default 100", 100);
 	public Input<Boolean> getBetaFromFileInput = new Input<>("betaFromFile", "get beta values from XML file instead of assuming they are from a Beta distirbution", false);
+	public Input<Long> seedInput = new Input<>("seed", "seed for shuffling traces in cross validation, so the variance estimate can be reproduced. "
+			+ "If not specified, a seed is drawn from the BEAST random number generator");
 	public Input<String> tagInput = new Input<>("tag", "label of the column in the likelihood.log file", "likelihood");
 	
 	DecimalFormat formatter;
+
+	/** print per step estimates and summary table **/
+	boolean verbose = true;
+
+	/** betas of the steps in order of the step directories, and sorted by value **/
+	double [] stepBeta, sortedBeta;
+	/** order[i] is the step with the i-th smallest beta **/
+	int [] order;
+	/** ESS of the likelihood of steps sorted by beta **/
+	double [] ess;
+	/** contribution to the estimate of interval i, between sortedBeta[i] and sortedBeta[i+1], and its variance **/
+	double [] contribution, contributionVariance;
 	
 	@Override
 	public void initAndValidate() {
@@ -53,32 +70,12 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 	}
 	
 	public double estimateMarginalLikelihood(int nSteps, double alpha, String rootDir, int burnInPercentage, String tag) throws Exception {
-		String sFormat = "";
-		for (int i = nSteps; i > 0; i /= 10) {
-			sFormat += "#";
-		}
-		formatter = new DecimalFormat(sFormat);
-
-		List<List<Double>> logdata = new ArrayList<List<Double>>(); 
-		
+		initFormatter(nSteps);
 		
 		double [] beta = new double[nSteps];
 		if (getBetaFromFileInput.get()) {
 			for (int i = 0; i < nSteps; i++) {
-				beta[i] = 1.0;
-				String xmlFile = getStepDir(rootDir, i) + "/beast.xml";
-		        BufferedReader fin = new BufferedReader(new FileReader(xmlFile));
-		        while (fin.ready()) {
-		            String str = fin.readLine();
-		            if (str.matches(".*PathSamplingStep.*")) {
-		            	if (str.matches(".*beta=['\"].*")) {
-		            		str = str.replaceAll(".*beta=['\"]", "");
-		            		str = str.replaceAll("['\"].*", "");
-		    				beta[i] = Double.parseDouble(str);
-		            	}
-		            }
-		        }
-		        fin.close();
+				beta[i] = readStepBeta(getStepDir(rootDir, i) + "/beast.xml");
 			}
 		} else {
 			BetaDistribution betaDistribution = null;
@@ -93,69 +90,73 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 
 			}
 		}
+		return estimateMarginalLikelihood(beta, alpha, rootDir, burnInPercentage, tag);
+	}
+
+	/** estimate marginal likelihoods from logs produced by PathSampler when the betas of the steps are known
+	 * @param stepBeta power used for the likelihood in each of the steps, in order of the step directories
+	 * @param alpha if <= 0 the steps are assumed to be uniformly spaced and thermodynamic integration is used, 
+	 *              otherwise the stepping stone estimate is used 
+	 * @param rootDir location where log files are stored
+	 * @param burnInPercentage percentage of log files to be discarded
+	 * @param tag label of the column in the likelihood.log file
+	 * @return log of marginal likelihood
+	 * @throws Exception
+	 */
+	public double estimateMarginalLikelihood(double [] stepBeta, double alpha, String rootDir, int burnInPercentage, String tag) throws Exception {
+		int nSteps = stepBeta.length;
+		initFormatter(nSteps);
+		this.stepBeta = stepBeta.clone();
+
+		List<List<Double>> logdata = new ArrayList<List<Double>>(); 
 		
-		int [] order = new int[nSteps];
+		double [] beta = stepBeta.clone();
+		order = new int[nSteps];
         HeapSort.sort(beta, order);
         Arrays.sort(beta);
+        // rank[i] is the position of step i when steps are sorted by beta
+        int [] rank = new int[nSteps];
+        for (int i = 0; i < nSteps; i++) {
+        	rank[order[i]] = i;
+        }
+        sortedBeta = beta;
 
 		// collect likelihood estimates for each step
 		double [] marginalLs = new double[nSteps];
-		Double [] [] marginalLs2 = new Double[nSteps][];
+		double [] [] marginalLs2 = new double[nSteps][];
+		ess = new double[nSteps];
 		for (int i = 0; i < nSteps; i++) {
 			List<Double> logdata1 = new ArrayList<Double>();
-			String logFile = getStepDir(rootDir, i) + "/" + PathSampler.LIKELIHOOD_LOG_FILE;
-			LogAnalyser analyser = new LogAnalyser(new String[] {logFile}, burnInPercentage);
-			marginalLs[order[i]] = analyser.getMean(tag);
-			marginalLs2[order[i]] = analyser.getTrace(tag);
-			System.out.println("marginalLs[" + i + " ] = " + marginalLs[order[i]]);
+			File binaryLogFile = new File(getStepDir(rootDir, i) + "/" + PathSampler.LIKELIHOOD_BINARY_LOG_FILE);
+			if (binaryLogFile.exists()) {
+				double [] trace = BinaryLog.read(binaryLogFile).getTrace(tag, burnInPercentage);
+				marginalLs2[rank[i]] = trace;
+				marginalLs[rank[i]] = mean(trace);
+				ess[rank[i]] = OnlineESS.calcESS(trace, 0, trace.length);
+			} else {
+				String logFile = getStepDir(rootDir, i) + "/" + PathSampler.LIKELIHOOD_LOG_FILE;
+				LogAnalyser analyser = new LogAnalyser(new String[] {logFile}, burnInPercentage);
+				marginalLs[rank[i]] = analyser.getMean(tag);
+				marginalLs2[rank[i]] = toArray(analyser.getTrace(tag));
+				ess[rank[i]] = analyser.getESS(tag);
+			}
+			if (verbose) {
+				System.out.println("marginalLs[" + i + " ] = " + marginalLs[rank[i]]);
+			}
 
-			logdata1.add(marginalLs[order[i]]);
+			logdata1.add(marginalLs[rank[i]]);
 			logdata1.add(0.0);
-			logdata1.add(analyser.getESS(tag));
+			logdata1.add(ess[rank[i]]);
 			logdata.add(logdata1);
 		}
-		double logMarginalL = estimateMarginalLikelihood(logdata, marginalLs2, marginalLs, alpha, nSteps, beta, true);
+		double logMarginalL = estimateMarginalLikelihood(logdata, marginalLs2, marginalLs, alpha, nSteps, beta, verbose);
 
-		Double [] [] subMarginalLs = new Double[nSteps][];
 		int n = crossValInput.get();
 		if (n > 1) {
 			// calculate ML for each of the cross validated subsets 
-			for (int i = 0; i < nSteps; i++) {
-				subMarginalLs[i] = new Double[marginalLs2[i].length * (n - 1) / n];
-			}
 			int REPEATS = crossVaRepeatslInput.get();
-			
-			double [][] m = new double[n][REPEATS];
-			
-			for (int repeats = 0; repeats < REPEATS; repeats++) {
-				for (int j = 0; j < nSteps; j++) {
-					randomise(marginalLs2[j]);
-				}				
-				
-				for (int i = 0; i < n; i++) {
-					for (int j = 0; j < nSteps; j++) {
-						int lo = i * marginalLs2[j].length / n;
-						int hi = i+1 * marginalLs2[j].length / n;
-						int k = 0;
-						int r = 0;
-						while (k < lo) {
-							subMarginalLs[j][r] = marginalLs2[j][k];
-							k++;
-							r++;
-						}
-						k = hi;
-						while (r < subMarginalLs[j].length) {
-							subMarginalLs[j][r] = marginalLs2[j][k];
-							k++;
-							r++;
-						}
-						marginalLs[j] = mean(subMarginalLs[j]);
-					}
-					m[i][repeats] = estimateMarginalLikelihood(logdata, subMarginalLs, marginalLs, alpha, nSteps, beta, false);
-				}
-				System.err.print('.');
-			}
-			System.err.println();
+			long seed = seedInput.get() != null ? seedInput.get() : Randomizer.nextLong();
+			double [][] m = new CrossValidation(marginalLs2, beta, alpha, n).run(REPEATS, seed, ProgramStatus.m_nThreads);
 			
 			double mean = 0;
 			for (int repeats = 0; repeats < REPEATS; repeats++) {
@@ -181,46 +182,38 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 		return logMarginalL;
 	}
 	
-	private void randomise(Double[] doubles) {
-		int n = doubles.length;
-		for (int i = 0; i < n; i++) {
-			int t = Randomizer.nextInt(n);
-			double tmp = doubles[i];
-			doubles[i] = doubles[t];
-			doubles[t] = tmp;
-		}
-		
-	}
-
-	private double mean(Double[] doubles) {
+	private double mean(double[] doubles) {
 		double sum = 0;
-		for (Double d : doubles) {
-			if (d == null) {
-				int h = 3;
-				h++;
-			}
+		for (double d : doubles) {
 			sum += d;
 		}
 		sum /= doubles.length;
 		return sum;
 	}
 
-	private double estimateMarginalLikelihood(List<List<Double>> logdata, Double [] [] marginalLs2, double [] marginalLs, double alpha, int nSteps, double [] betas, boolean verbose) throws MathException, InterruptedException {
+	private double estimateMarginalLikelihood(List<List<Double>> logdata, double [] [] marginalLs2, double [] marginalLs, double alpha, int nSteps, double [] betas, boolean verbose) throws MathException, InterruptedException {
 		// combine steps
 		double logMarginalL = 0;
+		contribution = new double[nSteps - 1];
+		contributionVariance = new double[nSteps - 1];
 		if (alpha <= 0) { 
 			// uniform intervals
 			for (int i = 0; i < nSteps - 1; i++) {
 				logMarginalL += (marginalLs[i] + marginalLs[i + 1]); 
-				logdata.get(i).set(1, (marginalLs[i] + marginalLs[i + 1])/(2.0 * (nSteps - 1)));
+				logdata.get(order[i]).set(1, (marginalLs[i] + marginalLs[i + 1])/(2.0 * (nSteps - 1)));
+				contribution[i] = (marginalLs[i] + marginalLs[i + 1])/(2.0 * (nSteps - 1));
+				// variance of the trapezoid, ignoring correlation between neighbouring intervals
+				double h = 1.0 / (2.0 * (nSteps - 1));
+				contributionVariance[i] = h * h * (varianceOfMean(marginalLs2[i], marginalLs[i], ess[i]) + 
+						varianceOfMean(marginalLs2[i + 1], marginalLs[i + 1], ess[i + 1]));
 			}		
 			logMarginalL = logMarginalL / (2.0 * (nSteps - 1));
 		} else {
 			// intervals follow Beta distribution
-			double [] contrib = new double[nSteps-1];
+			double [] contrib = contribution;
 			
 			for (int i = 0; i < nSteps - 1; i++) {
-				List<Double> logdata1 = logdata.get(nSteps-i-1);
+				List<Double> logdata1 = logdata.get(order[i]);
 				double beta1 = betas[i]; 
 				double beta2 = betas[i+1]; 
 				double weight = beta2 - beta1;
@@ -229,7 +222,7 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 				// Xie W, Lewis PO, Fan Y, Kuo L, Chen MH. 2011. Improving marginal
 				// likelihood estimation for Bayesian phylogenetic model selection.
 				// Syst Biol. 60:150-160.
-				Double [] marginal2 = marginalLs2[i];
+				double [] marginal2 = marginalLs2[i];
 				double logLmax = max(marginal2);
 				logMarginalL += weight * logLmax;
 				
@@ -243,6 +236,16 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 				contrib[i] = (weight * logLmax + Math.log(x/n));
 				logdata1.set(1, (weight * logLmax + Math.log(x/n)));
 
+				// delta method variance of the log of the ratio estimate, 
+				// Xie et al 2011 page 153, with the sample size replaced by the ESS
+				double mean = x / n;
+				double ss = 0;
+				for (int j = 0; j < n; j++) {
+					double d = Math.exp(weight * (marginal2[j] - logLmax)) - mean;
+					ss += d * d;
+				}
+				contributionVariance[i] = ss / (n - 1) / (mean * mean * effectiveSampleSize(ess[i], n));
+
 //				logMarginalL += weight * marginalLs[i]; 
 			}
 						
@@ -255,13 +258,9 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 			//}
 	
 			System.out.println("\nStep        theta         likelihood   contribution ESS");
-			BetaDistribution betaDistribution = alpha > 0 ? new BetaDistributionImpl(alpha, 1.0) : null;
 			for (int i = 0; i < nSteps; i++) {
 				System.out.print(format(i)+" ");
-				double beta = betaDistribution != null ?
-						betaDistribution.inverseCumulativeProbability((nSteps - 1.0 - i)/ (nSteps - 1)):
-							(nSteps - 1.0 - i)/ (nSteps - 1);
-				System.out.print(format(beta)+" ");
+				System.out.print(format(stepBeta[i])+" ");
 	
 				
 				for (Double d : logdata.get(i)) {
@@ -274,11 +273,71 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 				sumESS += logdata.get(i).get(2);
 			}
 			System.out.println("sum(ESS) = " + format(sumESS));
+			System.out.println("Standard error estimate (from ESS) = " + format(getStandardError()));
 			System.out.println();
 		}
 		return logMarginalL;
 	}
 
+	/** variance of the mean of a trace, taking autocorrelation into account through the ESS **/
+	private double varianceOfMean(double [] trace, double mean, double ess) {
+		int n = trace.length;
+		double ss = 0;
+		for (double d : trace) {
+			ss += (d - mean) * (d - mean);
+		}
+		return ss / (n - 1) / effectiveSampleSize(ess, n);
+	}
+
+	private double effectiveSampleSize(double ess, int n) {
+		if (Double.isNaN(ess) || ess < 1) {
+			// e.g. constant trace
+			return n;
+		}
+		return Math.min(ess, n);
+	}
+
+	/** standard error of the last estimate, based on the variances of the contributions of the intervals **/
+	public double getStandardError() {
+		double var = 0;
+		for (double v : contributionVariance) {
+			var += v;
+		}
+		return Math.sqrt(var);
+	}
+
+	/** contributions of the intervals to the last estimate, intervals sorted by beta **/
+	public double [] getContributions() {
+		return contribution;
+	}
+
+	/** variance of the contributions of the intervals to the last estimate, intervals sorted by beta **/
+	public double [] getContributionVariances() {
+		return contributionVariance;
+	}
+
+	/** betas of the steps used for the last estimate in increasing order **/
+	public double [] getSortedBetas() {
+		return sortedBeta;
+	}
+
+	/** step number of the step with the i-th smallest beta in the last estimate **/
+	public int getStepOfSortedBeta(int i) {
+		return order[i];
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	private void initFormatter(int nSteps) {
+		String sFormat = "";
+		for (int i = nSteps; i > 0; i /= 10) {
+			sFormat += "#";
+		}
+		formatter = new DecimalFormat(sFormat);
+	}
+
 	private String format(double d) {
 		DecimalFormat format = new DecimalFormat("###.####");
 		String s = format.format(d);
@@ -288,14 +347,40 @@ public class PathSampleAnalyser extends beast.base.inference.Runnable {
 		return s;
 	}
 
-	private double max(Double[] marginal2) {
-		Double max = marginal2[0];
-		for (Double v : marginal2) {
+	private double max(double[] marginal2) {
+		double max = marginal2[0];
+		for (double v : marginal2) {
 			max = Math.max(v, max);
 		}
 		return max;
 	}
 
+	private double [] toArray(Double [] trace) {
+		double [] array = new double[trace.length];
+		for (int i = 0; i < trace.length; i++) {
+			array[i] = trace[i];
+		}
+		return array;
+	}
+
+	/** beta of the PathSamplingStep in the beast.xml file of a step, 1.0 if not specified **/
+	static double readStepBeta(String xmlFile) throws IOException {
+		double beta = 1.0;
+        BufferedReader fin = new BufferedReader(new FileReader(xmlFile));
+        while (fin.ready()) {
+            String str = fin.readLine();
+            if (str.matches(".*PathSamplingStep.*")) {
+            	if (str.matches(".*beta=['\"].*")) {
+            		str = str.replaceAll(".*beta=['\"]", "");
+            		str = str.replaceAll("['\"].*", "");
+            		beta = Double.parseDouble(str);
+            	}
+            }
+        }
+        fin.close();
+        return beta;
+	}
+
 	String getStepDir(String rootDir, int iParticle) {
 		return rootDir + "/step" + formatter.format(iParticle);
 	}
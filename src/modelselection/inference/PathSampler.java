@@ -11,8 +11,11 @@ import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.math.distribution.BetaDistribution;
 import org.apache.commons.math.distribution.BetaDistributionImpl;
@@ -27,7 +30,9 @@ import beast.base.core.Input.Validate;
 import beast.base.inference.CompoundDistribution;
 import beast.base.core.Log;
 import beast.base.core.ProgramStatus;
+import beast.base.util.HeapSort;
 import beast.base.util.Randomizer;
+import beast.base.parser.XMLParser;
 import beast.base.parser.XMLProducer;
 
 
@@ -35,8 +40,10 @@ import beast.base.parser.XMLProducer;
 @Description("Calculate marginal likelihood through path/stepping stone sampling. " +
 		"Perform multiple steps and calculate estimate." +
 		"Uses multiple threads if specified as command line option to BEAST.")
-public class PathSampler extends beast.base.inference.Runnable {
+public class PathSampler extends beast.base.inference.Runnable implements StepScheduler.StepRunner {
 	public static String LIKELIHOOD_LOG_FILE = "likelihood.log";
+	public static String LIKELIHOOD_BINARY_LOG_FILE = "likelihood.bin";
+	public static String PROGRESS_LOG_FILE = "progress.log";
 
 	public Input<Double> alphaInput = new Input<Double>("alpha", "alpha parameter of Beta(alpha,1) distribution used to space out steps, default 0.3" +
 			"If alpha <= 0, uniform intervals are used.", 0.3);
@@ -66,14 +73,48 @@ public class PathSampler extends beast.base.inference.Runnable {
 	public Input<Boolean> posterior2priorInput = new Input<Boolean>("posterior2prior", "whether to do steps from posterior to prior or the other way around. "
 			+ "Going from posterior to prior is biased towards over estimates, while from prior to posterior the ML estimate "
 			+ "is biased towards under estimates.", true);
+
+	public Input<Boolean> inJVMInput = new Input<Boolean>("inJVM", "run steps inside this JVM on a pool of threads instead of launching "
+			+ "a separate BEAST process for every step. The step directories get the same beast.xml, state and log files, "
+			+ "but the script (value attribute) and hosts are ignored.", false);
+	
+	public Input<Boolean> binaryLogInput = new Input<>("binaryLog", "write the likelihood of each step to " + LIKELIHOOD_BINARY_LOG_FILE 
+			+ " in binary format instead of to " + LIKELIHOOD_LOG_FILE + " as text, which is faster to analyse for long chains. "
+			+ "Use BinaryLogConverter to convert to text.", false);
+
+	public Input<Boolean> replicaExchangeInput = new Input<>("replicaExchange", "run all steps at the same time in this JVM, "
+			+ "proposing swaps of states between steps with neighbouring betas every swapEvery samples. "
+			+ "Every step starts from scratch with preBurnin samples, and logs to its own step directory as usual. One copy of the model is kept per thread.", false);
+	public Input<Integer> swapEveryInput = new Input<>("swapEvery", "number of samples between proposals for swapping states "
+			+ "when replicaExchange is true", 1000);
+
+	public Input<Double> targetSEInput = new Input<>("targetSE", "target standard error of the log marginal likelihood estimate. "
+			+ "If larger than zero, nrOfSteps is used as initial ladder and steps are added where the stepping stone contributions "
+			+ "have the largest variance until the target is reached or maxNrOfSteps is reached (default 0, no steps are added). "
+			+ "Requires alpha > 0.", 0.0);
+	public Input<Double> targetESSInput = new Input<>("targetESS", "stop a step as soon as the ESS of its likelihood (after burnInPercentage) reaches this value. "
+			+ "When steps are run in this JVM, samples that are saved are used to extend steps that have not reached the target "
+			+ "at the end of their chain. Stop reasons are written to " + PathSamplingStep.SUMMARY_FILE + " in the step directory "
+			+ "(default 0, all steps run for chainLength samples)", 0.0);
+	public Input<Integer> maxStepsInput = new Input<>("maxNrOfSteps", "maximum number of steps when targetSE is specified", 64);
+	public Input<Integer> progressEveryInput = new Input<>("progressEvery", "if larger than zero, follow the step logs while steps are running "
+			+ "and report live marginal likelihood estimates every progressEvery seconds, also appended to " + PROGRESS_LOG_FILE 
+			+ " in the root directory (default 0, no live estimates)", 0);
 	
 	int m_nSteps;
+	int preBurnIn;
+	/** beta for each of the steps, in order of the step directories **/
+	List<Double> betas;
+
+	/** step that is set up from the MCMC input, and copies of it for running steps in this JVM **/
+	PathSamplingStep step;
+	BlockingQueue<PathSamplingStep> stepInstances;
+	/** follows step logs while running if progressEvery > 0 **/
+	StreamingPathSampleAnalyser progress;
 	String [] m_sHosts;
 	String m_sScript;
 	int burnInPercentage;
 
-	CountDownLatch m_nCountDown;
-
     final static String fileSep = System.getProperty("file.separator");
 
 	DecimalFormat formatter;
@@ -117,11 +158,14 @@ public class PathSampler extends beast.base.inference.Runnable {
 		if (m_nSteps <= 1) {
 			throw new Exception("number of steps should be at least 2");
 		}
+		if (targetSEInput.get() > 0 && alphaInput.get() <= 0) {
+			throw new IllegalArgumentException("targetSE requires alpha > 0, since steps are added using the stepping stone estimate");
+		}
 		burnInPercentage = burnInPercentageInput.get();
 		if (burnInPercentage < 0 || burnInPercentage >= 100) {
 			throw new Exception("burnInPercentage should be between 0 and 100");
 		}
-		int preBurnIn = preBurnInInput.get();
+		preBurnIn = preBurnInInput.get();
 		
 		// root directory sanity checks
 		File rootDir = new File(rootDirInput.get());
@@ -143,7 +187,7 @@ public class PathSampler extends beast.base.inference.Runnable {
 		if (!mcmc.getClass().equals(MCMC.class)) {
 			System.out.println("WARNING: class is not beast.base.inference.MCMC, which may result in unexpected behavior ");
 		}
-		PathSamplingStep step = new PathSamplingStep();
+		step = new PathSamplingStep();
 		for (Input<?> input : mcmc.listInputs()) {
 			try {
 				if (input.get() instanceof List) {
@@ -165,10 +209,15 @@ public class PathSampler extends beast.base.inference.Runnable {
 		mcmc.chainLengthInput.setValue(chainLength, mcmc);
 		
 		// add posterior logger
-		Logger logger = new Logger();
+		Logger logger = binaryLogInput.get() ? new BinaryLogger() : new Logger();
 		Distribution likelihood = extractLikelihood(mcmc); 
-		logger.initByName("fileName", LIKELIHOOD_LOG_FILE, "log", likelihood, "logEvery", (int)(chainLength/1000));
+		logger.initByName("fileName", binaryLogInput.get() ? LIKELIHOOD_BINARY_LOG_FILE : LIKELIHOOD_LOG_FILE, 
+				"log", likelihood, "logEvery", (int)(chainLength/1000));
 		mcmc.loggersInput.setValue(logger, mcmc);
+		if (targetESSInput.get() > 0) {
+			step.setInputValue("targetESS", targetESSInput.get());
+			step.setInputValue("burnInPercentage", burnInPercentage);
+		}
 
 		// set up directories with beast.xml files in each of them
 		String sFormat = "";
@@ -177,7 +226,6 @@ public class PathSampler extends beast.base.inference.Runnable {
 		}
 		formatter = new DecimalFormat(sFormat);
 		
-		XMLProducer producer = new XMLProducer();
 		BetaDistribution betaDistribution = null;
 		if (alphaInput.get() > 0){
 			betaDistribution = new BetaDistributionImpl(alphaInput.get(), 1.0);
@@ -194,47 +242,16 @@ public class PathSampler extends beast.base.inference.Runnable {
 
 		
 		
+		betas = new ArrayList<>();
 		for (int i = 0; i < m_nSteps; i++) {
-			if (i < ProgramStatus.m_nThreads) {
-				mcmc.burnInInput.setValue(preBurnIn, mcmc);
-			} else {
-				mcmc.burnInInput.setValue(0, mcmc);
-			}
 			// create XML for a single step
 			double beta = betaDistribution != null ?
 					(posterior2priorInput.get() ?
 					betaDistribution.inverseCumulativeProbability((m_nSteps - 1.0 - i)/ (m_nSteps - 1)):
 					betaDistribution.inverseCumulativeProbability((i+0.0)/ (m_nSteps - 1))
 					):(m_nSteps - 1.0 - i)/ (m_nSteps - 1);
-			step.setInputValue("beta", beta);
-			String sXML = producer.toXML(step);
-			File stepDir = new File(getStepDir(i));
-			if (!stepDir.exists() && !stepDir.mkdir()) {
-				throw new Exception("Failed to make directory " + stepDir.getName());
-			}
-			stepDir.setWritable(true, false);
-        	FileOutputStream xmlFile = new FileOutputStream(stepDir.getAbsoluteFile() + "/beast.xml");
-        	PrintStream out = new PrintStream(xmlFile);
-            out.print(sXML);
-			out.close();
-			
-			String cmd = getCommand(stepDir.getAbsolutePath(), i);
-        	FileOutputStream cmdFile = 
-        			(Utils.isWindows()?
-        					new FileOutputStream(stepDir.getAbsoluteFile() + "/run.bat"):
-        					new FileOutputStream(stepDir.getAbsoluteFile() + "/run.sh"));
-        	PrintStream out2 = new PrintStream(cmdFile);
-            out2.println(cmd);
-			out2.close();
-
-        	cmdFile = 
-        			(Utils.isWindows()?
-        					new FileOutputStream(stepDir.getAbsoluteFile() + "/resume.bat"):
-        					new FileOutputStream(stepDir.getAbsoluteFile() + "/resume.sh"));
-        	cmd = cmd.replace("-overwrite", "-resume");
-        	out2 = new PrintStream(cmdFile);
-            out2.println(cmd);
-			out2.close();
+			betas.add(beta);
+			String cmd = writeStepFiles(i, beta);
 //TODO: probably more efficient to group cmdFiles in block of #steps/#threads
 //instead of skipping #threads steps every time.
 			if (i >= ProgramStatus.m_nThreads) {
@@ -248,9 +265,6 @@ public class PathSampler extends beast.base.inference.Runnable {
 				cmd = cmd.replace("-resume", "-overwrite");
 			}
 			cmdFiles[i % ProgramStatus.m_nThreads].println(cmd);
-			File script = new File(stepDir.getAbsoluteFile() + 
-					(Utils.isWindows()? "/run.bat": "/run.sh"));
-			script.setExecutable(true);
 		}
 		
 		
@@ -263,6 +277,61 @@ public class PathSampler extends beast.base.inference.Runnable {
 		
 	} // run
 	
+	/** 
+	 * create directory for step i with beast.xml, run and resume scripts
+	 * @return command for resuming the step
+	 */
+	String writeStepFiles(int i, double beta) throws Exception {
+		if (resumesFromState(i)) {
+			step.burnInInput.setValue(0, step);
+		} else {
+			step.burnInInput.setValue(preBurnIn, step);
+		}
+		step.setInputValue("beta", beta);
+		String sXML = new XMLProducer().toXML(step);
+		File stepDir = new File(getStepDir(i));
+		if (!stepDir.exists() && !stepDir.mkdir()) {
+			throw new Exception("Failed to make directory " + stepDir.getName());
+		}
+		stepDir.setWritable(true, false);
+    	FileOutputStream xmlFile = new FileOutputStream(stepDir.getAbsoluteFile() + "/beast.xml");
+    	PrintStream out = new PrintStream(xmlFile);
+        out.print(sXML);
+		out.close();
+		
+		String cmd = getCommand(stepDir.getAbsolutePath(), i);
+    	FileOutputStream cmdFile = 
+    			(Utils.isWindows()?
+    					new FileOutputStream(stepDir.getAbsoluteFile() + "/run.bat"):
+    					new FileOutputStream(stepDir.getAbsoluteFile() + "/run.sh"));
+    	PrintStream out2 = new PrintStream(cmdFile);
+        out2.println(cmd);
+		out2.close();
+
+    	cmdFile = 
+    			(Utils.isWindows()?
+    					new FileOutputStream(stepDir.getAbsoluteFile() + "/resume.bat"):
+    					new FileOutputStream(stepDir.getAbsoluteFile() + "/resume.sh"));
+    	cmd = cmd.replace("-overwrite", "-resume");
+    	out2 = new PrintStream(cmdFile);
+        out2.println(cmd);
+		out2.close();
+
+		File script = new File(stepDir.getAbsoluteFile() + 
+				(Utils.isWindows()? "/run.bat": "/run.sh"));
+		script.setExecutable(true);
+		return cmd;
+	}
+
+	/** 
+	 * whether step i starts from the state file of another step, or from scratch with pre-burnin.
+	 * The first #threads steps start from scratch, all others (including steps added by 
+	 * adaptive placement of betas) continue from another step.
+	 */
+	boolean resumesFromState(int i) {
+		return i >= ProgramStatus.m_nThreads || i >= stepsInput.get();
+	}
+	
 	private String getCopyCmd(int i) {
 		String cmd = "copy \"";
 		cmd += getStepDir(i - ProgramStatus.m_nThreads);
@@ -328,7 +397,7 @@ public class PathSampler extends beast.base.inference.Runnable {
 		if (m_sHosts != null) {
 			sCommand = sCommand.replaceAll("\\$\\(host\\)", m_sHosts[iStep % m_sHosts.length]);
 		}
-		if (iStep < ProgramStatus.m_nThreads) {
+		if (!resumesFromState(iStep)) {
 			sCommand = sCommand.replaceAll("\\$\\(resume/overwrite\\)", "-overwrite");
 		} else {
 			sCommand = sCommand.replaceAll("\\$\\(resume/overwrite\\)", "-resume");
@@ -389,45 +458,46 @@ public class PathSampler extends beast.base.inference.Runnable {
 	}
 
 
-	class StepThread extends Thread {
-		int stepNr;
-		
-		StepThread(int stepNr) {
-			this.stepNr = stepNr;
+	@Override
+	public void prepareStep(int stepNr, int predecessor) throws Exception {
+		if (predecessor >= 0) {
+			copyStateFile(predecessor, stepNr);
+		}
+		checkLogFiles(stepNr);
+	}
+
+	@Override
+	public void runStep(int stepNr) throws Exception {
+		if (inJVMInput.get() || replicaExchangeInput.get()) {
+			runStepInJVM(stepNr);
+			return;
 		}
+		File stepDir = new File(getStepDir(stepNr));
+		if (!stepDir.exists()) {
+			throw new Exception("Failed to find directory " + stepDir.getName());
+		}
+    	String cmd = 
+    			(Utils.isWindows()?
+    					stepDir.getAbsoluteFile() + "\\run.bat":
+    					stepDir.getAbsoluteFile() + "/run.sh");
+    	// only show output when steps are not run in parallel
+    	boolean showOutput = ProgramStatus.m_nThreads <= 1;
+    	if (showOutput) {
+    		System.out.println(cmd);
+    	}
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true); // merge stdout and stderr
+		Process p = pb.start();
 		
-		@Override
-		public void run() {
-			try {
-				System.err.println("Starting step " + stepNr);
-				File stepDir = new File(getStepDir(stepNr));
-				if (!stepDir.exists()) {
-					throw new Exception("Failed to find directory " + stepDir.getName());
-				}
-	        	String cmd = 
-        			(Utils.isWindows()?
-        					stepDir.getAbsoluteFile() + "/run.bat":
-        					stepDir.getAbsoluteFile() + "/run.sh");
-	        	
-				ProcessBuilder pb = new ProcessBuilder(cmd);
-				pb.redirectErrorStream(true); // merge stdout and stderr
-				Process p = pb.start();
-//	        	
-//				Process p = Runtime.getRuntime().exec(cmd);
-				BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
-				String line;
-				while ((line = pout.readLine()) != null) {
-					//System.out.println(line);
-				}
-				pout.close();
-				
-				p.waitFor();
-			} catch (Exception e) {
-				e.printStackTrace();
+		BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
+		String line;
+		while ((line = pout.readLine()) != null) {
+			if (showOutput) {
+				System.out.println(line);
 			}
-			System.err.println("Finished step " + stepNr);
-			m_nCountDown.countDown();
 		}
+		pout.close();
+		p.waitFor();
 	}
 	
     public void doRuns() throws Exception {
@@ -436,56 +506,31 @@ public class PathSampler extends beast.base.inference.Runnable {
     		return;
     	}
     	long startTime = System.currentTimeMillis();
-
-		for (int i = 0; i < m_nSteps; i++) {
-	    	if (ProgramStatus.m_nThreads > 1) {
-	    		int nSteps = Math.min(ProgramStatus.m_nThreads, m_nSteps - i);
-	    		m_nCountDown = new CountDownLatch(nSteps);
-	    		for (int j = 0; j < nSteps; j++) {
-	    			new StepThread(i).start();
-	    			i++;
-	    		}
-	    		m_nCountDown.await();	    		
-    			for (int j = 0; j < ProgramStatus.m_nThreads && i+j < m_nSteps; j++) {
-    				copyStateFile(i-1, i + j);	    			
-    				checkLogFiles(i + j);
-    			}
-	    		i--;
+    	startProgress();
+    	try {
+	    	if (replicaExchangeInput.get()) {
+	    		runReplicaExchange();
 	    	} else {
-				File stepDir = new File(getStepDir(i));
-				if (!stepDir.exists()) {
-					throw new Exception("Failed to find directory " + stepDir.getName());
+		    	if (inJVMInput.get()) {
+		    		initStepInstances();
+		    	}
+		
+		    	// step i continues from the state of step i - #threads, as in the runK scripts
+		    	StepScheduler scheduler = new StepScheduler(ProgramStatus.m_nThreads, this);
+				for (int i = 0; i < m_nSteps; i++) {
+					scheduler.addStep(i, i >= ProgramStatus.m_nThreads ? i - ProgramStatus.m_nThreads : -1);
 				}
-	        	String cmd = 
-	        			(Utils.isWindows()?
-	        					stepDir.getAbsoluteFile() + "\\run.bat":
-	        					stepDir.getAbsoluteFile() + "/run.sh");
-	        	
-	        	
-//				try {
-	    		if (i > 0) {
-	    			copyStateFile(i-1, i);
-	    		}
-				checkLogFiles(i);
-					
-					System.out.println(cmd);
-					
-					ProcessBuilder pb = new ProcessBuilder(cmd);
-					pb.redirectErrorStream(true); // merge stdout and stderr
-					Process p = pb.start();
-					
-					BufferedReader pout = new BufferedReader((new InputStreamReader(p.getInputStream())));
-					String line;
-					while ((line = pout.readLine()) != null) {
-						System.out.println(line);
-					}
-					pout.close();
-					p.waitFor();
-//				} catch (Exception e) {
-//					e.printStackTrace();
-//				}
+				scheduler.run();
 	    	}
-		}
+			if (targetSEInput.get() > 0) {
+				addAdaptiveSteps();
+			}
+    	} finally {
+    		if (progress != null) {
+    			progress.stop();
+    			progress = null;
+    		}
+    	}
     	long endTime = System.currentTimeMillis();
 
     	analyse();
@@ -494,9 +539,165 @@ public class PathSampler extends beast.base.inference.Runnable {
     } // run;	
 
 
+	/** start following the step logs when progressEvery is specified **/
+	void startProgress() throws Exception {
+		if (progressEveryInput.get() <= 0) {
+			return;
+		}
+		progress = new StreamingPathSampleAnalyser();
+		progress.initByName("rootdir", rootDirInput.get(),
+				"burnin", chainLengthInput.get() * burnInPercentage / 100,
+				"progressLog", rootDirInput.get() + fileSep + PROGRESS_LOG_FILE);
+		progress.setBetas(getBetas());
+		progress.start(progressEveryInput.get());
+	}
+
+	/** 
+	 * Set up one PathSamplingStep per thread for running steps in this JVM.
+	 * The first one is the step created from the MCMC input, the others are 
+	 * parsed from the beast.xml of the first step, so threads do not share any 
+	 * state nodes or calculation nodes.
+	 */
+	void initStepInstances() throws Exception {
+		stepInstances = new LinkedBlockingQueue<>(createStepInstances(Math.min(ProgramStatus.m_nThreads, m_nSteps)));
+		AtomicLong spareSamples = new AtomicLong();
+		for (PathSamplingStep instance : stepInstances) {
+			instance.setSpareSamples(spareSamples);
+		}
+	}
+
+	/** 
+	 * create count independent instances of the step model, 
+	 * the first one being the step created from the MCMC input
+	 */
+	List<PathSamplingStep> createStepInstances(int count) throws Exception {
+		List<PathSamplingStep> instances = new ArrayList<>();
+		step.initAndValidate();
+		instances.add(step);
+		File xmlFile = new File(getStepDir(0) + fileSep + "beast.xml");
+		for (int i = 1; i < count; i++) {
+			Object o = new XMLParser().parseFile(xmlFile);
+			if (!(o instanceof PathSamplingStep)) {
+				throw new Exception("The model in " + xmlFile.getPath() + " does not appear to be a path sampling step.");
+			}
+			instances.add((PathSamplingStep) o);
+		}
+		return instances;
+	}
+
+	/** 
+	 * Run all steps at the same time in this JVM with swaps between neighbouring betas.
+	 * All steps start from scratch with preBurnin samples. Steps are kept as state XML and
+	 * run on one copy of the model per thread, which are used for any further steps run in this JVM.
+	 */
+	void runReplicaExchange() throws Exception {
+		List<PathSamplingStep> workers = createStepInstances(Math.min(ProgramStatus.m_nThreads, m_nSteps));
+		List<File> stepDirs = new ArrayList<>();
+		for (int i = 0; i < m_nSteps; i++) {
+			checkLogFiles(i);
+			stepDirs.add(new File(getStepDir(i)));
+		}
+		for (PathSamplingStep worker : workers) {
+			worker.burnInInput.setValue(preBurnIn, worker);
+		}
+		new ReplicaExchange(workers, betas, stepDirs, swapEveryInput.get()).run();
+		stepInstances = new LinkedBlockingQueue<>(workers);
+	}
+
+	/** 
+	 * Run step stepNr in this JVM, using the same state file handover and log files 
+	 * in the step directory as the run.sh script would. 
+	 */
+	void runStepInJVM(int stepNr) throws Exception {
+		PathSamplingStep step = stepInstances.take();
+		try {
+			File stepDir = new File(getStepDir(stepNr));
+			if (!stepDir.exists()) {
+				throw new Exception("Failed to find directory " + stepDir.getName());
+			}
+			step.setBeta(betas.get(stepNr));
+			step.burnInInput.setValue(resumesFromState(stepNr) ? 0 : preBurnIn, step);
+			setLogDir(step, stepDir);
+			step.setStateFile(stepDir.getAbsolutePath() + fileSep + "beast.xml.state", resumesFromState(stepNr));
+			step.run();
+		} finally {
+			stepInstances.put(step);
+		}
+	}
+
+	/** point file loggers of a step to the step directory, keeping their file names **/
+	static void setLogDir(MCMC mcmc, File stepDir) {
+		for (Logger logger : mcmc.loggersInput.get()) {
+			String fileName = logger.fileNameInput.get();
+			if (fileName != null) {
+				logger.fileNameInput.setValue(new File(stepDir, new File(fileName).getName()).getPath(), logger);
+				logger.initAndValidate();
+			}
+		}
+	}
+
+
+	/**
+	 * Refine the beta ladder: split intervals with the largest variance of their stepping stone 
+	 * contribution until the standard error is below targetSE. Every round adds up to #threads steps, 
+	 * each starting from the state of the neighbouring step it is closest to in the direction of travel.
+	 */
+	void addAdaptiveSteps() throws Exception {
+		double targetSE = targetSEInput.get();
+		int maxSteps = maxStepsInput.get();
+		BetaDistribution betaDistribution = new BetaDistributionImpl(alphaInput.get(), 1.0);
+		PathSampleAnalyser analyser = new PathSampleAnalyser();
+		analyser.setVerbose(false);
+		while (true) {
+	    	analyser.estimateMarginalLikelihood(getBetas(), alphaInput.get(), rootDirInput.get(), burnInPercentage, "likelihood");
+	    	double se = analyser.getStandardError();
+	    	Log.warning.println("Standard error with " + m_nSteps + " steps: " + se);
+	    	if (se <= targetSE) {
+	    		return;
+	    	}
+	    	if (m_nSteps >= maxSteps) {
+	    		Log.warning.println("Reached maximum number of steps (" + maxSteps + ") before target standard error " + targetSE);
+	    		return;
+	    	}
+	    	
+	    	// split intervals with largest variance
+	    	double [] variance = analyser.getContributionVariances();
+	    	double [] sortedBetas = analyser.getSortedBetas();
+	    	int [] intervalOrder = new int[variance.length];
+	    	HeapSort.sort(variance, intervalOrder);
+	    	int newSteps = Math.min(Math.max(1, ProgramStatus.m_nThreads), Math.min(maxSteps - m_nSteps, variance.length));
+	    	StepScheduler scheduler = new StepScheduler(ProgramStatus.m_nThreads, this);
+	    	for (int k = 0; k < newSteps; k++) {
+	    		int interval = intervalOrder[variance.length - 1 - k];
+	    		double p = (betaDistribution.cumulativeProbability(sortedBetas[interval]) +
+	    				betaDistribution.cumulativeProbability(sortedBetas[interval + 1])) / 2.0;
+	    		double beta = betaDistribution.inverseCumulativeProbability(p);
+	    		int predecessor = analyser.getStepOfSortedBeta(posterior2priorInput.get() ? interval + 1 : interval);
+	    		
+	    		int stepNr = m_nSteps;
+	    		betas.add(beta);
+	    		m_nSteps++;
+	    		writeStepFiles(stepNr, beta);
+	    		scheduler.addStep(stepNr, predecessor);
+	    	}
+	    	if (progress != null) {
+	    		progress.setBetas(getBetas());
+	    	}
+	    	scheduler.run();
+		}
+	}
+
+	double [] getBetas() {
+		double [] beta = new double[betas.size()];
+		for (int i = 0; i < beta.length; i++) {
+			beta[i] = betas.get(i);
+		}
+		return beta;
+	}
+
 	void analyse() throws Exception {
     	PathSampleAnalyser analyser = new PathSampleAnalyser();
-    	double marginalL = analyser.estimateMarginalLikelihood(m_nSteps, alphaInput.get(), rootDirInput.get(), burnInPercentage);
+    	double marginalL = analyser.estimateMarginalLikelihood(getBetas(), alphaInput.get(), rootDirInput.get(), burnInPercentage, "likelihood");
 		System.out.println("marginal L estimate = " + marginalL);
 	}
 
@@ -526,6 +727,7 @@ public class PathSampler extends beast.base.inference.Runnable {
 		// process other log and tree files
 		for (File file : stepDir.listFiles()) {
 			if (file.getPath().endsWith(".log") || 
+					file.getPath().endsWith(".bin") ||
 					file.getPath().endsWith(".trees")) {
 				if (deleteOldLogsInpuyt.get()) {
 				System.err.println("WARNING: deleting file " + file.getPath());
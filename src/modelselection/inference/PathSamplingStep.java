@@ -14,8 +14,11 @@ import beast.base.util.Randomizer;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 @Citation(value= "Lartillot, N., & Philippe, H. (2006).\n" +
@@ -27,9 +30,28 @@ import java.util.List;
 public class PathSamplingStep extends MCMC {
 
 	public Input<Double> betaInput = new Input<>("beta","power used for likelihood: 1 = using full posterior, 0 = using prior only", 1.0);
+	public Input<Double> targetESSInput = new Input<>("targetESS", "stop the chain as soon as the ESS of the likelihood reaches this value, "
+			+ "ignoring the first burnInPercentage of the samples. Stop reason and ESS are written to " + SUMMARY_FILE + " next to the state file "
+			+ "(default 0, always run for chainLength samples)", 0.0);
+	public Input<Integer> burnInPercentageInput = new Input<>("burnInPercentage", "burn-in percentage used for estimating the ESS when targetESS is specified", 50);
+
+	public static String SUMMARY_FILE = "summary.txt";
+	/** number of samples collected between ESS calculations **/
+	final static int ESS_CHECK_INTERVAL = 50;
+	/** minimum number of samples after burn-in before a chain may stop early **/
+	final static int ESS_MIN_SAMPLES = 100;
 
 	protected double beta;
 	protected Distribution[] pDists;
+
+	/** trace of the likelihood, only used when targetESS > 0 **/
+	protected OnlineESS essMonitor;
+	protected int essSampleEvery;
+	protected String stopReason;
+	/** pool of samples that steps stopping early leave for steps that need more, shared between steps run in the same JVM **/
+	protected AtomicLong spareSamples;
+	protected long borrowedSamples;
+	protected long startTime;
 	
 	@Override
 	public void initAndValidate() {
@@ -62,10 +84,29 @@ public class PathSamplingStep extends MCMC {
 
         loggers = loggersInput.get();
 	}
+
+	/** share samples saved by stopping early with other steps, see targetESS **/
+	public void setSpareSamples(AtomicLong spareSamples) {
+		this.spareSamples = spareSamples;
+	}
+
+	/** change the power used for the likelihood, so the same chain can be run for another step **/
+	public void setBeta(double beta) {
+		betaInput.setValue(beta, this);
+		this.beta = beta;
+	}
 	
 	
     @Override
     public void run() throws SAXException, IOException, ParserConfigurationException {
+        initRun();
+        initESSMonitor();
+        doLoop();
+        finishRun();
+    } // run;
+
+    /** set up state, from file or initialisers, and initialise loggers **/
+    protected void initRun() throws IOException {
         // set up state (again). Other plugins may have manipulated the
         // StateNodes, e.g. set up bounds or dimensions
         state.initAndValidate();
@@ -92,7 +133,7 @@ public class PathSamplingStep extends MCMC {
                 oldLogLikelihood = robustlyCalcPosterior(posterior);
             } while (Double.isInfinite(oldLogLikelihood) && nInitiliasiationAttemps++ < 10);
         }
-        long tStart = System.currentTimeMillis();
+        startTime = System.currentTimeMillis();
 
         // do the sampling
         logAlpha = 0;
@@ -112,22 +153,24 @@ public class PathSamplingStep extends MCMC {
         for (Logger log : loggersInput.get()) {
             log.init();
         }
+    }
 
-        doLoop();
-
+    /** report, close loggers and store state for the next step **/
+    protected void finishRun() throws IOException {
         operatorSchedule.showOperatorRates(System.out);
         long tEnd = System.currentTimeMillis();
-        System.out.println("Total calculation time: " + (tEnd - tStart) / 1000.0 + " seconds");
+        System.out.println("Total calculation time: " + (tEnd - startTime) / 1000.0 + " seconds");
         close();
 
         System.err.println("End likelihood: " + oldLogLikelihood);
 //        System.err.println(state);
         state.storeToFile(chainLength);
+        writeSummary();
         // Do not store operator optimisation information
         // since this may not be valid for the next step
         // especially when sampling from the prior only
 //        operatorSchedule.storeToFile();
-    } // run;
+    }
 	
 	
 	
@@ -136,99 +179,274 @@ public class PathSamplingStep extends MCMC {
      */
 	@Override
     protected void doLoop() {
-        oldLogLikelihood = pDists[0].calculateLogP() * beta; // likelihood
-        for (int i = 1; i < pDists.length; i++) //priors
-            oldLogLikelihood += pDists[i].calculateLogP();
+        initLoop();
 
         for (int iSample = -burnIn; iSample <= chainLength; iSample++) {
-            final int currentState = iSample;
-
-            state.store(currentState);
-            if (storeEvery > 0 && iSample % storeEvery == 0 && iSample > 0) {
-                state.storeToFile(iSample);
-                // Do not store operator optimisation information
-                // since this may not be valid for the next step
-                // especially when sampling from the prior only
-            	//operatorSchedule.storeToFile();
+            doStep(iSample);
+            if (stopEarly(iSample)) {
+            	break;
             }
+        }
+    }
 
-            Operator operator = operatorSchedule.selectOperator();
-            //System.out.print("\n" + iSample + " " + operator.getName()+ ":");
+    /** calculate the power posterior of the current state **/
+    protected void initLoop() {
+        oldLogLikelihood = pDists[0].calculateLogP() * beta; // likelihood
+        for (int i = 1; i < pDists.length; i++) //priors
+            oldLogLikelihood += pDists[i].calculateLogP();
+    }
 
-            final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
-            Evaluator evaluator = null;
+    /** a single MCMC iteration **/
+    protected void doStep(int iSample) {
+        final int currentState = iSample;
+
+        state.store(currentState);
+        if (storeEvery > 0 && iSample % storeEvery == 0 && iSample > 0) {
+            state.storeToFile(iSample);
+            // Do not store operator optimisation information
+            // since this may not be valid for the next step
+            // especially when sampling from the prior only
+        	//operatorSchedule.storeToFile();
+        }
 
-            if (evaluatorDistribution != null) {
-                evaluator = new Evaluator() {
-                    @Override
-                    public double evaluate() {
-                        double logP = 0.0;
+        Operator operator = operatorSchedule.selectOperator();
+        //System.out.print("\n" + iSample + " " + operator.getName()+ ":");
 
-                        state.storeCalculationNodes();
-                        state.checkCalculationNodesDirtiness();
+        final Distribution evaluatorDistribution = operator.getEvaluatorDistribution();
+        Evaluator evaluator = null;
 
-                        try {
-                            logP = evaluatorDistribution.calculateLogP();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            System.exit(1);
-                        }
+        if (evaluatorDistribution != null) {
+            evaluator = new Evaluator() {
+                @Override
+                public double evaluate() {
+                    double logP = 0.0;
 
-                        state.restore();
-                        state.store(currentState);
+                    state.storeCalculationNodes();
+                    state.checkCalculationNodesDirtiness();
 
-                        return logP;
+                    try {
+                        logP = evaluatorDistribution.calculateLogP();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        System.exit(1);
                     }
-                };
-            }
 
-            double fLogHastingsRatio = operator.proposal(evaluator);
+                    state.restore();
+                    state.store(currentState);
 
-            if (fLogHastingsRatio != Double.NEGATIVE_INFINITY) {
+                    return logP;
+                }
+            };
+        }
 
-                state.storeCalculationNodes();
-                state.checkCalculationNodesDirtiness();
+        double fLogHastingsRatio = operator.proposal(evaluator);
 
-                posterior.calculateLogP();
-                newLogLikelihood = pDists[0].getArrayValue() * beta; // likelihood
-                for (int i = 1; i < pDists.length; i++) //priors
-                    newLogLikelihood += pDists[i].getArrayValue();
+        if (fLogHastingsRatio != Double.NEGATIVE_INFINITY) {
 
-                logAlpha = newLogLikelihood - oldLogLikelihood + fLogHastingsRatio; //CHECK HASTINGS
-                //System.out.println(logAlpha + " " + fNewLogLikelihood + " " + fOldLogLikelihood);
-                if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
-                    // accept
-                    oldLogLikelihood = newLogLikelihood;
-                    state.acceptCalculationNodes();
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
 
-                    if (iSample >= 0) {
-                        operator.accept();
-                    }
-                    //System.out.print(" accept");
-                } else {
-                    // reject
-                    if (iSample >= 0) {
-                        operator.reject();
-                    }
-                    state.restore();
-                    state.restoreCalculationNodes();
-                    //System.out.print(" reject");
+            posterior.calculateLogP();
+            newLogLikelihood = pDists[0].getArrayValue() * beta; // likelihood
+            for (int i = 1; i < pDists.length; i++) //priors
+                newLogLikelihood += pDists[i].getArrayValue();
+
+            logAlpha = newLogLikelihood - oldLogLikelihood + fLogHastingsRatio; //CHECK HASTINGS
+            //System.out.println(logAlpha + " " + fNewLogLikelihood + " " + fOldLogLikelihood);
+            if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+                // accept
+                oldLogLikelihood = newLogLikelihood;
+                state.acceptCalculationNodes();
+
+                if (iSample >= 0) {
+                    operator.accept();
                 }
-                state.setEverythingDirty(false);
+                //System.out.print(" accept");
             } else {
-                // operation failed
+                // reject
                 if (iSample >= 0) {
                     operator.reject();
                 }
                 state.restore();
-                //System.out.print(" direct reject");
+                state.restoreCalculationNodes();
+                //System.out.print(" reject");
             }
-            log(iSample);
-
+            state.setEverythingDirty(false);
+        } else {
+            // operation failed
             if (iSample >= 0) {
-            	operator.optimize(logAlpha);
+                operator.reject();
             }
-            callUserFunction(iSample);
+            state.restore();
+            //System.out.print(" direct reject");
+        }
+        log(iSample);
+
+        if (iSample >= 0) {
+        	operator.optimize(logAlpha);
         }
+        callUserFunction(iSample);
+    }
+
+    /** log likelihood of the current state, without the power **/
+    public double getLikelihood() {
+    	return pDists[0].getArrayValue();
+    }
+
+    /** 
+     * Set up the state from the initialisers for driving the chain through doStep 
+     * or runSamples without loggers or state files, as done for SMC particles.
+     */
+    public void initChain() {
+        state.initAndValidate();
+        state.setEverythingDirty(true);
+        posterior = posteriorInput.get();
+        int nInitiliasiationAttemps = 0;
+        do {
+            for (StateNodeInitialiser initialiser : initialisersInput.get()) {
+                initialiser.initStateNodes();
+            }
+            oldLogLikelihood = robustlyCalcPosterior(posterior);
+        } while (Double.isInfinite(oldLogLikelihood) && nInitiliasiationAttemps++ < 10);
+        if (Double.isInfinite(oldLogLikelihood) || Double.isNaN(oldLogLikelihood)) {
+            reportLogLikelihoods(posterior, "");
+            throw new RuntimeException("Could not find a proper state to initialise. Perhaps try another seed.");
+        }
+        initLoop();
+    }
+
+    /** 
+     * run MCMC for a number of samples at the current beta, without logging 
+     * and without changing operator acceptance statistics or tuning 
+     */
+    public void runSamples(long samples) {
+    	for (long i = 0; i < samples; i++) {
+    		doStep(-1);
+    	}
+    }
+
+    /** current state in the same format as the state file **/
+    public String getStateXML() {
+    	return state.toXML(0);
+    }
+
+    /** set state as produced by getStateXML for a chain of the same model, and recalculate the posterior **/
+    public void setStateXML(String xml) {
+    	state.fromXML(xml);
+    	recalculate();
+    }
+
+    /** 
+     * switch to the replica of a replica exchange run at beta, which stores its state in stateFile 
+     * and logs through loggers, which should log objects of this model. The current state is kept.
+     */
+    void setReplica(double beta, String stateFile, List<Logger> loggers) {
+    	setBeta(beta);
+    	setStateFile(stateFile, false);
+    	state.setStateFileName(stateFile);
+    	loggersInput.get().clear();
+    	loggersInput.get().addAll(loggers);
+    	this.loggers = loggersInput.get();
+    }
+
+    /** @return tuning of the operators, such as scale factors and window sizes, NaN for operators without tuning **/
+    double [] getOperatorTuning() {
+    	List<Operator> operators = operatorSchedule.getOperators();
+    	double [] tuning = new double[operators.size()];
+    	for (int i = 0; i < tuning.length; i++) {
+    		tuning[i] = operators.get(i).getCoercableParameterValue();
+    	}
+    	return tuning;
+    }
+
+    /** set operator tuning as returned by getOperatorTuning **/
+    void setOperatorTuning(double [] tuning) {
+    	List<Operator> operators = operatorSchedule.getOperators();
+    	for (int i = 0; i < tuning.length; i++) {
+    		if (!Double.isNaN(tuning[i])) {
+    			operators.get(i).setCoercableParameterValue(tuning[i]);
+    		}
+    	}
+    }
+
+    private void recalculate() {
+    	state.setEverythingDirty(true);
+    	robustlyCalcPosterior(posterior);
+    	initLoop();
+    }
+
+    protected void initESSMonitor() {
+    	essMonitor = null;
+    	stopReason = "chain length reached";
+    	borrowedSamples = 0;
+    	if (targetESSInput.get() > 0) {
+    		essMonitor = new OnlineESS();
+    		essSampleEvery = (int) Math.max(1, chainLengthInput.get() / 1000);
+    	}
+    }
+
+    /** value whose ESS is monitored: the likelihood column of the likelihood log **/
+    protected double getMonitoredValue() {
+    	return pDists[0].getArrayValue();
+    }
+
+    /**
+     * Collect the likelihood for the ESS estimate and decide whether the chain can stop.
+     * When the chain reaches chainLength without reaching the target ESS, it is extended
+     * with samples left by other steps, if any.
+     * @return true if the target ESS is reached
+     */
+    protected boolean stopEarly(int iSample) {
+    	if (essMonitor == null || iSample < 0) {
+    		return false;
+    	}
+    	// the end of the chain is handled even if chainLength is not a multiple of essSampleEvery
+    	boolean atEnd = iSample >= chainLength;
+    	boolean collect = iSample % essSampleEvery == 0;
+    	if (!collect && !atEnd) {
+    		return false;
+    	}
+    	if (collect) {
+    		essMonitor.add(getMonitoredValue());
+    	}
+    	if ((collect && essMonitor.size() % ESS_CHECK_INTERVAL == 0) || atEnd) {
+    		int retained = essMonitor.size() - essMonitor.size() * burnInPercentageInput.get() / 100;
+    		if (retained >= ESS_MIN_SAMPLES && essMonitor.getESS(burnInPercentageInput.get()) >= targetESSInput.get()) {
+    			stopReason = "target ESS reached";
+    			if (spareSamples != null) {
+    				spareSamples.addAndGet(Math.max(0, chainLength - iSample));
+    			}
+    			chainLength = iSample;
+    			return true;
+    		}
+    	}
+    	if (iSample >= chainLength && spareSamples != null) {
+    		long wanted = Math.max(essSampleEvery, chainLengthInput.get() / 10);
+    		long available, granted;
+    		do {
+    			available = spareSamples.get();
+    			granted = Math.min(wanted, available);
+    		} while (granted > 0 && !spareSamples.compareAndSet(available, available - granted));
+    		if (granted > 0) {
+    			chainLength += granted;
+    			borrowedSamples += granted;
+    		} else if (borrowedSamples > 0) {
+    			stopReason = "chain length and spare samples used up";
+    		}
+    	}
+    	return false;
+    }
+
+    /** write stop reason and ESS to the summary file in the directory of the state file **/
+    protected void writeSummary() throws IOException {
+    	if (essMonitor == null || stateFileName == null) {
+    		return;
+    	}
+    	File dir = new File(stateFileName).getAbsoluteFile().getParentFile();
+    	PrintStream out = new PrintStream(new File(dir, SUMMARY_FILE));
+    	out.println("beta\tsamples\tborrowed\ttargetESS\tESS\tstopReason");
+    	out.println(beta + "\t" + chainLength + "\t" + borrowedSamples + "\t" + targetESSInput.get() + "\t" 
+    			+ essMonitor.getESS(burnInPercentageInput.get()) + "\t" + stopReason);
+    	out.close();
     }
 }
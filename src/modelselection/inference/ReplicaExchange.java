@@ -0,0 +1,241 @@
+package modelselection.inference;
+
+import java.io.File;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.base.core.Input;
+import beast.base.inference.Logger;
+import beast.base.util.Randomizer;
+
+/**
+ * Runs the chains for all betas of a path sampling analysis at the same time
+ * (parallel tempering). Every swapEvery samples, swaps between the states of chains
+ * with adjacent betas are proposed, alternating between even and odd pairs.
+ * Each chain keeps logging to its own step directory, so the logs can be analysed
+ * with PathSampleAnalyser as usual.
+ *
+ * Only one model is kept per thread. The chain at every beta is a replica holding its
+ * state as XML, its operator tuning and loggers, and is run on the model of the same
+ * thread every time, so a swap only exchanges the state XML of two replicas.
+ */
+public class ReplicaExchange {
+	/** chain at a single beta **/
+	static class Replica {
+		final double beta;
+		final String stateFile;
+		/** model the replica is run on, and loggers of that model writing to the step directory **/
+		final PathSamplingStep worker;
+		final List<Logger> loggers;
+		String stateXML;
+		double logL;
+		double [] tuning;
+
+		Replica(double beta, File stepDir, PathSamplingStep worker, List<Logger> loggers) {
+			this.beta = beta;
+			this.stateFile = stepDir.getAbsolutePath() + File.separator + "beast.xml.state";
+			this.worker = worker;
+			this.loggers = loggers;
+		}
+
+		/** put the replica on its worker **/
+		void load() {
+			worker.setReplica(beta, stateFile, loggers);
+			worker.setStateXML(stateXML);
+			worker.setOperatorTuning(tuning);
+		}
+
+		/** take the replica off its worker **/
+		void save() {
+			stateXML = worker.getStateXML();
+			logL = worker.getLikelihood();
+			tuning = worker.getOperatorTuning();
+		}
+	}
+
+	final List<PathSamplingStep> workers;
+	final List<Replica> replicas;
+	final int swapEvery;
+
+	/** number of proposed and accepted swaps between replica i and i+1, replicas sorted by beta **/
+	long [] proposed, accepted;
+
+	/**
+	 * @param workers independent copies of the model, one per thread, with the same burn-in and chain length
+	 * @param betas beta of every replica
+	 * @param stepDirs directory every replica logs to and stores its state in
+	 * @param swapEvery number of samples between swap proposals
+	 */
+	public ReplicaExchange(List<PathSamplingStep> workers, List<Double> betas, List<File> stepDirs, int swapEvery) {
+		if (swapEvery <= 0) {
+			throw new IllegalArgumentException("swapEvery should be positive");
+		}
+		if (workers.size() == 0 || betas.size() != stepDirs.size()) {
+			throw new IllegalArgumentException("Expected at least one worker and a step directory for every beta");
+		}
+		this.workers = workers;
+		this.swapEvery = swapEvery;
+		// sort by beta, so neighbours in the list are neighbours in the ladder
+		Integer [] order = new Integer[betas.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(betas.get(a), betas.get(b)));
+		replicas = new ArrayList<>();
+		for (int i = 0; i < order.length; i++) {
+			PathSamplingStep worker = workers.get(i % workers.size());
+			File stepDir = stepDirs.get(order[i]);
+			replicas.add(new Replica(betas.get(order[i]), stepDir, worker, copyLoggers(worker, stepDir)));
+		}
+	}
+
+	public void run() throws Exception {
+		int n = replicas.size();
+		proposed = new long[n - 1];
+		accepted = new long[n - 1];
+		List<List<Logger>> templates = new ArrayList<>();
+		List<double []> initialTuning = new ArrayList<>();
+		for (PathSamplingStep worker : workers) {
+			templates.add(new ArrayList<>(worker.loggersInput.get()));
+			initialTuning.add(worker.getOperatorTuning());
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+		try {
+			forAll(pool, replica -> {
+				replica.worker.setReplica(replica.beta, replica.stateFile, replica.loggers);
+				replica.worker.setOperatorTuning(initialTuning.get(workers.indexOf(replica.worker)));
+				replica.worker.initRun();
+				replica.worker.initLoop();
+				replica.save();
+			});
+
+			// all replicas have the same burn-in and chain length
+			PathSamplingStep first = workers.get(0);
+			long sample = -first.burnInInput.get();
+			long end = first.chainLengthInput.get();
+			int round = 0;
+			while (sample <= end) {
+				final int from = (int) sample;
+				final int to = (int) Math.min(sample + swapEvery, end + 1);
+				forAll(pool, replica -> {
+					replica.load();
+					for (int i = from; i < to; i++) {
+						replica.worker.doStep(i);
+					}
+					replica.save();
+				});
+				sample = to;
+				if (sample <= end) {
+					proposeSwaps(round % 2);
+					round++;
+				}
+			}
+
+			forAll(pool, replica -> {
+				replica.load();
+				replica.worker.finishRun();
+			});
+		} finally {
+			pool.shutdown();
+			// leave workers with their own loggers, so they can run further steps
+			for (int i = 0; i < workers.size(); i++) {
+				PathSamplingStep worker = workers.get(i);
+				worker.loggersInput.get().clear();
+				worker.loggersInput.get().addAll(templates.get(i));
+				worker.setOperatorTuning(initialTuning.get(i));
+			}
+		}
+		report();
+	}
+
+	/** propose swaps between replica i and i+1 for i = start, start + 2, ... **/
+	void proposeSwaps(int start) {
+		for (int i = start; i < replicas.size() - 1; i += 2) {
+			Replica lower = replicas.get(i);
+			Replica upper = replicas.get(i + 1);
+			double logAlpha = (upper.beta - lower.beta) * (lower.logL - upper.logL);
+			proposed[i]++;
+			if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+				String stateXML = lower.stateXML;
+				lower.stateXML = upper.stateXML;
+				upper.stateXML = stateXML;
+				double logL = lower.logL;
+				lower.logL = upper.logL;
+				upper.logL = logL;
+				accepted[i]++;
+			}
+		}
+	}
+
+	void report() {
+		DecimalFormat f = new DecimalFormat("0.000");
+		System.out.println("\nSwap acceptance between adjacent betas:");
+		for (int i = 0; i < proposed.length; i++) {
+			System.out.println(f.format(replicas.get(i).beta) + " <-> " + f.format(replicas.get(i + 1).beta) + ": "
+					+ accepted[i] + "/" + proposed[i] +
+					(proposed[i] > 0 ? " (" + f.format((double) accepted[i] / proposed[i]) + ")" : ""));
+		}
+	}
+
+	/**
+	 * copies of the loggers of worker, logging the same objects but writing to stepDir,
+	 * keeping their file names, as PathSampler.setLogDir does for steps run one at a time
+	 */
+	static List<Logger> copyLoggers(PathSamplingStep worker, File stepDir) {
+		List<Logger> copies = new ArrayList<>();
+		for (Logger logger : worker.loggersInput.get()) {
+			Logger copy;
+			try {
+				copy = logger.getClass().newInstance();
+			} catch (InstantiationException | IllegalAccessException e) {
+				throw new IllegalArgumentException("Could not copy logger " + logger.getID() + ": " + e.getMessage());
+			}
+			for (Input<?> input : logger.listInputs()) {
+				if (input.get() instanceof List) {
+					for (Object o : (List<?>) input.get()) {
+						copy.setInputValue(input.getName(), o);
+					}
+				} else if (input.get() != null) {
+					copy.setInputValue(input.getName(), input.get());
+				}
+			}
+			String fileName = logger.fileNameInput.get();
+			if (fileName != null) {
+				copy.fileNameInput.setValue(new File(stepDir, new File(fileName).getName()).getPath(), copy);
+			}
+			copy.setID(logger.getID());
+			copy.initAndValidate();
+			copies.add(copy);
+		}
+		return copies;
+	}
+
+	interface ReplicaTask {
+		void run(Replica replica) throws Exception;
+	}
+
+	/** run task for every replica, the replicas of a worker one after another on one thread, and wait till all are done **/
+	private void forAll(ExecutorService pool, ReplicaTask task) throws Exception {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (PathSamplingStep worker : workers) {
+			tasks.add(() -> {
+				for (Replica replica : replicas) {
+					if (replica.worker == worker) {
+						task.run(replica);
+					}
+				}
+				return null;
+			});
+		}
+		for (Future<Void> f : pool.invokeAll(tasks)) {
+			// rethrows any exception of the task
+			f.get();
+		}
+	}
+}
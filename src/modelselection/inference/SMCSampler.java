@@ -0,0 +1,301 @@
+package modelselection.inference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math.distribution.BetaDistribution;
+import org.apache.commons.math.distribution.BetaDistributionImpl;
+
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
+import beast.base.inference.MCMC;
+import beast.base.parser.XMLParser;
+import beast.base.parser.XMLProducer;
+import beast.base.util.Randomizer;
+
+
+@Citation(value= "Del Moral, P., Doucet, A., & Jasra, A. (2006).\n" +
+        "Sequential Monte Carlo samplers.\n" +
+        "Journal of the Royal Statistical Society: Series B, 68(3), 411-436."
+        , year = 2006, firstAuthorSurname = "Del Moral",
+        DOI="10.1111/j.1467-9868.2006.00553.x")
+@Description("Calculate marginal likelihood through sequential Monte Carlo (annealed importance sampling with resampling). " +
+		"A population of particles is moved from prior to posterior along the same beta schedule as used by PathSampler. " +
+		"At every beta, particles are reweighted by the likelihood increment, resampled when the effective sample size gets low, " +
+		"and moved by a few MCMC samples of a PathSamplingStep. " +
+		"Uses multiple threads if specified as command line option to BEAST.")
+public class SMCSampler extends beast.base.inference.Runnable {
+	public Input<MCMC> mcmcInput = new Input<>("mcmc", "MCMC analysis used to specify model and operators for moving the particles", Validate.REQUIRED);
+	public Input<Double> alphaInput = new Input<>("alpha", "alpha parameter of Beta(alpha,1) distribution used to space out betas, default 0.3. " +
+			"If alpha <= 0, uniform intervals are used.", 0.3);
+	public Input<Integer> stepsInput = new Input<>("nrOfSteps", "the number of betas to move the particles through, default 100", 100);
+	public Input<Integer> particleCountInput = new Input<>("nrOfParticles", "the number of particles, default 100", 100);
+	public Input<Long> particleChainLengthInput = new Input<>("particleChainLength", "number of MCMC samples used to move each particle at every beta", 100L);
+	public Input<Long> preBurnInInput = new Input<>("preBurnin", "number of MCMC samples from the prior for initialising each particle", 10000L);
+	public Input<Double> resampleThresholdInput = new Input<>("resampleThreshold", "resample when the effective sample size of the particle weights "
+			+ "drops below this fraction of the number of particles", 0.5);
+	public Input<String> rootDirInput = new Input<>("rootdir", "directory for storing the model of a single particle and the SMC log (default /tmp)", "/tmp");
+
+	public static String SMC_LOG_FILE = "smc.log";
+	final static String fileSep = System.getProperty("file.separator");
+
+	/** one model instance per thread **/
+	List<PathSamplingStep> workers;
+	/** particle states, log likelihoods and log weights **/
+	String [] particles;
+	double [] logL;
+	double [] logW;
+
+	double logMarginalL;
+
+	@Override
+	public void initAndValidate() {
+		if (particleCountInput.get() < 2) {
+			throw new IllegalArgumentException("nrOfParticles should be at least 2");
+		}
+		if (stepsInput.get() < 1) {
+			throw new IllegalArgumentException("nrOfSteps should be at least 1");
+		}
+	}
+
+	@Override
+	public void run() throws Exception {
+		long startTime = System.currentTimeMillis();
+		File rootDir = new File(rootDirInput.get());
+		if (!rootDir.exists() && !rootDir.mkdirs()) {
+			throw new Exception("Directory " + rootDirInput.get() + " does not exist and could not be created.");
+		}
+
+		createWorkers(rootDir);
+
+		int n = particleCountInput.get();
+		int nSteps = stepsInput.get();
+		particles = new String[n];
+		logL = new double[n];
+		logW = new double[n];
+
+		// draw particles from the prior
+		final long preBurnIn = preBurnInInput.get();
+		forAllParticles((worker, i) -> {
+			worker.setBeta(0.0);
+			worker.initChain();
+			worker.runSamples(preBurnIn);
+			particles[i] = worker.getStateXML();
+			logL[i] = worker.getLikelihood();
+		});
+
+		PrintStream log = new PrintStream(new FileOutputStream(rootDirInput.get() + fileSep + SMC_LOG_FILE));
+		log.println("step\tbeta\tESS\tresampled\tlogZ");
+		System.out.println("\nStep        beta         ESS          logZ");
+
+		BetaDistribution betaDistribution = alphaInput.get() > 0 ? new BetaDistributionImpl(alphaInput.get(), 1.0) : null;
+		double prevBeta = 0;
+		logMarginalL = 0;
+		final long chainLength = particleChainLengthInput.get();
+		for (int step = 1; step <= nSteps; step++) {
+			final double beta = step == nSteps ? 1.0 :
+				(betaDistribution != null ? betaDistribution.inverseCumulativeProbability((double) step / nSteps) : (double) step / nSteps);
+
+			// reweight by likelihood increment
+			double logSumW = logSumExp(logW);
+			for (int i = 0; i < n; i++) {
+				logW[i] += (beta - prevBeta) * logL[i];
+			}
+			logMarginalL += logSumExp(logW) - logSumW;
+			prevBeta = beta;
+
+			double ess = effectiveSampleSize(logW);
+			boolean resample = ess < resampleThresholdInput.get() * n;
+			if (resample) {
+				resample();
+			}
+
+			log.println(step + "\t" + beta + "\t" + ess + "\t" + resample + "\t" + logMarginalL);
+			System.out.println(format(step) + format(beta) + format(ess) + format(logMarginalL));
+
+			// move particles, not needed after the last reweighting
+			if (step < nSteps) {
+				forAllParticles((worker, i) -> {
+					worker.setBeta(beta);
+					worker.setStateXML(particles[i]);
+					worker.runSamples(chainLength);
+					particles[i] = worker.getStateXML();
+					logL[i] = worker.getLikelihood();
+				});
+			}
+		}
+		log.close();
+		long endTime = System.currentTimeMillis();
+
+		System.out.println("marginal L estimate = " + logMarginalL);
+		System.out.println("\n\nTotal wall time: " + (endTime-startTime)/1000 + " seconds\nDone");
+	}
+
+	public double getLogMarginalLikelihood() {
+		return logMarginalL;
+	}
+
+	/**
+	 * set up one PathSamplingStep per thread, each with its own copy of the model,
+	 * by writing the step to XML and parsing it again
+	 */
+	void createWorkers(File rootDir) throws Exception {
+		MCMC mcmc = mcmcInput.get();
+		PathSamplingStep step = new PathSamplingStep();
+		for (Input<?> input : mcmc.listInputs()) {
+			// particles are not logged
+			if (input.getName().equals("logger")) {
+				continue;
+			}
+			try {
+				if (input.get() instanceof List) {
+					for (Object o : (List<?>) input.get()) {
+						step.setInputValue(input.getName(), o);
+					}
+				} else {
+					step.setInputValue(input.getName(), input.get());
+				}
+			} catch (Exception e) {
+				// input not supported by PathSamplingStep
+			}
+		}
+		step.setInputValue("chainLength", particleChainLengthInput.get());
+		step.setInputValue("beta", 0.0);
+
+		File xmlFile = new File(rootDir.getAbsolutePath() + fileSep + "particle.xml");
+		PrintStream out = new PrintStream(new FileOutputStream(xmlFile));
+		out.print(new XMLProducer().toXML(step));
+		out.close();
+
+		int threads = Math.max(1, Math.min(ProgramStatus.m_nThreads, particleCountInput.get()));
+		workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Object o = new XMLParser().parseFile(xmlFile);
+			if (!(o instanceof PathSamplingStep)) {
+				throw new Exception("The model in " + xmlFile.getPath() + " does not appear to be a path sampling step.");
+			}
+			workers.add((PathSamplingStep) o);
+		}
+		Log.warning.println("Moving " + particleCountInput.get() + " particles on " + threads + " thread(s)");
+	}
+
+	interface ParticleTask {
+		void run(PathSamplingStep worker, int particle) throws Exception;
+	}
+
+	/** run task for every particle, each worker handling a contiguous block of particles **/
+	void forAllParticles(ParticleTask task) throws Exception {
+		int n = particles.length;
+		int threads = workers.size();
+		if (threads == 1) {
+			for (int i = 0; i < n; i++) {
+				task.run(workers.get(0), i);
+			}
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int k = 0; k < threads; k++) {
+				final PathSamplingStep worker = workers.get(k);
+				final int from = k * n / threads;
+				final int to = (k + 1) * n / threads;
+				tasks.add(() -> {
+					for (int i = from; i < to; i++) {
+						task.run(worker, i);
+					}
+					return null;
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				// rethrows any exception of the task
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** systematic resampling, after which all particles have equal weight **/
+	void resample() {
+		int n = particles.length;
+		double logSum = logSumExp(logW);
+		String [] newParticles = new String[n];
+		double [] newLogL = new double[n];
+		double u = Randomizer.nextDouble() / n;
+		double cumulative = 0;
+		int j = 0;
+		for (int i = 0; i < n; i++) {
+			cumulative += Math.exp(logW[i] - logSum);
+			while (j < n && u < cumulative) {
+				newParticles[j] = particles[i];
+				newLogL[j] = logL[i];
+				j++;
+				u += 1.0 / n;
+			}
+		}
+		// guard against round off in the cumulative weights
+		while (j < n) {
+			newParticles[j] = particles[n - 1];
+			newLogL[j] = logL[n - 1];
+			j++;
+		}
+		particles = newParticles;
+		logL = newLogL;
+		for (int i = 0; i < n; i++) {
+			logW[i] = 0;
+		}
+	}
+
+	static double logSumExp(double [] x) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double d : x) {
+			max = Math.max(max, d);
+		}
+		if (Double.isInfinite(max)) {
+			return max;
+		}
+		double sum = 0;
+		for (double d : x) {
+			sum += Math.exp(d - max);
+		}
+		return max + Math.log(sum);
+	}
+
+	/** (sum w)^2 / sum w^2 for normalised weights **/
+	static double effectiveSampleSize(double [] logW) {
+		double logSum = logSumExp(logW);
+		double sum2 = 0;
+		for (double d : logW) {
+			double w = Math.exp(d - logSum);
+			sum2 += w * w;
+		}
+		return 1.0 / sum2;
+	}
+
+	private String format(double d) {
+		DecimalFormat format = new DecimalFormat("###.####");
+		String s = format.format(d);
+		if (s.length() < 12) {
+			s += "            ".substring(s.length());
+		}
+		return s;
+	}
+
+	@Override
+	public boolean hasPartitions() {
+		return false;
+	}
+}
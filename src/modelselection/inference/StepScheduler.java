@@ -0,0 +1,197 @@
+package modelselection.inference;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the steps of a path sampling/stepping stone analysis on a fixed number of threads.
+ * A step that continues from the state of a predecessor step is started as soon as
+ * that predecessor has finished (and written its state file), instead of waiting for
+ * a whole batch of steps to finish. Steps without predecessor can start straight away.
+ *
+ * At the end, the time each step waited in the queue and the idle time of each thread
+ * are reported.
+ */
+public class StepScheduler {
+
+	/** does the actual work for a step **/
+	public interface StepRunner {
+		/**
+		 * prepare a step just before it is run, e.g. copy the state file
+		 * of the predecessor and check for old log files
+		 * @param stepNr step to prepare
+		 * @param predecessor step to continue from, or -1 if there is none
+		 */
+		void prepareStep(int stepNr, int predecessor) throws Exception;
+
+		/** run a step, returns when the step has finished **/
+		void runStep(int stepNr) throws Exception;
+	}
+
+	class StepInfo {
+		int stepNr;
+		int predecessor;
+		List<StepInfo> successors = new ArrayList<>();
+		long readyTime, startTime, endTime;
+		int thread = -1;
+		boolean waiting;
+		boolean failed;
+
+		StepInfo(int stepNr, int predecessor) {
+			this.stepNr = stepNr;
+			this.predecessor = predecessor;
+		}
+	}
+
+	final int threadCount;
+	final StepRunner runner;
+	final Map<Integer, StepInfo> steps = new LinkedHashMap<>();
+
+	ExecutorService pool;
+	CountDownLatch countDown;
+	long [] busyTime;
+	final ThreadLocal<Integer> threadNr = new ThreadLocal<>();
+
+	public StepScheduler(int threadCount, StepRunner runner) {
+		this.threadCount = Math.max(1, threadCount);
+		this.runner = runner;
+	}
+
+	/**
+	 * add step to be run
+	 * @param stepNr step number
+	 * @param predecessor step that must have finished before this step can start, or -1 if there is none.
+	 * A predecessor that was not added to this scheduler is assumed to have finished already. 
+	 */
+	public void addStep(int stepNr, int predecessor) {
+		if (steps.containsKey(stepNr)) {
+			throw new IllegalArgumentException("Step " + stepNr + " is added more than once");
+		}
+		StepInfo info = new StepInfo(stepNr, predecessor);
+		StepInfo pred = steps.get(predecessor);
+		if (pred != null) {
+			pred.successors.add(info);
+			info.waiting = true;
+		}
+		steps.put(stepNr, info);
+	}
+
+	/** run all steps, and return when all of them are finished **/
+	public void run() throws Exception {
+		busyTime = new long[threadCount];
+		countDown = new CountDownLatch(steps.size());
+		final AtomicInteger threadCounter = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(threadCount, r -> {
+			final int k = threadCounter.getAndIncrement();
+			return new Thread(() -> {
+				threadNr.set(k);
+				r.run();
+			}, "step-runner-" + k);
+		});
+
+		long startTime = System.currentTimeMillis();
+		for (StepInfo info : steps.values()) {
+			if (!info.waiting) {
+				submit(info);
+			}
+		}
+		countDown.await();
+		pool.shutdown();
+		long endTime = System.currentTimeMillis();
+
+		report(startTime, endTime);
+
+		List<Integer> failed = new ArrayList<>();
+		for (StepInfo info : steps.values()) {
+			if (info.failed) {
+				failed.add(info.stepNr);
+			}
+		}
+		if (failed.size() > 0) {
+			throw new Exception("The following steps did not finish successfully: " + failed);
+		}
+	}
+
+	private void submit(StepInfo info) {
+		info.readyTime = System.currentTimeMillis();
+		pool.execute(() -> execute(info));
+	}
+
+	private void execute(StepInfo info) {
+		info.startTime = System.currentTimeMillis();
+		info.thread = threadNr.get();
+		try {
+			System.err.println("Starting step " + info.stepNr);
+			runner.prepareStep(info.stepNr, info.predecessor);
+			runner.runStep(info.stepNr);
+			System.err.println("Finished step " + info.stepNr);
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.err.println("Step " + info.stepNr + " failed");
+			info.failed = true;
+		}
+		info.endTime = System.currentTimeMillis();
+		busyTime[info.thread] += info.endTime - info.startTime;
+
+		for (StepInfo successor : info.successors) {
+			if (info.failed) {
+				skip(successor);
+			} else {
+				submit(successor);
+			}
+		}
+		countDown.countDown();
+	}
+
+	/** a step cannot run when its predecessor failed **/
+	private void skip(StepInfo info) {
+		System.err.println("Skipping step " + info.stepNr + " since step " + info.predecessor + " failed");
+		info.failed = true;
+		for (StepInfo successor : info.successors) {
+			skip(successor);
+		}
+		countDown.countDown();
+	}
+
+	private void report(long startTime, long endTime) {
+		DecimalFormat f = new DecimalFormat("#0.0");
+		System.out.println("\nStep  thread  queued(s)  run(s)");
+		long totalQueued = 0;
+		for (StepInfo info : steps.values()) {
+			if (info.thread >= 0) {
+				System.out.println(pad(info.stepNr + "", 4) + pad(info.thread + "", 8)
+						+ pad(f.format((info.startTime - info.readyTime) / 1000.0), 11)
+						+ pad(f.format((info.endTime - info.startTime) / 1000.0), 8));
+				totalQueued += info.startTime - info.readyTime;
+			}
+		}
+		long wallTime = endTime - startTime;
+		long totalBusy = 0;
+		System.out.println("\nThread  busy(s)  idle(s)");
+		for (int k = 0; k < threadCount; k++) {
+			System.out.println(pad(k + "", 6) + pad(f.format(busyTime[k] / 1000.0), 9)
+					+ pad(f.format((wallTime - busyTime[k]) / 1000.0), 9));
+			totalBusy += busyTime[k];
+		}
+		System.out.println("Total queue time: " + f.format(totalQueued / 1000.0) + " seconds");
+		if (wallTime > 0) {
+			System.out.println("Utilisation: " + f.format(100.0 * totalBusy / (wallTime * threadCount)) + "%");
+		}
+	}
+
+	private String pad(String s, int width) {
+		StringBuilder b = new StringBuilder();
+		for (int i = s.length(); i < width; i++) {
+			b.append(' ');
+		}
+		b.append(s);
+		return b.toString();
+	}
+}
@@ -0,0 +1,376 @@
+package modelselection.inference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.util.HeapSort;
+import beastfx.app.tools.Application;
+
+@Description("Follows the likelihood logs of the steps of a path sampling analysis while they are being written, "
+		+ "and reports stepping stone and thermodynamic integration estimates of the marginal likelihood as samples come in. "
+		+ "Every log is read only once, keeping running sums per step instead of the traces. "
+		+ "Standard errors assume independent samples, so will be optimistic for autocorrelated chains; "
+		+ "use PathSampleAnalyser for the final estimate.")
+public class StreamingPathSampleAnalyser extends beast.base.inference.Runnable {
+	public Input<String> rootDirInput = new Input<>("rootdir", "root directory containing the step directories (default /tmp)", "/tmp");
+	public Input<Integer> stepsInput = new Input<>("nrOfSteps", "the number of steps. Betas are read from the beast.xml file in the step directories", 8);
+	public Input<Long> burnInInput = new Input<>("burnin", "samples with a sample number below burnin are discarded", 0L);
+	public Input<Long> chainLengthInput = new Input<>("chainLength", "sample number at which a step is complete. Following the logs stops "
+			+ "when all steps are complete. If 0, logs are followed till the program is interrupted", 0L);
+	public Input<Integer> intervalInput = new Input<>("interval", "number of seconds between updates of the estimate", 60);
+	public Input<String> tagInput = new Input<>("tag", "label of the column in the likelihood.log file", "likelihood");
+	public Input<String> progressLogInput = new Input<>("progressLog", "if specified, estimates are appended to this file as well as printed");
+
+	/** running summary of the likelihood trace of a single step **/
+	class StepStream implements BinaryLog.RowHandler {
+		final File dir;
+		double beta;
+		/** distance to the next larger beta, 0 for the largest beta **/
+		double weight;
+
+		// reading position in a text log
+		long position;
+		int column = -1;
+		BinaryLog.Tail tail;
+
+		long lastSample = -1;
+		// mean and sum of squared deviations of the likelihood
+		long n;
+		double mean, m2;
+		// sum of exp(weight * L - logMax) and its square
+		double logMax, sumW, sumW2;
+
+		StepStream(File dir, double beta) {
+			this.dir = dir;
+			this.beta = beta;
+			reset();
+		}
+
+		void reset() {
+			position = 0;
+			column = -1;
+			tail = null;
+			lastSample = -1;
+			n = 0;
+			mean = 0;
+			m2 = 0;
+			logMax = Double.NEGATIVE_INFINITY;
+			sumW = 0;
+			sumW2 = 0;
+		}
+
+		@Override
+		public void row(long sample, double [] values) {
+			add(sample, values[column]);
+		}
+
+		void add(long sample, double logL) {
+			lastSample = sample;
+			if (sample < burnIn) {
+				return;
+			}
+			n++;
+			double delta = logL - mean;
+			mean += delta / n;
+			m2 += delta * (logL - mean);
+
+			double x = weight * logL;
+			if (x > logMax) {
+				double scale = Math.exp(logMax - x);
+				sumW *= scale;
+				sumW2 *= scale * scale;
+				logMax = x;
+			}
+			double w = Math.exp(x - logMax);
+			sumW += w;
+			sumW2 += w * w;
+		}
+
+		/** read rows added to the log since the last call **/
+		void poll() throws IOException {
+			File binaryLog = new File(dir, PathSampler.LIKELIHOOD_BINARY_LOG_FILE);
+			if (tail != null || binaryLog.exists()) {
+				if (tail == null) {
+					tail = new BinaryLog.Tail(binaryLog);
+				}
+				if (column < 0) {
+					if (!tail.readHeader()) {
+						return;
+					}
+					column = Arrays.asList(tail.getLabels()).indexOf(tag);
+					if (column < 0) {
+						throw new IOException("Could not find column " + tag + " in " + binaryLog.getPath());
+					}
+				}
+				tail.poll(this);
+				return;
+			}
+
+			File textLog = new File(dir, PathSampler.LIKELIHOOD_LOG_FILE);
+			if (!textLog.exists() || textLog.length() <= position) {
+				return;
+			}
+			byte [] bytes;
+			try (RandomAccessFile in = new RandomAccessFile(textLog, "r")) {
+				bytes = new byte[(int) Math.min(in.length() - position, Integer.MAX_VALUE)];
+				in.seek(position);
+				in.readFully(bytes);
+			}
+			// only process complete lines, the last line may still be being written
+			int end = bytes.length - 1;
+			while (end >= 0 && bytes[end] != '\n') {
+				end--;
+			}
+			if (end < 0) {
+				return;
+			}
+			position += end + 1;
+			String [] lines = new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n");
+			for (String line : lines) {
+				if (line.startsWith("#") || line.trim().length() == 0) {
+					continue;
+				}
+				String [] strs = line.trim().split("\t");
+				if (column < 0) {
+					column = Arrays.asList(strs).indexOf(tag);
+					if (column < 0) {
+						throw new IOException("Could not find column " + tag + " in " + textLog.getPath());
+					}
+					continue;
+				}
+				add(Long.parseLong(strs[0]), Double.parseDouble(strs[column]));
+			}
+		}
+
+		/** log of the mean of exp(weight * L), the stepping stone contribution of the interval above beta **/
+		double ssContribution() {
+			return logMax + Math.log(sumW / n);
+		}
+
+		/** delta method variance of ssContribution **/
+		double ssVariance() {
+			double w = sumW / n;
+			double var = (sumW2 - sumW * sumW / n) / (n - 1);
+			return var / (w * w * n);
+		}
+
+		double varianceOfMean() {
+			return m2 / (n - 1) / n;
+		}
+	}
+
+	List<StepStream> steps = new ArrayList<>();
+	/** order[i] is the step with the i-th smallest beta **/
+	int [] order;
+	long burnIn;
+	String tag;
+	long startTime;
+	PrintStream progressLog;
+	Thread monitor;
+
+	double ssEstimate, ssSE, tiEstimate, tiSE;
+
+	@Override
+	public void initAndValidate() {
+		burnIn = burnInInput.get();
+		tag = tagInput.get();
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Set the betas of the steps, in order of the step directories. Steps can be added
+	 * by passing a longer array; steps for which the next larger beta changes are read again.
+	 */
+	public synchronized void setBetas(double [] betas) {
+		File rootDir = new File(rootDirInput.get());
+		for (int i = 0; i < betas.length; i++) {
+			if (i < steps.size()) {
+				steps.get(i).beta = betas[i];
+			} else {
+				steps.add(new StepStream(new File(rootDir, "step" + i), betas[i]));
+			}
+		}
+		double [] sorted = betas.clone();
+		order = new int[betas.length];
+		HeapSort.sort(sorted, order);
+		for (int i = 0; i < order.length; i++) {
+			StepStream step = steps.get(order[i]);
+			double weight = i < order.length - 1 ? steps.get(order[i + 1]).beta - step.beta : 0;
+			if (weight != step.weight) {
+				step.weight = weight;
+				step.reset();
+			}
+		}
+	}
+
+	/** read new samples of all steps and update the estimates **/
+	public synchronized void poll() throws IOException {
+		for (StepStream step : steps) {
+			step.poll();
+		}
+		updateEstimates();
+	}
+
+	void updateEstimates() {
+		ssEstimate = Double.NaN;
+		ssSE = Double.NaN;
+		tiEstimate = Double.NaN;
+		tiSE = Double.NaN;
+		int nSteps = order.length;
+		if (nSteps < 2) {
+			return;
+		}
+		for (StepStream step : steps) {
+			if (step.n < 2) {
+				// not all steps have samples yet
+				return;
+			}
+		}
+		double ss = 0, ssVar = 0, ti = 0, tiVar = 0;
+		for (int i = 0; i < nSteps; i++) {
+			StepStream step = steps.get(order[i]);
+			if (i < nSteps - 1) {
+				ss += step.ssContribution();
+				ssVar += step.ssVariance();
+				ti += step.weight * (step.mean + steps.get(order[i + 1]).mean) / 2.0;
+			}
+			// trapezoid weight of this step's mean
+			double lower = i > 0 ? steps.get(order[i - 1]).beta : step.beta;
+			double upper = i < nSteps - 1 ? steps.get(order[i + 1]).beta : step.beta;
+			double c = (upper - lower) / 2.0;
+			tiVar += c * c * step.varianceOfMean();
+		}
+		ssEstimate = ss;
+		ssSE = Math.sqrt(ssVar);
+		tiEstimate = ti;
+		tiSE = Math.sqrt(tiVar);
+	}
+
+	public synchronized double getSteppingStoneEstimate() {
+		return ssEstimate;
+	}
+
+	public synchronized double getSteppingStoneSE() {
+		return ssSE;
+	}
+
+	public synchronized double getThermodynamicIntegrationEstimate() {
+		return tiEstimate;
+	}
+
+	public synchronized double getThermodynamicIntegrationSE() {
+		return tiSE;
+	}
+
+	/** true if all steps logged a sample at or beyond chainLength **/
+	public synchronized boolean isComplete(long chainLength) {
+		for (StepStream step : steps) {
+			if (step.lastSample < chainLength) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized void report() {
+		DecimalFormat f = new DecimalFormat("0.####");
+		long samples = 0;
+		int started = 0;
+		for (StepStream step : steps) {
+			samples += step.n;
+			if (step.n > 0) {
+				started++;
+			}
+		}
+		long seconds = (System.currentTimeMillis() - startTime) / 1000;
+		String line = seconds + "\t" + started + "/" + steps.size() + "\t" + samples + "\t"
+				+ f.format(ssEstimate) + "\t" + f.format(ssSE) + "\t"
+				+ f.format(tiEstimate) + "\t" + f.format(tiSE);
+		System.out.println("Live estimate after " + seconds + " seconds (" + started + "/" + steps.size() + " steps with samples): "
+				+ "SS = " + f.format(ssEstimate) + " (" + f.format(ssSE) + ") "
+				+ "TI = " + f.format(tiEstimate) + " (" + f.format(tiSE) + ")");
+		if (progressLog != null) {
+			progressLog.println(line);
+			progressLog.flush();
+		}
+	}
+
+	void openProgressLog() throws IOException {
+		if (progressLogInput.get() != null && progressLog == null) {
+			boolean exists = new File(progressLogInput.get()).exists();
+			progressLog = new PrintStream(new FileOutputStream(progressLogInput.get(), true));
+			if (!exists) {
+				progressLog.println("seconds\tsteps\tsamples\tSS\tSS.SE\tTI\tTI.SE");
+			}
+		}
+	}
+
+	/** follow the logs on a background thread, reporting every interval seconds **/
+	public void start(int interval) throws IOException {
+		openProgressLog();
+		monitor = new Thread(() -> {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					Thread.sleep(interval * 1000L);
+					poll();
+					report();
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (IOException e) {
+				Log.warning.println("Stopped following step logs: " + e.getMessage());
+			}
+		}, "StreamingPathSampleAnalyser");
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	public void stop() throws InterruptedException {
+		if (monitor != null) {
+			monitor.interrupt();
+			monitor.join();
+			monitor = null;
+		}
+		if (progressLog != null) {
+			progressLog.close();
+			progressLog = null;
+		}
+	}
+
+	@Override
+	public void run() throws Exception {
+		int nSteps = stepsInput.get();
+		double [] betas = new double[nSteps];
+		for (int i = 0; i < nSteps; i++) {
+			betas[i] = PathSampleAnalyser.readStepBeta(rootDirInput.get() + "/step" + i + "/beast.xml");
+		}
+		setBetas(betas);
+		openProgressLog();
+		long chainLength = chainLengthInput.get();
+		while (true) {
+			poll();
+			report();
+			if (chainLength > 0 && isComplete(chainLength)) {
+				break;
+			}
+			Thread.sleep(intervalInput.get() * 1000L);
+		}
+		stop();
+		System.out.println("marginal L estimate = " + ssEstimate);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new StreamingPathSampleAnalyser(), "Streaming Path Sample Analyser", args);
+	}
+}
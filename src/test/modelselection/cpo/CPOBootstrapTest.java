@@ -0,0 +1,58 @@
+package test.modelselection.cpo;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import modelselection.cpo.CPOBootstrap;
+import modelselection.cpo.PatternMatrix;
+
+public class CPOBootstrapTest extends TestCase {
+	final static int PATTERNS = 150, TREES = 300, REPLICATES = 50;
+
+	double [][] patternLogProbs = new double[PATTERNS][TREES];
+	int [] patternWeights = new int[PATTERNS];
+	double [] minLogP = new double[PATTERNS];
+
+	@Override
+	protected void setUp() {
+		Random random = new Random(17);
+		for (int i = 0; i < PATTERNS; i++) {
+			double mean = -2 - 10 * random.nextDouble();
+			minLogP[i] = Double.POSITIVE_INFINITY;
+			for (int k = 0; k < TREES; k++) {
+				patternLogProbs[i][k] = mean + 0.5 * random.nextGaussian();
+				minLogP[i] = Math.min(minLogP[i], patternLogProbs[i][k]);
+			}
+			patternWeights[i] = 1 + random.nextInt(5);
+		}
+	}
+
+	@Test
+	public void testSameResultForAnyNumberOfThreads() throws Exception {
+		CPOBootstrap bootstrap = new CPOBootstrap(patternLogProbs, patternWeights, minLogP);
+		double [] single = bootstrap.run(REPLICATES, 42, 1);
+		double [] parallel = bootstrap.run(REPLICATES, 42, 4);
+		assertEquals(REPLICATES, single.length);
+		for (int r = 0; r < REPLICATES; r++) {
+			assertEquals(Double.doubleToLongBits(single[r]), Double.doubleToLongBits(parallel[r]));
+		}
+	}
+
+	@Test
+	public void testByPatternSameResultForAnyNumberOfThreads() throws Exception {
+		PatternMatrix matrix = PatternMatrix.of(patternLogProbs);
+		double [] single = CPOBootstrap.runByPattern(matrix, patternWeights, minLogP, REPLICATES, 42, 1);
+		double [] parallel = CPOBootstrap.runByPattern(matrix, patternWeights, minLogP, REPLICATES, 42, 4);
+		for (int r = 0; r < REPLICATES; r++) {
+			assertEquals(Double.doubleToLongBits(single[r]), Double.doubleToLongBits(parallel[r]));
+		}
+
+		// same trees are drawn as by run(), only the order of summation differs
+		double [] byTree = new CPOBootstrap(patternLogProbs, patternWeights, minLogP).run(REPLICATES, 42, 4);
+		for (int r = 0; r < REPLICATES; r++) {
+			assertEquals(byTree[r], single[r], 1e-9 * Math.abs(byTree[r]));
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package test.modelselection.cpo;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import modelselection.cpo.CPOBootstrap;
+import modelselection.cpo.StreamingCPO;
+
+public class StreamingCPOTest extends TestCase {
+	final static int PATTERNS = 40, TREES = 250, REPLICATES = 30;
+
+	@Test
+	public void testBootstrapFromSpillFile() throws Exception {
+		Random random = new Random(5);
+		double [][] patternLogProbs = new double[PATTERNS][TREES];
+		int [] patternWeights = new int[PATTERNS];
+		for (int i = 0; i < PATTERNS; i++) {
+			double mean = -2 - 10 * random.nextDouble();
+			for (int k = 0; k < TREES; k++) {
+				patternLogProbs[i][k] = mean + 0.5 * random.nextGaussian();
+			}
+			patternWeights[i] = 1 + random.nextInt(3);
+		}
+
+		File spillFile = File.createTempFile("spill", ".bin");
+		spillFile.deleteOnExit();
+		StreamingCPO cpo = new StreamingCPO(null, 0, spillFile);
+		cpo.start(patternWeights, TREES);
+		double [] row = new double[PATTERNS];
+		for (int k = 0; k < TREES; k++) {
+			for (int i = 0; i < PATTERNS; i++) {
+				row[i] = patternLogProbs[i][k];
+			}
+			cpo.add(row);
+		}
+		cpo.finish();
+
+		double [] expected = new CPOBootstrap(patternLogProbs, patternWeights, cpo.getMinLogP()).run(REPLICATES, 42, 1);
+		// budgets for a single pass, and for batches of 3 replicates read in blocks of 3 rows
+		for (long memoryBudget : new long[]{1L << 30, 3 * 8 * PATTERNS}) {
+			for (int threads : new int[]{1, 4}) {
+				double [] LPMLs = cpo.bootstrap(REPLICATES, 42, threads, memoryBudget);
+				for (int r = 0; r < REPLICATES; r++) {
+					assertEquals(Double.doubleToLongBits(expected[r]), Double.doubleToLongBits(LPMLs[r]));
+				}
+			}
+		}
+	}
+}
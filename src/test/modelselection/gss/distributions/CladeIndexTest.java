@@ -0,0 +1,276 @@
+package test.modelselection.gss.distributions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import modelselection.gss.distribution.CladeIndex;
+
+public class CladeIndexTest extends TestCase {
+	// more than 64 taxa, so keys take several words
+	final static int TAXA = 150;
+	final static int WORDS = 3;
+
+	private long [] randomKey(Random random) {
+		long [] key = new long[WORDS];
+		for (int taxon = 0; taxon < TAXA; taxon++) {
+			if (random.nextInt(3) == 0) {
+				key[taxon >>> 6] |= 1L << taxon;
+			}
+		}
+		return key;
+	}
+
+	/** random splits as parent, left and right keys, drawn from a limited number of parents so splits recur **/
+	private List<long [][]> randomSplits(Random random, int count) {
+		List<long [][]> parents = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			parents.add(new long [][] {randomKey(random)});
+		}
+		List<long [][]> splits = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			long [] parent = parents.get(random.nextInt(parents.size()))[0];
+			long [] left = new long[WORDS];
+			long [] right = new long[WORDS];
+			// few distinct children per parent
+			Random childRandom = new Random(random.nextInt(4) + 31 * parent[0]);
+			for (int k = 0; k < WORDS; k++) {
+				left[k] = parent[k] & childRandom.nextLong();
+				right[k] = parent[k] & ~left[k];
+			}
+			splits.add(new long [][] {parent, left, right});
+		}
+		return splits;
+	}
+
+	private void addSplits(CladeIndex index, List<long [][]> splits) {
+		for (long [][] split : splits) {
+			int parent = index.add(split[0], 0);
+			int left = index.add(split[1], 0);
+			int right = index.add(split[2], 0);
+			index.addSplit(parent, left, right);
+		}
+	}
+
+	/** check both indices contain the same clades, splits and counts, identifying clades by key **/
+	private void assertSameContent(CladeIndex expected, CladeIndex actual) {
+		assertEquals(expected.getCladeCount(), actual.getCladeCount());
+		assertEquals(expected.getSplitCount(), actual.getSplitCount());
+		long [] key = new long[WORDS];
+		int [] map = new int[expected.getCladeCount()];
+		for (int i = 0; i < expected.getCladeCount(); i++) {
+			expected.getKey(i, key, 0);
+			map[i] = actual.find(key, 0);
+			assertTrue(map[i] >= 0);
+			assertEquals(expected.getParentCount(i), actual.getParentCount(map[i]));
+		}
+		expected.forEachSplit((parent, child, count) -> {
+			assertEquals(count, actual.getSplitCount(map[parent], map[child]));
+			assertEquals(Double.doubleToLongBits(expected.getLogConditional(parent, child)),
+					Double.doubleToLongBits(actual.getLogConditional(map[parent], map[child])));
+		});
+	}
+
+	@Test
+	public void testAddFindAcrossGrowth() {
+		Random random = new Random(1);
+		CladeIndex index = new CladeIndex(TAXA);
+		assertEquals(WORDS, index.getWords());
+		List<long []> keys = new ArrayList<>();
+		Map<String, Integer> ids = new HashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			// about one in five keys is added before
+			long [] key = i > 0 && random.nextInt(5) == 0 ? keys.get(random.nextInt(keys.size())) : randomKey(random);
+			String str = key[0] + " " + key[1] + " " + key[2];
+			int clade = index.add(key, 0);
+			if (ids.containsKey(str)) {
+				assertEquals((int) ids.get(str), clade);
+			} else {
+				// ids are given in order of first appearance
+				assertEquals(ids.size(), clade);
+				ids.put(str, clade);
+				keys.add(key);
+			}
+		}
+		assertEquals(keys.size(), index.getCladeCount());
+
+		long [] key = new long[2 * WORDS];
+		for (int i = 0; i < keys.size(); i++) {
+			// keys at an offset into a larger array
+			System.arraycopy(keys.get(i), 0, key, WORDS, WORDS);
+			assertEquals(i, index.find(key, WORDS));
+			index.getKey(i, key, 0);
+			int size = 0;
+			int first = -1;
+			for (int taxon = TAXA - 1; taxon >= 0; taxon--) {
+				boolean contains = (keys.get(i)[taxon >>> 6] & (1L << taxon)) != 0;
+				assertEquals(contains, index.contains(i, taxon));
+				if (contains) {
+					size++;
+					first = taxon;
+				}
+			}
+			for (int k = 0; k < WORDS; k++) {
+				assertEquals(keys.get(i)[k], key[k]);
+			}
+			assertEquals(size, index.getCladeSize(i));
+			assertEquals(first, index.getFirstTaxon(i));
+		}
+
+		// taxon 149 is in the last word
+		long [] absent = new long[WORDS];
+		absent[2] = 1L << (149 - 128);
+		assertFalse(ids.containsKey("0 0 " + absent[2]));
+		assertEquals(-1, index.find(absent, 0));
+	}
+
+	@Test
+	public void testConditionalCladeProbabilities() {
+		CladeIndex index = new CladeIndex(4);
+		int [] leaf = new int[4];
+		for (int i = 0; i < 4; i++) {
+			leaf[i] = index.add(new long[] {1L << i}, 0);
+		}
+		int ab = index.add(new long[] {0b0011}, 0);
+		int cd = index.add(new long[] {0b1100}, 0);
+		int bcd = index.add(new long[] {0b1110}, 0);
+		int root = index.add(new long[] {0b1111}, 0);
+		assertEquals(root, index.getRootClade());
+		// 3 times ((a,b),(c,d)) and once (a,(b,(c,d)))
+		index.addSplit(root, ab, cd, 3);
+		index.addSplit(root, leaf[0], bcd);
+		index.addSplit(ab, leaf[0], leaf[1], 3);
+		index.addSplit(cd, leaf[2], leaf[3], 4);
+		index.addSplit(bcd, leaf[1], cd);
+		index.finish();
+
+		assertEquals(4, index.getParentCount(root));
+		assertEquals(3, index.getSplitCount(root, ab));
+		assertEquals(3, index.getSplitCount(root, cd));
+		assertEquals(1, index.getSplitCount(root, bcd));
+		assertEquals(0, index.getSplitCount(root, leaf[1]));
+		assertEquals(Math.log(3) - Math.log(4), index.getLogConditional(root, ab), 1e-15);
+		assertEquals(Math.log(3) - Math.log(4), index.getLogConditional(root, cd), 1e-15);
+		assertEquals(Math.log(1) - Math.log(4), index.getLogConditional(root, leaf[0]), 1e-15);
+		assertEquals(0.0, index.getLogConditional(cd, leaf[2]), 1e-15);
+		assertTrue(Double.isNaN(index.getLogConditional(root, leaf[1])));
+
+		// adding a split invalidates the precomputed probabilities
+		index.addSplit(root, ab, cd);
+		assertEquals(Math.log(4) - Math.log(5), index.getLogConditional(root, ab), 1e-15);
+	}
+
+	@Test
+	public void testSplitsAcrossGrowth() {
+		Random random = new Random(2);
+		CladeIndex index = new CladeIndex(TAXA);
+		List<long [][]> splits = randomSplits(random, 3000);
+		addSplits(index, splits);
+
+		// reference counts by key
+		Map<String, Integer> splitCount = new HashMap<>();
+		Map<String, Integer> parentCount = new HashMap<>();
+		for (long [][] split : splits) {
+			String parent = split[0][0] + " " + split[0][1] + " " + split[0][2];
+			parentCount.merge(parent, 1, Integer::sum);
+			for (int i = 1; i <= 2; i++) {
+				splitCount.merge(parent + "/" + split[i][0] + " " + split[i][1] + " " + split[i][2], 1, Integer::sum);
+			}
+		}
+		assertEquals(splitCount.size(), index.getSplitCount());
+		for (long [][] split : splits) {
+			int parent = index.find(split[0], 0);
+			String parentStr = split[0][0] + " " + split[0][1] + " " + split[0][2];
+			assertEquals((int) parentCount.get(parentStr), index.getParentCount(parent));
+			for (int i = 1; i <= 2; i++) {
+				int child = index.find(split[i], 0);
+				int count = splitCount.get(parentStr + "/" + split[i][0] + " " + split[i][1] + " " + split[i][2]);
+				assertEquals(count, index.getSplitCount(parent, child));
+				assertEquals(Math.log(count) - Math.log(parentCount.get(parentStr)), index.getLogConditional(parent, child), 1e-12);
+			}
+		}
+		int [] visited = new int[1];
+		index.forEachSplit((parent, child, count) -> visited[0]++);
+		assertEquals(splitCount.size(), visited[0]);
+	}
+
+	@Test
+	public void testMerge() {
+		Random random = new Random(3);
+		List<long [][]> splits = randomSplits(random, 2000);
+		CladeIndex all = new CladeIndex(TAXA);
+		addSplits(all, splits);
+
+		// chunks of the same splits, merged in order
+		CladeIndex merged = new CladeIndex(TAXA);
+		addSplits(merged, splits.subList(0, 700));
+		CladeIndex second = new CladeIndex(TAXA);
+		addSplits(second, splits.subList(700, 1500));
+		CladeIndex third = new CladeIndex(TAXA);
+		addSplits(third, splits.subList(1500, 2000));
+		merged.merge(second);
+		merged.merge(third);
+		assertSameContent(all, merged);
+
+		// clades are numbered as if all splits were added to a single index
+		long [] key = new long[WORDS];
+		for (int i = 0; i < all.getCladeCount(); i++) {
+			all.getKey(i, key, 0);
+			assertEquals(i, merged.find(key, 0));
+		}
+
+		try {
+			merged.merge(new CladeIndex(10));
+			fail("merging indices with different key widths should fail");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testWriteRead() throws IOException {
+		Random random = new Random(4);
+		List<long [][]> splits = randomSplits(random, 2500);
+		CladeIndex index = new CladeIndex(TAXA);
+		addSplits(index, splits.subList(0, 2000));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			index.write(out);
+		}
+		CladeIndex copy = CladeIndex.read(ByteBuffer.wrap(bytes.toByteArray()));
+		assertEquals(TAXA, copy.getTaxonCount());
+		assertSameContent(index, copy);
+		long [] key = new long[WORDS];
+		for (int i = 0; i < index.getCladeCount(); i++) {
+			index.getKey(i, key, 0);
+			assertEquals(i, copy.find(key, 0));
+		}
+
+		// restored index can grow like the original
+		addSplits(index, splits.subList(2000, 2500));
+		addSplits(copy, splits.subList(2000, 2500));
+		assertSameContent(index, copy);
+
+		// small index, below the initial capacity
+		CladeIndex small = new CladeIndex(5);
+		small.addSplit(small.add(new long[] {0b11}, 0), small.add(new long[] {0b01}, 0), small.add(new long[] {0b10}, 0));
+		bytes.reset();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			small.write(out);
+		}
+		CladeIndex smallCopy = CladeIndex.read(ByteBuffer.wrap(bytes.toByteArray()));
+		assertSameContent(small, smallCopy);
+		smallCopy.add(new long[] {0b100}, 0);
+		assertEquals(4, smallCopy.getCladeCount());
+	}
+}
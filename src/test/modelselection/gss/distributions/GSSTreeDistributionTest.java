@@ -1,10 +1,17 @@
 package test.modelselection.gss.distributions;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.Test;
 
@@ -12,8 +19,11 @@ import beastfx.app.treeannotator.TreeAnnotator;
 import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
 import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
 import beastfx.app.util.TreeFile;
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
 import junit.framework.TestCase;
 import modelselection.gss.distribution.GSSTreeDistribution;
 
@@ -42,6 +52,215 @@ public class GSSTreeDistributionTest extends TestCase {
 				
 	}
 
+	final static int TAXA = 70;
+
+	/** caterpillar tree over taxa in the given order, labelled by taxon number + 1 as in a translate block **/
+	private String caterpillar(int... order) {
+		String newick = "(" + (order[0] + 1) + ":1.0," + (order[1] + 1) + ":1.0)";
+		for (int i = 2; i < order.length; i++) {
+			newick = "(" + newick + ":1.0," + (order[i] + 1) + ":" + i + ".0)";
+		}
+		return newick;
+	}
+
+	/** order 0, 1, ..., TAXA - 1 starting with first **/
+	private int [] order(int... first) {
+		int [] order = new int[TAXA];
+		for (int i = 0; i < TAXA; i++) {
+			order[i] = i < first.length ? first[i] : i;
+		}
+		return order;
+	}
+
+	private String taxon(int i) {
+		return String.format("t%02d", i);
+	}
+
+	/** NEXUS tree file with the given trees, labelled by taxon number + 1 **/
+	private TreeFile writeTreeFile(List<String> newicks) throws IOException {
+		File file = File.createTempFile("gsstest", ".trees");
+		file.deleteOnExit();
+		PrintStream out = new PrintStream(file);
+		out.println("#NEXUS");
+		out.println();
+		out.println("Begin trees;");
+		out.println("\tTranslate");
+		for (int i = 0; i < TAXA; i++) {
+			out.println("\t\t" + (i + 1) + " " + taxon(i) + (i < TAXA - 1 ? "," : ""));
+		}
+		out.println(";");
+		for (int i = 0; i < newicks.size(); i++) {
+			out.println("tree STATE_" + i + " = " + newicks.get(i) + ";");
+		}
+		out.println("End;");
+		out.close();
+		return new TreeFile(file.getAbsolutePath());
+	}
+
+	/** tree with taxon names instead of numbers **/
+	private TreeParser namedTree(String newick) {
+		for (int i = TAXA - 1; i >= 0; i--) {
+			newick = newick.replaceAll("([(,])" + (i + 1) + ":", "$1" + taxon(i) + ":");
+		}
+		return new TreeParser(newick);
+	}
+
+	@Test
+	public void testLogCladeCredibilityRegression() throws IOException {
+		// more than 64 taxa, so clade keys take two words. Trees differ only in the clade
+		// of the first three taxa: 3 times ((t00,t01),t02) and once ((t00,t02),t01)
+		String tree1 = caterpillar(order(0, 1, 2));
+		String tree2 = caterpillar(order(0, 2, 1));
+		TreeFile file = writeTreeFile(Arrays.asList(tree1, tree1, tree2, tree1));
+
+		// unseen ((t01,t02),t00): clade {t01,t02} is not in the tree set, and
+		// {t00,t01,t02} was never split into {t00} and {t01,t02}
+		String [] newicks = {tree1, tree2, caterpillar(order(1, 2, 0))};
+		double [] expected = {Math.log(3.0 / 4.0), Math.log(1.0 / 4.0), -16.0};
+		for (int i = 0; i < newicks.length; i++) {
+			for (boolean incremental : new boolean[] {true, false}) {
+				for (int threads : new int[] {1, 3}) {
+					GSSTreeDistribution distr = new GSSTreeDistribution();
+					distr.initByName("treefile", file, "tree", namedTree(newicks[i]), "burnin", 0, 
+							"useGammaForBranchLengths", GSSTreeDistribution.BranchLengthDistribution.none,
+							"incremental", incremental, "threads", threads);
+					assertEquals(expected[i], distr.calculateLogP(), 1e-12);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testIncrementalStoreRestore() throws IOException {
+		// tree set of caterpillars with the first 8 taxa in random order
+		Random random = new Random(11);
+		List<String> newicks = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			int [] first = order();
+			for (int k = 7; k > 0; k--) {
+				int j = random.nextInt(k + 1);
+				int tmp = first[k]; first[k] = first[j]; first[j] = tmp;
+			}
+			newicks.add(caterpillar(first));
+		}
+		TreeFile file = writeTreeFile(newicks);
+		TreeParser tree = namedTree(newicks.get(0));
+		GSSTreeDistribution distr = new GSSTreeDistribution();
+		distr.initByName("treefile", file, "tree", tree, "burnin", 0, 
+				"useGammaForBranchLengths", GSSTreeDistribution.BranchLengthDistribution.none, "threads", 1);
+		State state = new State();
+		state.initByName("stateNode", tree);
+		state.initialise();
+		Exchange narrow = new Exchange();
+		narrow.initByName("tree", tree, "isNarrow", true, "weight", 1.0);
+		Exchange wide = new Exchange();
+		wide.initByName("tree", tree, "isNarrow", false, "weight", 1.0);
+
+		// random swaps as proposed in an MCMC chain, half of which are rejected
+		double logP = distr.calculateLogP();
+		state.setEverythingDirty(false);
+		for (int i = 0; i < 2000; i++) {
+			state.store(i);
+			distr.store();
+			(random.nextBoolean() ? narrow : wide).proposal();
+			double proposed = distr.calculateLogP();
+			assertEquals(Double.doubleToLongBits(distr.getLogCladeCredibility(tree.getRoot())), Double.doubleToLongBits(proposed));
+			if (random.nextBoolean()) {
+				distr.accept();
+				logP = proposed;
+			} else {
+				state.restore();
+				distr.restore();
+			}
+			state.setEverythingDirty(false);
+			assertEquals(Double.doubleToLongBits(logP), Double.doubleToLongBits(distr.calculateLogP()));
+			assertEquals(Double.doubleToLongBits(distr.getLogCladeCredibility(tree.getRoot())), Double.doubleToLongBits(logP));
+		}
+	}
+
+	/** tree with the given subtree of the first four taxa of height 3, which the other taxa join one at a time **/
+	private String withSubtree(String subtree, double scale) {
+		String newick = subtree;
+		for (int i = 4; i < TAXA; i++) {
+			newick = "(" + newick + ":1.0," + (i + 1) + ":" + i + ".0)";
+		}
+		Matcher m = Pattern.compile(":([0-9.]+)").matcher(newick);
+		StringBuffer b = new StringBuffer();
+		while (m.find()) {
+			m.appendReplacement(b, ":" + Double.parseDouble(m.group(1)) * scale);
+		}
+		m.appendTail(b);
+		return b.toString();
+	}
+
+	/** taxa below node, as comma separated sorted IDs, for every internal node **/
+	private String collectClades(Node node, Set<String> clades) {
+		if (node.isLeaf()) {
+			return node.getID();
+		}
+		String left = collectClades(node.getLeft(), clades);
+		String right = collectClades(node.getRight(), clades);
+		String [] taxa = (left + "," + right).split(",");
+		Arrays.sort(taxa);
+		String clade = String.join(",", taxa);
+		clades.add(clade);
+		return clade;
+	}
+
+	@Test
+	public void testDrawTreeFrequencies() throws IOException {
+		// subtrees of the first four taxa: (((t00,t01),t02),t03) twice as often as the balanced
+		// ((t00,t01),(t02,t03)) and (((t00,t01),t03),t02). Only the balanced one has two rankings
+		String [] subtrees = {"(((1:1,2:1):1,3:2):1,4:3)", "((1:1,2:1):2,(3:2,4:2):1)", "(((1:1,2:1):1,4:2):1,3:3)"};
+		int [] rankings = {1, 2, 1};
+		int [] counts = {20, 10, 10};
+		Random random = new Random(13);
+		List<String> newicks = new ArrayList<>();
+		for (int k = 0; k < subtrees.length; k++) {
+			for (int i = 0; i < counts[k]; i++) {
+				// vary heights, so interval distributions have some width
+				newicks.add(withSubtree(subtrees[k], 0.9 + 0.2 * random.nextDouble()));
+			}
+		}
+		TreeFile file = writeTreeFile(newicks);
+		GSSTreeDistribution distr = new GSSTreeDistribution();
+		distr.initByName("treefile", file, "tree", namedTree(newicks.get(0)), "burnin", 0, 
+				"useGammaForBranchLengths", GSSTreeDistribution.BranchLengthDistribution.useIntervals, "threads", 1);
+
+		// topologies are drawn with probability proportional to clade credibility times number of rankings
+		double [] expected = new double[subtrees.length];
+		double sum = 0;
+		for (int k = 0; k < subtrees.length; k++) {
+			expected[k] = Math.exp(distr.getLogCladeCredibility(namedTree(withSubtree(subtrees[k], 1.0)).getRoot())) * rankings[k];
+			sum += expected[k];
+		}
+		int [] drawn = new int[subtrees.length];
+		int draws = 4000;
+		for (int i = 0; i < draws; i++) {
+			Tree tree = distr.drawTree(random);
+			Set<String> clades = new HashSet<>();
+			collectClades(tree.getRoot(), clades);
+			assertTrue(clades.contains(taxon(0) + "," + taxon(1)));
+			if (clades.contains(taxon(2) + "," + taxon(3))) {
+				drawn[1]++;
+			} else if (clades.contains(taxon(0) + "," + taxon(1) + "," + taxon(3))) {
+				drawn[2]++;
+			} else {
+				assertTrue(clades.contains(taxon(0) + "," + taxon(1) + "," + taxon(2)));
+				drawn[0]++;
+			}
+			for (Node node : tree.getExternalNodes()) {
+				assertEquals(0.0, node.getHeight());
+			}
+		}
+		for (int k = 0; k < subtrees.length; k++) {
+			double p = expected[k] / sum;
+			assertEquals(p, (double) drawn[k] / draws, 4 * Math.sqrt(p * (1 - p) / draws));
+		}
+		// 0.5 * 1, 0.25 * 2 and 0.25 * 1, normalised
+		assertEquals(0.4, expected[0] / sum, 1e-12);
+	}
+
 //	@Test
 //	public void testGSSTreeDistribution2() throws IOException {
 //		GSSTreeDistribution distr  = new GSSTreeDistribution();
@@ -0,0 +1,99 @@
+package test.modelselection.gss.distributions;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import modelselection.gss.distribution.NormalKDEDistribution;
+
+public class NormalKDEDistributionTest extends TestCase {
+	final static int DRAWS = 200000;
+
+	/** skewed sample: mixture of N(0,1) and N(4,0.5^2) **/
+	private Double [] mixtureSample(Random random) {
+		Double [] sample = new Double[500];
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = random.nextInt(10) < 7 ? random.nextGaussian() : 4 + 0.5 * random.nextGaussian();
+		}
+		return sample;
+	}
+
+	/** compare mean, variance and P(x < 2) of draws by nextValue with those of the density evaluated by pdf **/
+	private void assertDrawsMatchPdf(NormalKDEDistribution kde, Random random) {
+		// moments by trapezoid rule well beyond the sample, where pdf is zero outside the grid
+		double step = 1e-3;
+		double mass = 0, mean = 0, second = 0, below = 0;
+		for (double x = -25; x < 30; x += step) {
+			double p = (kde.pdf(x) + kde.pdf(x + step)) / 2 * step;
+			double mid = x + step / 2;
+			mass += p;
+			mean += mid * p;
+			second += mid * mid * p;
+			if (mid < 2) {
+				below += p;
+			}
+		}
+		mean /= mass;
+		double variance = second / mass - mean * mean;
+		below /= mass;
+
+		double sum = 0, sum2 = 0;
+		int drawnBelow = 0;
+		for (int i = 0; i < DRAWS; i++) {
+			double x = kde.nextValue(random);
+			sum += x;
+			sum2 += x * x;
+			if (x < 2) {
+				drawnBelow++;
+			}
+		}
+		double drawnMean = sum / DRAWS;
+		double drawnVariance = sum2 / DRAWS - drawnMean * drawnMean;
+		assertEquals(mean, drawnMean, 4 * Math.sqrt(variance / DRAWS));
+		assertEquals(variance, drawnVariance, 0.02 * variance);
+		assertEquals(below, (double) drawnBelow / DRAWS, 4 * Math.sqrt(below * (1 - below) / DRAWS));
+	}
+
+	@Test
+	public void testNextValueMatchesPdf() {
+		Random random = new Random(5);
+		NormalKDEDistribution kde = new NormalKDEDistribution(mixtureSample(random), null);
+		assertDrawsMatchPdf(kde, random);
+	}
+
+	/** estimator whose band width can be changed after construction **/
+	static class ResizableKDE extends NormalKDEDistribution {
+		ResizableKDE(Double [] sample) {
+			super(sample, null);
+		}
+
+		void changeBandWidth(double bandWidth) {
+			setBandWidth(bandWidth);
+		}
+	}
+
+	@Test
+	public void testNextValueAfterBandWidthChange() {
+		Random random = new Random(7);
+		ResizableKDE kde = new ResizableKDE(mixtureSample(random));
+		assertDrawsMatchPdf(kde, random);
+		// the density is recomputed, and draws should follow it instead of the previous density
+		kde.changeBandWidth(1.0);
+		assertDrawsMatchPdf(kde, random);
+	}
+
+	@Test
+	public void testTruncatedNextValue() {
+		Random random = new Random(6);
+		Double [] sample = new Double[200];
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = 1 + random.nextGaussian();
+		}
+		NormalKDEDistribution kde = new NormalKDEDistribution(sample, null);
+		for (int i = 0; i < 10000; i++) {
+			double x = kde.nextValue(random, 0.5, 2.0);
+			assertTrue(x >= 0.5 && x <= 2.0);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package test.modelselection.gss.distributions;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import modelselection.gss.distribution.UniformGrid;
+
+public class UniformGridTest extends TestCase {
+
+	/** grid points accumulated like the grids of the density estimators, which are not exactly equally spaced **/
+	private double [] accumulatedGrid(double lo, double up, int gridSize) {
+		double [] x = new double[gridSize];
+		double delta = (up - lo) / (gridSize - 1), v = lo;
+		for (int i = 0; i < gridSize; i++) {
+			x[i] = v;
+			v += delta;
+		}
+		return x;
+	}
+
+	private double [] density(double [] x) {
+		double [] y = new double[x.length];
+		for (int i = 0; i < x.length; i++) {
+			y[i] = Math.exp(-x[i] * x[i] / 2) / Math.sqrt(2 * Math.PI);
+		}
+		return y;
+	}
+
+	private void assertAgrees(double [] x, double [] y, UniformGrid grid, double pt) {
+		assertEquals("at " + pt, Double.doubleToLongBits(UniformGrid.linearApproximate(x, y, pt, 0.0, 0.0)), 
+				Double.doubleToLongBits(grid.evaluate(pt)));
+	}
+
+	/** grid points, points next to them, points outside the grid and random points **/
+	private void assertAgreesEverywhere(double [] x, double [] y, Random random) {
+		UniformGrid grid = new UniformGrid(x, y);
+		int last = x.length - 1;
+		for (int i = 0; i <= last; i++) {
+			assertAgrees(x, y, grid, x[i]);
+			assertAgrees(x, y, grid, Math.nextUp(x[i]));
+			assertAgrees(x, y, grid, Math.nextDown(x[i]));
+		}
+		assertEquals(y[0], grid.evaluate(x[0]));
+		assertEquals(y[last], grid.evaluate(x[last]));
+		assertEquals(0.0, grid.evaluate(Math.nextDown(x[0])));
+		assertEquals(0.0, grid.evaluate(Math.nextUp(x[last])));
+		assertEquals(0.0, grid.evaluate(x[0] - 100));
+		assertEquals(0.0, grid.evaluate(x[last] + 100));
+		for (int i = 0; i < 100000; i++) {
+			assertAgrees(x, y, grid, x[0] + (x[last] - x[0]) * random.nextDouble());
+		}
+	}
+
+	@Test
+	public void testAgreesWithBisection() {
+		Random random = new Random(1234);
+		for (int gridSize : new int[] {2, 3, 200, 512, 2048}) {
+			double [] x = accumulatedGrid(-5, 5, gridSize);
+			assertAgreesEverywhere(x, density(x), random);
+		}
+		// bounds that are not exactly representable
+		double [] x = accumulatedGrid(-0.1, 0.7, 1000);
+		assertAgreesEverywhere(x, density(x), random);
+	}
+
+	@Test
+	public void testLogitTailSubGrid() {
+		// the logit transformed estimator drops the first grid points, so its grid starts
+		// at an accumulated grid point instead of at the lower bound
+		Random random = new Random(4321);
+		double [] full = accumulatedGrid(-3.7, 11.3, 512);
+		for (int first : new int[] {1, 17, 255, 510}) {
+			double [] x = new double[full.length - first];
+			System.arraycopy(full, first, x, 0, x.length);
+			assertAgreesEverywhere(x, density(x), random);
+		}
+	}
+
+	@Test
+	public void testSinglePoint() {
+		double [] x = {0.5};
+		double [] y = {2.0};
+		UniformGrid grid = new UniformGrid(x, y);
+		assertEquals(2.0, grid.evaluate(0.5));
+		assertEquals(0.0, grid.evaluate(0.4));
+		assertEquals(0.0, grid.evaluate(0.6));
+	}
+}
@@ -0,0 +1,52 @@
+package test.modelselection.inference;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import modelselection.inference.CrossValidation;
+
+public class CrossValidationTest extends TestCase {
+
+	/** likelihood traces of 8 steps, with a likelihood that increases with beta **/
+	private double [][] traces(double [] betas) {
+		Random random = new Random(123);
+		double [][] traces = new double[betas.length][200];
+		for (int j = 0; j < betas.length; j++) {
+			for (int k = 0; k < traces[j].length; k++) {
+				traces[j][k] = -1000 + 50 * betas[j] + 5 * random.nextGaussian();
+			}
+		}
+		return traces;
+	}
+
+	@Test
+	public void testSameResultForAnyNumberOfThreads() {
+		double [] betas = new double[8];
+		for (int j = 0; j < betas.length; j++) {
+			betas[j] = Math.pow(j / 7.0, 1 / 0.3);
+		}
+		double [][] traces = traces(betas);
+		for (double alpha : new double[]{0, 0.3}) {
+			double [][] single = new CrossValidation(traces, betas, alpha, 5).run(20, 42, 1);
+			double [][] parallel = new CrossValidation(traces, betas, alpha, 5).run(20, 42, 4);
+			assertEquals(5, single.length);
+			for (int i = 0; i < single.length; i++) {
+				assertEquals(20, single[i].length);
+				for (int r = 0; r < single[i].length; r++) {
+					assertEquals(Double.doubleToLongBits(single[i][r]), Double.doubleToLongBits(parallel[i][r]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDifferentSeeds() {
+		double [] betas = {0, 0.25, 0.5, 0.75, 1};
+		double [][] traces = traces(betas);
+		double [][] a = new CrossValidation(traces, betas, 0.3, 4).run(3, 1, 2);
+		double [][] b = new CrossValidation(traces, betas, 0.3, 4).run(3, 2, 2);
+		assertTrue(a[0][0] != b[0][0]);
+	}
+}